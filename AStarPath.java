@@ -0,0 +1,77 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * A* search over a PathGraph.
+ */
+
+/**
+ * Finds shortest routes through a PathGraph with A*: Dijkstra's algorithm
+ * (ShortestPath, with all the same rules), but with the heap ordered by
+ * distance so far plus an estimate of the distance left, so the search heads
+ * towards the target instead of spreading out evenly from the source.
+ * <br><br>
+ * The estimate is the straight-line distance to the target. An Edge's weight
+ * is the sum of the distances between its points, so it can't be shorter
+ * than the straight line between its ends, except that weights are truncated
+ * to ints in the binary files. To make up for that, the straight-line
+ * distance is scaled by the smallest ratio of weight to straight-line
+ * distance of any connection in the graph (which is just under 1). That
+ * keeps the estimate from ever being more than a connection's weight plus
+ * the estimate at its other end, so a GraphPoint's distance is final as soon
+ * as it comes off the heap, and the routes found are as short as
+ * ShortestPath's.
+ * <br><br>
+ * Searches for a single target (route(), routeLocations()) use the estimate;
+ * searchAll() has no target, so it's the same as ShortestPath's.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class AStarPath extends ShortestPath
+{
+	// what straight-line distances are multiplied by
+	private double scale;
+
+	/**
+	 * Create a searcher for the given graph.
+	 * @param graph the graph to search
+	 */
+	public AStarPath(PathGraph graph)
+	{
+		super(graph);
+		scale = estimateScale(graph);
+	}
+
+	/**
+	 * Get the largest number straight-line distances can be multiplied by
+	 * without ever coming out more than the weight of a connection.
+	 * @param graph the graph
+	 * @return the scale, from 0 to 1
+	 */
+	static double estimateScale(PathGraph graph)
+	{
+		double scale = 1;
+		for(int v = 1; v <= graph.numPoints; v++){
+			for(int c = graph.offset[v]; c < graph.offset[v+1]; c++){
+				int w = graph.neighbor[c];
+				double straight = Math.hypot(graph.x[w] - graph.x[v],
+						graph.y[w] - graph.y[v]);
+				if(straight > 0)
+					scale = Math.min(scale, graph.weight[c] / straight);
+			}
+		}
+		return(Math.max(scale, 0));
+	}
+
+	/**
+	 * Estimate the distance from GraphPoint w to the target: the (scaled)
+	 * straight-line distance, rounded down.
+	 */
+	protected long estimate(int w)
+	{
+		if(target == 0)
+			return(0);
+		return((long)(scale * Math.hypot(graph.x[target] - graph.x[w],
+				graph.y[target] - graph.y[w])));
+	}
+}
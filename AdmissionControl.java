@@ -0,0 +1,224 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Admission control for route searches.
+ */
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many searches run at once, so a spike of requests doesn't
+ * start a search for every one of them and slow all of them down. A search
+ * that can't start right away waits its turn, but only if fewer than a given
+ * number are already waiting, and only until its deadline (when whoever
+ * asked for it has most likely given up); otherwise it's shed, and the
+ * caller has to make do without it (see RouteService and RouteServer).
+ * Waiting searches start in the order they arrived.
+ * <br><br>
+ * Usage:
+ * <pre>
+ *   if(!admission.enter(deadline))
+ *       ... shed ...
+ *   try{
+ *       ... search ...
+ *   }
+ *   finally{
+ *       admission.exit();
+ *   }
+ * </pre>
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class AdmissionControl
+{
+	/**
+	 * Most searches that run at once.
+	 */
+	final int maxRunning;
+	/**
+	 * Most searches that wait to run; any more are shed right away.
+	 */
+	final int maxWaiting;
+	/**
+	 * Longest a search waits (from when its request arrived), in
+	 * nanoseconds.
+	 */
+	final long maxWaitNanos;
+
+	private Semaphore permits;
+	private AtomicInteger waiting = new AtomicInteger();
+
+	// counters
+	private AtomicLong admitted = new AtomicLong();
+	private AtomicLong shedFull = new AtomicLong();
+	private AtomicLong shedLate = new AtomicLong();
+	private AtomicLong waits = new AtomicLong();
+	private AtomicLong waitNanos = new AtomicLong();
+	private AtomicLong longestWait = new AtomicLong();
+
+	/**
+	 * Create an admission control.
+	 * @param maxRunning most searches that run at once
+	 * @param maxWaiting most searches that wait to run
+	 * @param maxWaitMillis longest a search waits, in milliseconds
+	 */
+	public AdmissionControl(int maxRunning, int maxWaiting, long maxWaitMillis)
+	{
+		this.maxRunning = maxRunning;
+		this.maxWaiting = maxWaiting;
+		this.maxWaitNanos = maxWaitMillis * 1000000;
+		permits = new Semaphore(maxRunning, true);
+	}
+
+	/**
+	 * Get the deadline for a request that arrived at a given time.
+	 * @param arrived when the request arrived (System.nanoTime())
+	 * @return its deadline (System.nanoTime())
+	 */
+	public long deadline(long arrived)
+	{
+		return(arrived + maxWaitNanos);
+	}
+
+	/**
+	 * Start a search, waiting for it to be let in if it has to. If it is
+	 * let in, exit() has to be called when it's done.
+	 * @param deadline when to give up waiting (System.nanoTime())
+	 * @return whether the search may run; false if it was shed
+	 */
+	public boolean enter(long deadline)
+	{
+		long start = System.nanoTime();
+		if(deadline - start <= 0){
+			shedLate.incrementAndGet();
+			return(false);
+		}
+
+		boolean in = false;
+		try{
+			// straight in, if nobody's ahead of us
+			if(permits.tryAcquire(0, TimeUnit.NANOSECONDS)){
+				admitted.incrementAndGet();
+				return(true);
+			}
+			if(waiting.incrementAndGet() > maxWaiting){
+				waiting.decrementAndGet();
+				shedFull.incrementAndGet();
+				return(false);
+			}
+			try{
+				in = permits.tryAcquire(deadline - start,
+						TimeUnit.NANOSECONDS);
+			}
+			finally{
+				waiting.decrementAndGet();
+			}
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		long waited = System.nanoTime() - start;
+		waits.incrementAndGet();
+		waitNanos.addAndGet(waited);
+		long longest;
+		while(waited > (longest = longestWait.get())
+				&& !longestWait.compareAndSet(longest, waited))
+			;
+		if(in)
+			admitted.incrementAndGet();
+		else
+			shedLate.incrementAndGet();
+		return(in);
+	}
+
+	/**
+	 * Finish a search that was let in.
+	 */
+	public void exit()
+	{
+		permits.release();
+	}
+
+	/**
+	 * @return number of searches running now
+	 */
+	public int running()
+	{
+		return(maxRunning - permits.availablePermits());
+	}
+
+	/**
+	 * @return number of searches waiting to run now
+	 */
+	public int waiting()
+	{
+		return(waiting.get());
+	}
+
+	/**
+	 * @return number of searches let in
+	 */
+	public long admitted()
+	{
+		return(admitted.get());
+	}
+
+	/**
+	 * @return number of searches shed because too many were waiting
+	 */
+	public long shedFull()
+	{
+		return(shedFull.get());
+	}
+
+	/**
+	 * @return number of searches shed because their deadline passed
+	 */
+	public long shedLate()
+	{
+		return(shedLate.get());
+	}
+
+	/**
+	 * @return number of searches that had to wait (whether or not they were
+	 * let in in the end)
+	 */
+	public long waits()
+	{
+		return(waits.get());
+	}
+
+	/**
+	 * @return total time searches spent waiting, in nanoseconds
+	 */
+	public long waitNanos()
+	{
+		return(waitNanos.get());
+	}
+
+	/**
+	 * @return longest time a search waited, in nanoseconds
+	 */
+	public long longestWaitNanos()
+	{
+		return(longestWait.get());
+	}
+}
+
+/**
+ * Thrown when a search is shed by AdmissionControl.
+ */
+class ShedException extends RuntimeException
+{
+	final static long serialVersionUID = 1;
+
+	public ShedException(String message)
+	{
+		super(message);
+	}
+}
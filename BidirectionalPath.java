@@ -0,0 +1,220 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Bidirectional Dijkstra search over a PathGraph.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Finds shortest routes through a PathGraph by searching from both ends at
+ * once, and stopping once the two searches have met and can't find anything
+ * shorter. For a single pair of GraphPoints this settles about half as many
+ * as a one-way search. The rules (and routes' lengths) are the same as
+ * ShortestPath's.
+ * <br><br>
+ * The backward search works out, for each GraphPoint u, the cost of getting
+ * from u to the target. The cost of a connection is charged to the
+ * GraphPoint it goes into (that's where the no-pass-through penalty comes
+ * from), so going backward from u to x costs the weight plus u's penalty, not
+ * x's. That way a GraphPoint where the searches meet has its penalty counted
+ * once, in the forward distance, and not at all in the backward one.
+ * <br><br>
+ * Searches for a single target (route(), routeLocations()) go both ways;
+ * searchAll() has no target, so it's the same as ShortestPath's.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class BidirectionalPath extends ShortestPath
+{
+	// state of the backward search, like the forward search's in
+	// ShortestPath. backVia[u] is the connection (in backFrom[u]'s list)
+	// the backward search got to u through.
+	private long [] backDist;
+	private int [] backVia;
+	private int [] backFrom;
+	private int [] backReached;
+	private int [] backSettled;
+	private IndexedHeap backHeap;
+
+	// the shortest route found so far: its cost, and the connection where
+	// the searches meet (in meetFrom's list, going towards the target)
+	private long best;
+	private int meetFrom;
+	private int meetConn;
+
+	/**
+	 * Create a searcher for the given graph.
+	 * @param graph the graph to search
+	 */
+	public BidirectionalPath(PathGraph graph)
+	{
+		super(graph);
+		int n = graph.numPoints + 1;
+		backDist = new long[n];
+		backVia = new int[n];
+		backFrom = new int[n];
+		backReached = new int[n];
+		backSettled = new int[n];
+		backHeap = new IndexedHeap(n);
+	}
+
+	/**
+	 * Find the shortest route between two GraphPoints.
+	 * @param source ID of the GraphPoint to start at
+	 * @param target ID of the GraphPoint to go to
+	 * @return the route, or null if there is none
+	 */
+	public Route route(int source, int target)
+	{
+		startSearch();
+		this.target = target;
+		if(source == target){
+			settled = 1;
+			return(new Route(graph, source, new int[0]));
+		}
+
+		reach(source, 0, -1, 0, 0);
+		backReached[target] = stamp;
+		backDist[target] = 0;
+		backVia[target] = -1;
+		backHeap.push(target, 0);
+
+		best = INFINITY;
+		while(!heap.isEmpty() && !backHeap.isEmpty()){
+			// nothing left on either heap can make a shorter route
+			if(heap.topKey() + backHeap.topKey() >= best)
+				break;
+			if(heap.size() <= backHeap.size())
+				forwardStep();
+			else
+				backwardStep();
+		}
+
+		if(best == INFINITY)
+			return(null);
+		return(meetingRoute());
+	}
+
+	/**
+	 * Get ready for a new search (both ways).
+	 */
+	protected void startSearch()
+	{
+		int oldStamp = stamp;
+		super.startSearch();
+		if(stamp < oldStamp){
+			// the stamps started over
+			Arrays.fill(backReached, 0);
+			Arrays.fill(backSettled, 0);
+		}
+		backHeap.clear();
+	}
+
+	/**
+	 * Settle the next GraphPoint of the forward search.
+	 */
+	private void forwardStep()
+	{
+		int v = heap.pop();
+		settledStamp[v] = stamp;
+		settled++;
+		for(int c = graph.offset[v]; c < graph.offset[v+1]; c++){
+			int w = graph.neighbor[c];
+			long d = dist[v] + cost(c, w);
+			if(backReached[w] == stamp && d + backDist[w] < best){
+				best = d + backDist[w];
+				meetFrom = v;
+				meetConn = c;
+			}
+			if(settledStamp[w] == stamp)
+				continue;
+			if(!isReached(w) || d < dist[w])
+				reach(w, d, c, v, d);
+		}
+	}
+
+	/**
+	 * Settle the next GraphPoint of the backward search.
+	 */
+	private void backwardStep()
+	{
+		int u = backHeap.pop();
+		backSettled[u] = stamp;
+		settled++;
+		for(int c = graph.offset[u]; c < graph.offset[u+1]; c++){
+			int x = graph.neighbor[c];
+			// going forward, this connection is from x into u
+			long d = backDist[u] + cost(c, u);
+			if(isReached(x) && dist[x] + d < best){
+				best = dist[x] + d;
+				meetFrom = x;
+				meetConn = reverse(c, u);
+			}
+			if(backSettled[x] == stamp)
+				continue;
+			if(backReached[x] != stamp || d < backDist[x]){
+				backDist[x] = d;
+				backVia[x] = c;
+				backFrom[x] = u;
+				if(backHeap.contains(x))
+					backHeap.decreaseKey(x, d);
+				else{
+					backReached[x] = stamp;
+					backHeap.push(x, d);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the connection going the other way along the same Edge.
+	 * @param c a connection in v's list
+	 * @param v the GraphPoint c starts at
+	 * @return the connection in neighbor[c]'s list that goes back to v
+	 * through the same Edge
+	 */
+	private int reverse(int c, int v)
+	{
+		int w = graph.neighbor[c];
+		for(int r = graph.offset[w]; r < graph.offset[w+1]; r++)
+			if(graph.edge[r] == graph.edge[c] && graph.neighbor[r] == v)
+				return(r);
+		throw new IllegalStateException("Edge " + graph.edge[c]
+				+ " is only connected one way between GraphPoints " + v
+				+ " and " + w);
+	}
+
+	/**
+	 * Put together the route through the meeting connection: the forward
+	 * search's route to meetFrom, the meeting connection, and the backward
+	 * search's route from there to the target.
+	 */
+	private Route meetingRoute()
+	{
+		int meetTo = graph.neighbor[meetConn];
+		int forwardLen = 1;
+		for(int p = meetFrom; via[p] != -1; p = from[p])
+			forwardLen++;
+		int backLen = 0;
+		for(int q = meetTo; backVia[q] != -1; q = backFrom[q])
+			backLen++;
+		int [] conns = new int[forwardLen + backLen];
+
+		// forward part, filled in from the meeting point back to the source
+		int i = forwardLen - 1;
+		conns[i] = meetConn;
+		int p = meetFrom;
+		for(; via[p] != -1; p = from[p])
+			conns[--i] = via[p];
+
+		// backward part, from the meeting point on to the target (turned
+		// around to go forward)
+		i = forwardLen;
+		for(int q = meetTo; backVia[q] != -1; q = backFrom[q])
+			conns[i++] = reverse(backVia[q], backFrom[q]);
+
+		return(new Route(graph, p, conns));
+	}
+}
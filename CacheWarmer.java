@@ -0,0 +1,478 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Route cache warm-up from an access log.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the routes people ask for most ahead of time, so the first people to
+ * ask for them after the data is updated (and the cache cleared) don't wait
+ * for them. Route requests are counted from an access log, the pairs of
+ * Locations asked for most are routed in parallel, and the routes are
+ * written to a cache directory as .path files (see writePathFile()) and/or
+ * put in a RouteCache.
+ * <br><br>
+ * Each line of the log is either a web server access log line for map.cgi
+ * (or the routing server), where the from and to parameters of the request
+ * are the Locations, or the from, to and zoom of a request separated by
+ * tabs. Locations are found the way RouteServer finds them: by ID, or by
+ * anything a search finds exactly one Location for. The same route is drawn
+ * at every zoom level, so requests at every zoom count toward the same pair;
+ * so do requests for it in either direction, since they share a .path file.
+ * <br><br>
+ * Usage: java CacheWarmer log [count [cacheDir]]
+ * <br>
+ * routes the count (default DEFAULT_COUNT) most asked-for pairs in the log
+ * over the binary files in data/ (see ScrollablePicture), and writes them to
+ * cacheDir, or just lists them if there's no cacheDir. It can also be run as
+ * the last stage of PathOptimize.run(), over the files it just wrote (see
+ * PathOptimize.warmLog), and by RouteServer when it starts (see
+ * RouteServer.warmLog). Routes are found by CacheWarmer.threads threads (one
+ * per processor by default).
+ * <br><br>
+ * The Perl frontend throws out .path files nobody's used for
+ * MapGlobals::CACHE_EXPIRY, so warmed files should be written into the cache
+ * directory just before the new data goes live.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class CacheWarmer
+{
+	/**
+	 * Number of pairs to route, unless told otherwise.
+	 */
+	static final int DEFAULT_COUNT = 500;
+
+	/**
+	 * Pairs each task routes before it stops splitting.
+	 */
+	static final int PAIRS_PER_TASK = 8;
+
+	/**
+	 * Number of threads to find routes with. (Set from the
+	 * CacheWarmer.threads system property.)
+	 */
+	public static int threads = Integer.getInteger("CacheWarmer.threads",
+			Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * The service routes are found with.
+	 */
+	final RouteService service;
+
+	// how often each pair was asked for, by RouteCache.key()
+	private HashMap<Long, Integer> counts = new HashMap<Long, Integer>();
+	// Location ID of each bit of text seen so far (0 if it doesn't find
+	// exactly one Location)
+	private HashMap<String, Integer> found = new HashMap<String, Integer>();
+
+	// counters
+	private int lines = 0;
+	private int requests = 0;
+	private int unknown = 0;
+
+	/**
+	 * Warm up the cache from a log.
+	 * @param args log file, number of pairs (optional), cache directory
+	 * (optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1){
+			System.err.println("Usage: java CacheWarmer log [count [cacheDir]]");
+			System.exit(1);
+		}
+		int count = (args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_COUNT);
+		RouteService service = new RouteService(
+				ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges, null, null, null);
+
+		long start = System.nanoTime();
+		CacheWarmer warmer = new CacheWarmer(service);
+		warmer.readLog(args[0]);
+		long [] pairs = warmer.top(count);
+		Route [] routes = warmer.findRoutes(pairs, threads);
+		System.err.println(warmer.summary(pairs) + ", routed in "
+				+ (System.nanoTime() - start) / 1000000 + "ms.");
+
+		if(args.length > 2){
+			if(!warmer.writePathFiles(args[2], pairs, routes))
+				System.exit(1);
+			return;
+		}
+		for(int i = 0; i < pairs.length; i++)
+			System.err.println(first(pairs[i]) + "-" + second(pairs[i]) + ": "
+					+ warmer.count(pairs[i]) + " requests, distance "
+					+ (routes[i] == null ? "none" : "" + routes[i].distance));
+	}
+
+	/**
+	 * Create a warmer with no requests counted yet.
+	 * @param service the service to find Locations and routes with
+	 */
+	public CacheWarmer(RouteService service)
+	{
+		this.service = service;
+	}
+
+	/**
+	 * Count the route requests in a log.
+	 * @param fileName the log
+	 * @throws IOException if it can't be read
+	 */
+	public void readLog(String fileName) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		try{
+			String line;
+			while((line = in.readLine()) != null)
+				readLine(line);
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Count the route request in a line of a log, if there is one.
+	 * @param line the line
+	 */
+	public void readLine(String line)
+	{
+		lines++;
+		String from, to;
+		if(line.indexOf('?') != -1){
+			// the request is the quoted part of an access log line (or the
+			// whole line, if it's just the URL)
+			String target = line;
+			int quote = line.indexOf('"');
+			if(quote != -1){
+				int end = line.indexOf('"', quote + 1);
+				String [] request = line.substring(quote + 1,
+						end == -1 ? line.length() : end).split(" ");
+				if(request.length < 2)
+					return;
+				target = request[1];
+			}
+			int q = target.indexOf('?');
+			if(q == -1)
+				return;
+			HashMap<String, String> params;
+			try{
+				params = RouteServer.parseQuery(target.substring(q + 1));
+			}
+			catch(IllegalArgumentException e){
+				// mangled URL
+				return;
+			}
+			from = params.get("from");
+			to = params.get("to");
+		}
+		else{
+			String [] fields = line.split("\t");
+			if(fields.length < 2)
+				return;
+			from = fields[0];
+			to = fields[1];
+		}
+		if(from == null || to == null || from.trim().length() == 0
+				|| to.trim().length() == 0)
+			return;
+
+		requests++;
+		int a = location(from.trim());
+		int b = location(to.trim());
+		if(a == 0 || b == 0){
+			unknown++;
+			return;
+		}
+		if(a == b)
+			return;
+		long key = RouteCache.key(a, b);
+		Integer n = counts.get(key);
+		counts.put(key, n == null ? 1 : n + 1);
+	}
+
+	/**
+	 * Find the one Location some text means.
+	 * @return its ID, or 0 if there isn't exactly one
+	 */
+	private int location(String text)
+	{
+		Integer id = found.get(text);
+		if(id != null)
+			return(id);
+
+		id = 0;
+		try{
+			int n = Integer.parseInt(text);
+			if(service.hasLocation(n))
+				id = n;
+		}
+		catch(NumberFormatException e){
+			// not an ID
+		}
+		if(id == 0 && !LocationIndex.isKeyword(text)){
+			Vector<LocationMatch> matches = service.search(text);
+			if(matches.size() == 1 && service.hasLocation(matches.get(0).id))
+				id = matches.get(0).id;
+		}
+		found.put(text, id);
+		return(id);
+	}
+
+	/**
+	 * Get the pairs asked for most.
+	 * @param n most pairs to get
+	 * @return keys of the pairs (see RouteCache.key()), most asked for
+	 * first
+	 */
+	public long[] top(int n)
+	{
+		Vector<Long> keys = new Vector<Long>(counts.keySet());
+		Collections.sort(keys, new Comparator<Long>(){
+			public int compare(Long a, Long b)
+			{
+				int c = counts.get(b).compareTo(counts.get(a));
+				return(c != 0 ? c : a.compareTo(b));
+			}
+		});
+		long [] pairs = new long[Math.min(n, keys.size())];
+		for(int i = 0; i < pairs.length; i++)
+			pairs[i] = keys.get(i);
+		return(pairs);
+	}
+
+	/**
+	 * @param key a pair's key
+	 * @return how many times it was asked for
+	 */
+	public int count(long key)
+	{
+		Integer n = counts.get(key);
+		return(n == null ? 0 : n);
+	}
+
+	/**
+	 * @param key a pair's key
+	 * @return the lower Location ID in it
+	 */
+	static int first(long key)
+	{
+		return((int)(key >>> 32));
+	}
+
+	/**
+	 * @param key a pair's key
+	 * @return the higher Location ID in it
+	 */
+	static int second(long key)
+	{
+		return((int)key);
+	}
+
+	/**
+	 * Describe what was read (for the log).
+	 * @param pairs the pairs that were picked
+	 * @return a summary of the counts
+	 */
+	public String summary(long [] pairs)
+	{
+		int covered = 0;
+		for(long key : pairs)
+			covered += count(key);
+		return(lines + " lines, " + requests + " route requests ("
+				+ unknown + " for unknown Locations), " + counts.size()
+				+ " pairs; the top " + pairs.length + " cover " + covered
+				+ " requests");
+	}
+
+	/**
+	 * Route pairs of Locations, in parallel.
+	 * @param pairs keys of the pairs
+	 * @param numThreads number of threads to use
+	 * @return the route for each pair, from the lower Location ID to the
+	 * higher (null where there's no route)
+	 */
+	public Route[] findRoutes(long [] pairs, int numThreads)
+	{
+		Route [] routes = new Route[pairs.length];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(numThreads, 1));
+		try{
+			pool.invoke(new RouteTask(pairs, routes, 0, pairs.length));
+		}
+		finally{
+			pool.shutdown();
+		}
+		return(routes);
+	}
+
+	/**
+	 * Routes a range of pairs, splitting it in half until it's small.
+	 */
+	private class RouteTask extends RecursiveAction
+	{
+		final static long serialVersionUID = 1;
+
+		private long [] pairs;
+		private Route [] routes;
+		private int lo, hi;
+
+		RouteTask(long [] pairs, Route [] routes, int lo, int hi)
+		{
+			this.pairs = pairs;
+			this.routes = routes;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute()
+		{
+			if(hi - lo <= PAIRS_PER_TASK){
+				for(int i = lo; i < hi; i++)
+					routes[i] = service.findRoute(first(pairs[i]),
+							second(pairs[i]));
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			RouteTask left = new RouteTask(pairs, routes, lo, mid);
+			left.fork();
+			new RouteTask(pairs, routes, mid, hi).compute();
+			left.join();
+		}
+	}
+
+	/**
+	 * Put routes in a RouteCache, counted as asked for as often as they were
+	 * in the log.
+	 * @param cache the cache
+	 * @param pairs keys of the pairs, most asked for first
+	 * @param routes their routes, from findRoutes()
+	 * @return how many of them the cache holds afterwards
+	 */
+	public int preload(RouteCache cache, long [] pairs, Route [] routes)
+	{
+		// least asked for first, so if they don't all fit, the popular ones
+		// push the others out (and are counted last, before the cache's
+		// counts get halved)
+		for(int i = pairs.length - 1; i >= 0; i--)
+			cache.preload(first(pairs[i]), second(pairs[i]), routes[i],
+					count(pairs[i]));
+		int loaded = 0;
+		for(long key : pairs)
+			if(cache.contains(first(key), second(key)))
+				loaded++;
+		return(loaded);
+	}
+
+	/**
+	 * Write routes to a cache directory, one .path file each, named the way
+	 * MapGlobals::getCacheName() names them.
+	 * @param dir the cache directory
+	 * @param pairs keys of the pairs
+	 * @param routes their routes, from findRoutes()
+	 * @return whether they were all written
+	 */
+	public boolean writePathFiles(String dir, long [] pairs, Route [] routes)
+	{
+		for(int i = 0; i < pairs.length; i++){
+			int a = first(pairs[i]), b = second(pairs[i]);
+			if(!writePathFile(dir + "/" + a + "-" + b + ".path", routes[i],
+						service.graph, service.graph.pointOfLocation(a),
+						service.graph.pointOfLocation(b)))
+				return(false);
+		}
+		return(true);
+	}
+
+	/**
+	 * Write a route in the format LoadData::writeCache() does, and
+	 * LoadData::loadCache() reads. All numbers are big-endian ints:
+	 * <pre>
+	 * distance (0 if there's no route)
+	 * xmin, ymin, xmax, ymax of the rectangle needed to view it
+	 * number of Edges
+	 * for each Edge: number of points, then x, y of each point
+	 * </pre>
+	 * The Edges are listed from the target back to the source, and each
+	 * one's points in the order they're stored in, the same as
+	 * ShortestPath::pathPoints() gives them. With no route, the rectangle
+	 * holds just the two GraphPoints and there are no Edges.
+	 * @param fileName the file to write
+	 * @param r the route, or null if there is none
+	 * @param graph the graph it's in
+	 * @param source GraphPoint the route starts at
+	 * @param target GraphPoint the route goes to
+	 * @return whether it was written
+	 */
+	static boolean writePathFile(String fileName, Route r, PathGraph graph,
+			int source, int target)
+	{
+		// map.cgi may be reading the cache directory as we write it, so
+		// (like LoadData::writeCache()) write a file of our own and rename it
+		// into place; readers only ever see a whole file
+		File file = new File(fileName);
+		File tmp = new File(fileName + "." + ProcessHandle.current().pid());
+		DataOutputStream out = null;
+		boolean written = false;
+		try{
+			out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			if(r == null){
+				out.writeInt(0);
+				out.writeInt(Math.min(graph.x[source], graph.x[target]));
+				out.writeInt(Math.min(graph.y[source], graph.y[target]));
+				out.writeInt(Math.max(graph.x[source], graph.x[target]));
+				out.writeInt(Math.max(graph.y[source], graph.y[target]));
+				out.writeInt(0);
+			}
+			else{
+				out.writeInt(r.distance);
+				out.writeInt(r.xmin);
+				out.writeInt(r.ymin);
+				out.writeInt(r.xmax);
+				out.writeInt(r.ymax);
+				out.writeInt(r.edges.length);
+				for(int i = r.edges.length - 1; i >= 0; i--){
+					int e = r.edges[i];
+					out.writeInt(graph.edgeNumPoints(e));
+					for(int p = 0; p < graph.edgeNumPoints(e); p++){
+						out.writeInt(graph.edgeX(e, p));
+						out.writeInt(graph.edgeY(e, p));
+					}
+				}
+			}
+			out.close();
+			out = null;
+			if(!tmp.renameTo(file))
+				throw new IOException("could not rename \"" + tmp
+						+ "\" to \"" + fileName + "\"");
+			written = true;
+		}
+		catch(IOException e){
+			System.err.println("Error in writing \"" + fileName + "\"!\n" + e
+					+ ": " + e.getMessage());
+		}
+		finally{
+			if(out != null){
+				try{
+					out.close();
+				}
+				catch(IOException e){
+					// we're already failing
+				}
+			}
+			if(!written)
+				tmp.delete();
+		}
+		return(written);
+	}
+}
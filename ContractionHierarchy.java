@@ -0,0 +1,551 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Contraction hierarchy over a PathGraph.
+ */
+
+import java.io.*;
+import java.util.HashMap;
+
+/**
+ * A contraction hierarchy over a PathGraph, for answering point-to-point
+ * queries (see HierarchyPath) while settling only a few GraphPoints.
+ * <br><br>
+ * GraphPoints are contracted one at a time, least important first: each one
+ * is taken out of the graph, and wherever the shortest route between two of
+ * its remaining neighbors went through it, a shortcut is added between them.
+ * Each GraphPoint's rank is the order it was contracted in. A query then only
+ * ever has to go up in rank from either end, which cuts the search down to a
+ * small part of the graph.
+ * <br><br>
+ * Importance is the edge difference: the number of shortcuts contracting a
+ * GraphPoint would add, less the number of arcs it would take away. It's
+ * worked out again for a GraphPoint just before it's contracted, and if it
+ * has gone up past the next one in line, that one goes first instead.
+ * <br><br>
+ * No shortcut ever goes through a GraphPoint that can't be passed through
+ * (see Location.isCanPassThrough()). Most of those are dead ends, or have a
+ * cheaper way around them than the penalty for going in, so they can be
+ * contracted without adding any shortcuts, and they are. The rest (the ones
+ * that really are the only way between two places) are never contracted:
+ * they're left over as the core of the hierarchy, ranked above everything
+ * else, and a query searches the core like ordinary Dijkstra. Shortcuts only
+ * hold plain weights, and HierarchyPath adds the no-pass-through penalty for
+ * going into a GraphPoint, so routes cost the same as ShortestPath's.
+ * <br><br>
+ * Arcs (original connections and shortcuts) go both ways. An original arc
+ * stands for one Edge (the lightest, if two GraphPoints are joined by more
+ * than one); a shortcut stands for the two arcs it replaced, so any route can
+ * be unpacked back into Edges.
+ * <br><br>
+ * The binary file written by write() is (all ints are 4 bytes,
+ * big-endian):
+ * <pre>
+ *   magic ('CHIE'), version (1), number of GraphPoints (n),
+ *     number of arcs (m), number of core GraphPoints
+ *   n ranks, for GraphPoint ID 1 .. n
+ *   m arcs: one end, other end, weight, Edge ID (0 for a shortcut),
+ *     first and second arc it replaces (-1 for an original arc)
+ * </pre>
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class ContractionHierarchy
+{
+	/**
+	 * First int of a hierarchy file ('CHIE')
+	 */
+	static final int MAGIC = 0x43484945;
+	/**
+	 * Version of the hierarchy file format
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * Most GraphPoints a witness search settles before giving up (and adding
+	 * the shortcut, to be safe).
+	 */
+	static final int WITNESS_LIMIT = 500;
+
+	// the graph
+	final PathGraph graph;
+
+	/**
+	 * Rank of each GraphPoint, by ID (0 is contracted first).
+	 */
+	int [] rank;
+	/**
+	 * Number of core GraphPoints (the ones left uncontracted).
+	 */
+	int numCore;
+
+	/**
+	 * Number of arcs.
+	 */
+	int numArcs;
+	/**
+	 * Ends, weight, Edge ID (0 for shortcuts) and the arcs each shortcut
+	 * replaces (-1 for original arcs), by arc.
+	 */
+	int [] arcA, arcB, arcWeight, arcEdge, arcFirst, arcSecond;
+
+	/**
+	 * The arcs a query follows out of each GraphPoint (up in rank, or to
+	 * other core GraphPoints) are searchArc[searchOffset[id]] to
+	 * searchArc[searchOffset[id+1] - 1].
+	 */
+	int [] searchOffset, searchArc;
+
+	/**
+	 * Create an empty hierarchy over a graph.
+	 */
+	private ContractionHierarchy(PathGraph graph)
+	{
+		this.graph = graph;
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return whether the GraphPoint is in the core (wasn't contracted)
+	 */
+	public boolean isCore(int id)
+	{
+		return(rank[id] >= graph.numPoints - numCore);
+	}
+
+	/**
+	 * @param a an arc
+	 * @param id one end of the arc
+	 * @return the other end
+	 */
+	public int otherEnd(int a, int id)
+	{
+		return(arcA[a] == id ? arcB[a] : arcA[a]);
+	}
+
+	/**
+	 * Unpack an arc into the Edges it stands for, in order.
+	 * @param a the arc
+	 * @param from the end to start at
+	 * @param froms the GraphPoint each Edge is followed from is added here
+	 * @param edges the Edge IDs are added here
+	 */
+	public void unpack(int a, int from, IntList froms, IntList edges)
+	{
+		if(arcEdge[a] != 0){
+			froms.add(from);
+			edges.add(arcEdge[a]);
+			return;
+		}
+		// the shortcut went through the point the two arcs share
+		int first = arcFirst[a], second = arcSecond[a];
+		if(arcA[first] != from && arcB[first] != from){
+			first = arcSecond[a];
+			second = arcFirst[a];
+		}
+		unpack(first, from, froms, edges);
+		unpack(second, otherEnd(first, from), froms, edges);
+	}
+
+	// ================ Building ================
+
+	/**
+	 * Build a hierarchy by contracting a graph.
+	 * @param graph the graph
+	 * @return the hierarchy
+	 */
+	public static ContractionHierarchy build(PathGraph graph)
+	{
+		return(new Contractor(graph).contract());
+	}
+
+	/**
+	 * Fill in the search arcs from the ranks and arcs.
+	 */
+	private void buildSearchGraph()
+	{
+		searchOffset = new int[graph.numPoints + 2];
+		for(int a = 0; a < numArcs; a++){
+			if(isSearchArc(arcA[a], arcB[a]))
+				searchOffset[arcA[a]]++;
+			if(isSearchArc(arcB[a], arcA[a]))
+				searchOffset[arcB[a]]++;
+		}
+		int total = 0;
+		for(int id = 0; id < searchOffset.length; id++){
+			int count = searchOffset[id];
+			searchOffset[id] = total;
+			total += count;
+		}
+		searchArc = new int[total];
+		int [] next = searchOffset.clone();
+		for(int a = 0; a < numArcs; a++){
+			if(isSearchArc(arcA[a], arcB[a]))
+				searchArc[next[arcA[a]]++] = a;
+			if(isSearchArc(arcB[a], arcA[a]))
+				searchArc[next[arcB[a]]++] = a;
+		}
+	}
+
+	/**
+	 * Does a query follow arcs from u to w?
+	 */
+	private boolean isSearchArc(int u, int w)
+	{
+		return(rank[u] < rank[w] || (isCore(u) && isCore(w)));
+	}
+
+	// ================ Files ================
+
+	/**
+	 * Write the hierarchy to disk.
+	 * @param fileName the file to write to
+	 */
+	public void write(String fileName)
+	{
+		try{
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(
+							new FileOutputStream(new File(fileName))));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(graph.numPoints);
+			out.writeInt(numArcs);
+			out.writeInt(numCore);
+			for(int id = 1; id <= graph.numPoints; id++)
+				out.writeInt(rank[id]);
+			for(int a = 0; a < numArcs; a++){
+				out.writeInt(arcA[a]);
+				out.writeInt(arcB[a]);
+				out.writeInt(arcWeight[a]);
+				out.writeInt(arcEdge[a]);
+				out.writeInt(arcFirst[a]);
+				out.writeInt(arcSecond[a]);
+			}
+			out.close();
+		}
+		catch(IOException e){
+			System.err.println("Error in writing \"" + fileName + "\"!\n"
+					+ e + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read a hierarchy written by write().
+	 * @param fileName the file to read
+	 * @param graph the graph the hierarchy was built from
+	 * @return the hierarchy
+	 * @throws IOException if the file can't be read, or doesn't match the
+	 * graph
+	 */
+	public static ContractionHierarchy load(String fileName, PathGraph graph)
+		throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(new File(fileName))));
+		try{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(fileName
+						+ " isn't a (version " + VERSION + ") hierarchy file");
+			if(in.readInt() != graph.numPoints)
+				throw new IOException(fileName
+						+ " was built from a different graph");
+
+			ContractionHierarchy ch = new ContractionHierarchy(graph);
+			ch.setNumArcs(in.readInt());
+			ch.numCore = in.readInt();
+			ch.rank = new int[graph.numPoints + 1];
+			for(int id = 1; id <= graph.numPoints; id++)
+				ch.rank[id] = in.readInt();
+			for(int a = 0; a < ch.numArcs; a++){
+				ch.arcA[a] = in.readInt();
+				ch.arcB[a] = in.readInt();
+				ch.arcWeight[a] = in.readInt();
+				ch.arcEdge[a] = in.readInt();
+				ch.arcFirst[a] = in.readInt();
+				ch.arcSecond[a] = in.readInt();
+			}
+			ch.buildSearchGraph();
+			return(ch);
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Allocate the arc arrays.
+	 */
+	private void setNumArcs(int n)
+	{
+		numArcs = n;
+		arcA = new int[n];
+		arcB = new int[n];
+		arcWeight = new int[n];
+		arcEdge = new int[n];
+		arcFirst = new int[n];
+		arcSecond = new int[n];
+	}
+
+	/**
+	 * Contracts a graph into a ContractionHierarchy.
+	 */
+	private static class Contractor
+	{
+		private PathGraph graph;
+
+		// all arcs so far
+		private IntList arcA = new IntList(1024);
+		private IntList arcB = new IntList(1024);
+		private IntList arcWeight = new IntList(1024);
+		private IntList arcEdge = new IntList(1024);
+		private IntList arcFirst = new IntList(1024);
+		private IntList arcSecond = new IntList(1024);
+
+		// arcs at each GraphPoint (including ones to contracted points,
+		// which are skipped)
+		private IntList [] arcs;
+		private boolean [] contracted;
+		// how many of each GraphPoint's neighbors have been contracted
+		private int [] contractedNeighbors;
+
+		// witness search state
+		private long [] dist;
+		private int [] reached;
+		private int stamp = 0;
+		private IndexedHeap witnessHeap;
+
+		// neighbors of the point being contracted, and the lightest arc to
+		// each
+		private IntList neighbors = new IntList(16);
+		private IntList neighborArcs = new IntList(16);
+
+		// shortcuts found by the last shortcuts() call, as (neighbor index,
+		// neighbor index) pairs
+		private IntList pairs = new IntList(16);
+
+		Contractor(PathGraph graph)
+		{
+			this.graph = graph;
+			int n = graph.numPoints + 1;
+			arcs = new IntList[n];
+			for(int id = 1; id < n; id++)
+				arcs[id] = new IntList(4);
+			contracted = new boolean[n];
+			contractedNeighbors = new int[n];
+			dist = new long[n];
+			reached = new int[n];
+			witnessHeap = new IndexedHeap(n);
+
+			// one arc per pair of connected GraphPoints, for the lightest
+			// Edge between them (the first, if they weigh the same)
+			HashMap <Long, Integer> pairArc = new HashMap<Long, Integer>();
+			for(int v = 1; v <= graph.numPoints; v++){
+				for(int c = graph.offset[v]; c < graph.offset[v+1]; c++){
+					int w = graph.neighbor[c];
+					if(w <= v)
+						continue;
+					Long key = Long.valueOf(((long)v << 32) | w);
+					Integer old = pairArc.get(key);
+					if(old != null){
+						if(arcWeight.get(old) > graph.weight[c]){
+							arcWeight.data[old] = graph.weight[c];
+							arcEdge.data[old] = graph.edge[c];
+						}
+						continue;
+					}
+					pairArc.put(key, addArc(v, w, graph.weight[c],
+								graph.edge[c], -1, -1));
+				}
+			}
+		}
+
+		/**
+		 * Add an arc between a and b.
+		 */
+		private int addArc(int a, int b, int weight, int edge, int first,
+				int second)
+		{
+			int id = arcA.size;
+			arcA.add(a);
+			arcB.add(b);
+			arcWeight.add(weight);
+			arcEdge.add(edge);
+			arcFirst.add(first);
+			arcSecond.add(second);
+			arcs[a].add(id);
+			arcs[b].add(id);
+			return(id);
+		}
+
+		/**
+		 * Contract every GraphPoint we can, and make the hierarchy.
+		 */
+		ContractionHierarchy contract()
+		{
+			ContractionHierarchy ch = new ContractionHierarchy(graph);
+			ch.rank = new int[graph.numPoints + 1];
+
+			// edge differences are offset so they're never negative
+			final long OFFSET = Integer.MAX_VALUE;
+			IndexedHeap order = new IndexedHeap(graph.numPoints + 1);
+			for(int v = 1; v <= graph.numPoints; v++)
+				order.push(v, OFFSET + edgeDifference(v));
+
+			int nextRank = 0;
+			while(!order.isEmpty()){
+				int v = order.pop();
+				// it may have changed since it was put in line
+				long priority = OFFSET + edgeDifference(v);
+				if(!order.isEmpty() && priority > order.topKey()){
+					order.push(v, priority);
+					continue;
+				}
+				// never add a shortcut through a no-pass-through point;
+				// leave it for the core instead
+				if(!graph.passThrough[v] && pairs.size > 0)
+					continue;
+
+				for(int p = 0; p < pairs.size; p += 2){
+					int i = pairs.get(p), j = pairs.get(p+1);
+					int a = neighborArcs.get(i), b = neighborArcs.get(j);
+					addArc(neighbors.get(i), neighbors.get(j),
+							arcWeight.get(a) + arcWeight.get(b), 0, a, b);
+				}
+				contracted[v] = true;
+				ch.rank[v] = nextRank++;
+				for(int i = 0; i < neighbors.size; i++)
+					contractedNeighbors[neighbors.get(i)]++;
+			}
+
+			// everything left is the core
+			ch.numCore = graph.numPoints - nextRank;
+			for(int v = 1; v <= graph.numPoints; v++)
+				if(!contracted[v])
+					ch.rank[v] = nextRank++;
+
+			ch.setNumArcs(arcA.size);
+			System.arraycopy(arcA.data, 0, ch.arcA, 0, ch.numArcs);
+			System.arraycopy(arcB.data, 0, ch.arcB, 0, ch.numArcs);
+			System.arraycopy(arcWeight.data, 0, ch.arcWeight, 0, ch.numArcs);
+			System.arraycopy(arcEdge.data, 0, ch.arcEdge, 0, ch.numArcs);
+			System.arraycopy(arcFirst.data, 0, ch.arcFirst, 0, ch.numArcs);
+			System.arraycopy(arcSecond.data, 0, ch.arcSecond, 0,
+					ch.numArcs);
+			ch.buildSearchGraph();
+			return(ch);
+		}
+
+		/**
+		 * Work out the shortcuts contracting v would need (leaving them in
+		 * neighbors, neighborArcs and pairs), and return the edge difference.
+		 */
+		private int edgeDifference(int v)
+		{
+			findNeighbors(v);
+			shortcuts(v);
+			return(pairs.size/2 - neighbors.size + contractedNeighbors[v]);
+		}
+
+		/**
+		 * Find v's uncontracted neighbors, and the lightest arc to each.
+		 */
+		private void findNeighbors(int v)
+		{
+			neighbors.size = 0;
+			neighborArcs.size = 0;
+			IntList list = arcs[v];
+			for(int k = 0; k < list.size; k++){
+				int a = list.get(k);
+				int w = (arcA.get(a) == v) ? arcB.get(a) : arcA.get(a);
+				if(contracted[w] || w == v)
+					continue;
+				int i = 0;
+				while(i < neighbors.size && neighbors.get(i) != w)
+					i++;
+				if(i == neighbors.size){
+					neighbors.add(w);
+					neighborArcs.add(a);
+				}
+				else if(arcWeight.get(a) < arcWeight.get(neighborArcs.get(i)))
+					neighborArcs.data[i] = a;
+			}
+		}
+
+		/**
+		 * Find which pairs of v's neighbors need a shortcut through v: the
+		 * ones with no route between them at least as cheap that avoids v.
+		 */
+		private void shortcuts(int v)
+		{
+			pairs.size = 0;
+			for(int i = 0; i < neighbors.size; i++){
+				int u = neighbors.get(i);
+				long uv = arcWeight.get(neighborArcs.get(i));
+				long limit = 0;
+				for(int j = i + 1; j < neighbors.size; j++)
+					limit = Math.max(limit, uv + arcWeight.get(
+								neighborArcs.get(j)) + penalty(neighbors.get(j)));
+				if(i + 1 < neighbors.size)
+					witnessSearch(u, v, limit);
+
+				for(int j = i + 1; j < neighbors.size; j++){
+					int w = neighbors.get(j);
+					long through = uv + arcWeight.get(neighborArcs.get(j))
+						+ penalty(w);
+					if(reached[w] != stamp || dist[w] > through){
+						pairs.add(i);
+						pairs.add(j);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Penalty for going into w.
+		 */
+		private long penalty(int w)
+		{
+			return(graph.passThrough[w] ? 0
+					: ShortestPath.NO_PASS_THROUGH_PENALTY);
+		}
+
+		/**
+		 * Dijkstra from u over uncontracted GraphPoints other than v, until
+		 * everything within limit is settled (or WITNESS_LIMIT points are).
+		 */
+		private void witnessSearch(int u, int v, long limit)
+		{
+			stamp++;
+			witnessHeap.clear();
+			reached[u] = stamp;
+			dist[u] = 0;
+			witnessHeap.push(u, 0);
+			int settled = 0;
+			while(!witnessHeap.isEmpty() && settled < WITNESS_LIMIT){
+				if(witnessHeap.topKey() > limit)
+					break;
+				int x = witnessHeap.pop();
+				settled++;
+				IntList list = arcs[x];
+				for(int k = 0; k < list.size; k++){
+					int a = list.get(k);
+					int y = (arcA.get(a) == x) ? arcB.get(a) : arcA.get(a);
+					if(contracted[y] || y == v)
+						continue;
+					long d = dist[x] + arcWeight.get(a) + penalty(y);
+					if(reached[y] != stamp){
+						reached[y] = stamp;
+						dist[y] = d;
+						witnessHeap.push(y, d);
+					}
+					else if(d < dist[y] && witnessHeap.contains(y)){
+						dist[y] = d;
+						witnessHeap.decreaseKey(y, d);
+					}
+				}
+			}
+		}
+	}
+}
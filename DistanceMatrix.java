@@ -0,0 +1,251 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Precomputed route lengths between every pair of Locations.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The length of the shortest route between every pair of Locations, so
+ * "how far is it from A to B" is a lookup instead of a search. PathOptimize
+ * builds it (see build()) with one searchAll() per Location, spread over a
+ * ForkJoinPool, and writes it with write().
+ * <br><br>
+ * The file is made to be memory-mapped and read in place (see open()):
+ * <pre>
+ * int MAGIC, int VERSION, int n (the largest Location ID)
+ * n * n ints: the length from Location i to Location j, in pixels (the
+ *     Route.distance of ShortestPath's route), at ((i-1) * n + (j-1)),
+ *     or -1 if there is no route or either Location isn't in the graph
+ * </pre>
+ * With a few hundred Locations, that's about a megabyte.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class DistanceMatrix
+{
+	static final int MAGIC = 0x4C444D58;	// "LDMX"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 12;
+
+	/**
+	 * Number of rows (and columns): the largest Location ID.
+	 */
+	final int size;
+
+	// the lengths, row by row; either an array (just built) or the mapped
+	// file (opened)
+	private int [] lengths;
+	private ByteBuffer buf;
+
+	/**
+	 * Driver for testing DistanceMatrix: open a matrix file and print the
+	 * length between two Locations, or check a batch of random pairs against
+	 * ShortestPath.
+	 * @param args matrix file and two Location IDs (optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1){
+			System.err.println("Usage: java DistanceMatrix file [from to]");
+			return;
+		}
+		DistanceMatrix m = open(args[0]);
+		if(args.length == 3){
+			System.err.println(m.distance(Integer.parseInt(args[1]),
+						Integer.parseInt(args[2])));
+			return;
+		}
+
+		PathGraph g = PathGraph.load(ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges);
+		ShortestPath sp = new ShortestPath(g);
+		int [] locs = ShortestPath.locationIDs(g);
+		Random rand = new Random(1);
+		final int QUERIES = 10000;
+		int mismatches = 0;
+		for(int i = 0; i < QUERIES; i++){
+			int a = locs[rand.nextInt(locs.length)];
+			int b = locs[rand.nextInt(locs.length)];
+			Route r = sp.routeLocations(a, b);
+			if(m.distance(a, b) != (r == null ? -1 : r.distance))
+				mismatches++;
+		}
+		System.err.println(QUERIES + " random pairs checked against "
+				+ "ShortestPath: " + mismatches + " mismatches.");
+	}
+
+	/**
+	 * Create an empty matrix.
+	 */
+	private DistanceMatrix(int size)
+	{
+		this.size = size;
+	}
+
+	/**
+	 * Work out the length between every pair of Locations in a graph.
+	 * @param graph the graph
+	 * @param threads how many threads to search with
+	 * @return the matrix
+	 */
+	public static DistanceMatrix build(PathGraph graph, int threads)
+	{
+		DistanceMatrix m = new DistanceMatrix(graph.locationPoint.length - 1);
+		m.lengths = new int[m.size * m.size];
+		Arrays.fill(m.lengths, -1);
+
+		int [] locs = ShortestPath.locationIDs(graph);
+		ForkJoinPool pool = new ForkJoinPool(Math.max(threads, 1));
+		try{
+			pool.invoke(new RowTask(m, graph, locs, 0, locs.length));
+		}
+		finally{
+			pool.shutdown();
+		}
+		return(m);
+	}
+
+	/**
+	 * Fill in the rows for some Locations. Each row is written by only one
+	 * task, so the tasks don't need to lock anything.
+	 * @param graph the graph
+	 * @param locs IDs of all the Locations
+	 * @param from first (index in locs of the) Location to do
+	 * @param to one past the last one
+	 */
+	void fillRows(PathGraph graph, int [] locs, int from, int to)
+	{
+		ShortestPath sp = new ShortestPath(graph);
+		for(int i = from; i < to; i++){
+			int row = (locs[i] - 1) * size;
+			sp.searchAll(graph.pointOfLocation(locs[i]));
+			for(int j = 0; j < locs.length; j++){
+				int p = graph.pointOfLocation(locs[j]);
+				if(sp.isReached(p))
+					lengths[row + locs[j] - 1] = sp.lengthTo(p);
+			}
+		}
+	}
+
+	/**
+	 * Write the matrix to a file (see the class comment for the format).
+	 * @param fileName the file to write
+	 */
+	public void write(String fileName)
+	{
+		try{
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(
+							new FileOutputStream(new File(fileName))));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(size);
+			for(int i = 0; i < size * size; i++)
+				out.writeInt(lengths[i]);
+			out.close();
+		}
+		catch(IOException e){
+			System.err.println("Error in writing \"" + fileName + "\"!\n"
+					+ e + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Map a matrix written by write(). Nothing is read until it's asked for,
+	 * and the matrix can be shared between threads.
+	 * @param fileName the file to map
+	 * @return the matrix
+	 * @throws IOException if the file can't be read, or isn't a matrix
+	 */
+	public static DistanceMatrix open(String fileName) throws IOException
+	{
+		ByteBuffer buf = MappedGraph.map(fileName);
+		if(buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC
+				|| buf.getInt(4) != VERSION)
+			throw new IOException(fileName
+					+ " isn't a (version " + VERSION + ") distance matrix");
+		int size = buf.getInt(8);
+		if(buf.capacity() != HEADER_SIZE + 4L * size * size)
+			throw new IOException(fileName + " is the wrong size");
+		DistanceMatrix m = new DistanceMatrix(size);
+		m.buf = buf;
+		return(m);
+	}
+
+	/**
+	 * Get the length of the shortest route between two Locations.
+	 * @param fromLocation ID of the Location to start at
+	 * @param toLocation ID of the Location to go to
+	 * @return the length in pixels, or -1 if there is no route (or either
+	 * Location doesn't exist)
+	 */
+	public int distance(int fromLocation, int toLocation)
+	{
+		if(fromLocation < 1 || fromLocation > size
+				|| toLocation < 1 || toLocation > size)
+			return(-1);
+		int i = (fromLocation - 1) * size + (toLocation - 1);
+		if(lengths != null)
+			return(lengths[i]);
+		return(buf.getInt(HEADER_SIZE + 4 * i));
+	}
+}
+
+/**
+ * Fills in the rows of a DistanceMatrix for a range of Locations, splitting
+ * the range until it's small enough to do with one ShortestPath.
+ */
+class RowTask extends RecursiveAction
+{
+	final static long serialVersionUID = 1;
+
+	// Locations per task, so each search's working arrays get reused a few
+	// times
+	private static final int ROWS_PER_TASK = 8;
+
+	private DistanceMatrix matrix;
+	private PathGraph graph;
+	private int [] locs;
+	private int from, to;
+
+	/**
+	 * Create a task for the Locations from (inclusive) to to (exclusive).
+	 * @param matrix the matrix to fill in
+	 * @param graph the graph to search
+	 * @param locs IDs of all the Locations
+	 * @param from first (index in locs of the) Location to do
+	 * @param to one past the last one
+	 */
+	public RowTask(DistanceMatrix matrix, PathGraph graph, int [] locs,
+			int from, int to)
+	{
+		this.matrix = matrix;
+		this.graph = graph;
+		this.locs = locs;
+		this.from = from;
+		this.to = to;
+	}
+
+	protected void compute()
+	{
+		if(to - from <= ROWS_PER_TASK){
+			matrix.fillRows(graph, locs, from, to);
+			return;
+		}
+
+		int mid = (from + to) / 2;
+		RowTask left = new RowTask(matrix, graph, locs, from, mid);
+		left.fork();
+		new RowTask(matrix, graph, locs, mid, to).compute();
+		left.join();
+	}
+}
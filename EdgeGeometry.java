@@ -0,0 +1,238 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Encoding and decoding of Edge geometry in compact edge files.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for the delta-encoded Edge geometry in compact edge files (see
+ * PathOptimize.binaryWriteCompactEdges()).
+ * <br><br>
+ * When a compact edge file has the FLAG_DELTAS flag set, the points of each
+ * Edge are written as:
+ * <pre>
+ *   x, y of the first point (4-byte big-endian ints, like everything else)
+ *   dx, dy from the previous point, for each following point
+ * </pre>
+ * Each delta is zig-zag encoded (so small negative numbers are small too)
+ * and written as a varint: 7 bits per byte, least significant group first,
+ * with the high bit set on every byte but the last. Consecutive points on
+ * an Edge are usually only a few pixels apart, so most deltas take a single
+ * byte instead of four.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class EdgeGeometry
+{
+	/**
+	 * Compact edge file flag: Edge points are delta + varint encoded.
+	 */
+	static final int FLAG_DELTAS = 1;
+
+	/**
+	 * Zig-zag encode an int, mapping 0, -1, 1, -2, 2... to 0, 1, 2, 3, 4...
+	 * @param n the value to encode
+	 * @return the encoded value (to be treated as unsigned)
+	 */
+	public static int zigZag(int n)
+	{
+		return((n << 1) ^ (n >> 31));
+	}
+
+	/**
+	 * Undo zigZag().
+	 * @param n the encoded value
+	 * @return the original value
+	 */
+	public static int unZigZag(int n)
+	{
+		return((n >>> 1) ^ -(n & 1));
+	}
+
+	/**
+	 * Get the number of bytes writeVarint() writes for a value.
+	 * @param n the value (treated as unsigned)
+	 * @return the number of bytes, from 1 to 5
+	 */
+	public static int varintSize(int n)
+	{
+		int size = 1;
+		while((n & ~0x7F) != 0){
+			n >>>= 7;
+			size++;
+		}
+		return(size);
+	}
+
+	/**
+	 * Write a value as a varint.
+	 * @param out Output stream
+	 * @param n the value (treated as unsigned)
+	 * @throws IOException if the value can't be written
+	 */
+	public static void writeVarint(DataOutputStream out, int n)
+		throws IOException
+	{
+		while((n & ~0x7F) != 0){
+			out.writeByte((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	/**
+	 * Read a varint, advancing the buffer's position past it.
+	 * @param buf the buffer to read from
+	 * @return the value (to be treated as unsigned)
+	 */
+	public static int readVarint(ByteBuffer buf)
+	{
+		int n = 0;
+		int shift = 0;
+		byte b;
+		do{
+			b = buf.get();
+			n |= (b & 0x7F) << shift;
+			shift += 7;
+		} while(b < 0);
+		return(n);
+	}
+
+	/**
+	 * Get the number of bytes the given points take up, encoded.
+	 * @param xs x coordinates of the points
+	 * @param ys y coordinates of the points
+	 * @param numPoints number of points
+	 * @param deltas whether the points are delta + varint encoded
+	 * @return the size of the encoded points, in bytes
+	 */
+	public static int encodedSize(int [] xs, int [] ys, int numPoints,
+			boolean deltas)
+	{
+		if(!deltas || numPoints == 0)
+			return(2*4*numPoints);
+		int size = 2*4;
+		for(int i = 1; i < numPoints; i++){
+			size += varintSize(zigZag(xs[i] - xs[i-1]));
+			size += varintSize(zigZag(ys[i] - ys[i-1]));
+		}
+		return(size);
+	}
+
+	/**
+	 * Write the given points.
+	 * @param out Output stream
+	 * @param xs x coordinates of the points
+	 * @param ys y coordinates of the points
+	 * @param numPoints number of points
+	 * @param deltas whether to delta + varint encode the points
+	 * @throws IOException if the points can't be written
+	 */
+	public static void writePoints(DataOutputStream out, int [] xs, int [] ys,
+			int numPoints, boolean deltas) throws IOException
+	{
+		for(int i = 0; i < numPoints; i++){
+			if(!deltas || i == 0){
+				out.writeInt(xs[i]);
+				out.writeInt(ys[i]);
+			}
+			else{
+				writeVarint(out, zigZag(xs[i] - xs[i-1]));
+				writeVarint(out, zigZag(ys[i] - ys[i-1]));
+			}
+		}
+	}
+}
+
+/**
+ * Reads the points of an Edge out of a ByteBuffer one at a time, without
+ * creating a Point for each one. One cursor can be reused for any number of
+ * Edges:
+ * <pre>
+ *   cursor.reset(buf, offset, numPoints, deltas);
+ *   while(cursor.next())
+ *       draw(cursor.x(), cursor.y());
+ * </pre>
+ * The buffer itself is never modified (not even its position).
+ */
+class EdgePointCursor
+{
+	// the buffer we were last given, and our own duplicate of it (which has
+	// its own position, so reading doesn't disturb anyone else using it)
+	private ByteBuffer source;
+	private ByteBuffer buf;
+
+	private boolean deltas;
+	private int remaining;
+	private int x, y;
+	private boolean first;
+
+	/**
+	 * Start reading a new set of points.
+	 * @param source the buffer holding the points
+	 * @param offset where the first point starts in source
+	 * @param numPoints how many points there are
+	 * @param deltas whether the points are delta + varint encoded
+	 */
+	public void reset(ByteBuffer source, int offset, int numPoints,
+			boolean deltas)
+	{
+		if(this.source != source){
+			this.source = source;
+			buf = source.duplicate();
+		}
+		buf.position(offset);
+		this.deltas = deltas;
+		remaining = numPoints;
+		first = true;
+	}
+
+	/**
+	 * Move to the next point.
+	 * @return true if there was another point, false if we're done
+	 */
+	public boolean next()
+	{
+		if(remaining == 0)
+			return(false);
+		remaining--;
+		if(!deltas || first){
+			x = buf.getInt();
+			y = buf.getInt();
+			first = false;
+		}
+		else{
+			x += EdgeGeometry.unZigZag(EdgeGeometry.readVarint(buf));
+			y += EdgeGeometry.unZigZag(EdgeGeometry.readVarint(buf));
+		}
+		return(true);
+	}
+
+	/**
+	 * @return the x coordinate of the current point
+	 */
+	public int x()
+	{
+		return(x);
+	}
+
+	/**
+	 * @return the y coordinate of the current point
+	 */
+	public int y()
+	{
+		return(y);
+	}
+
+	/**
+	 * @return the position in the buffer just past the last point read
+	 */
+	public int position()
+	{
+		return(buf.position());
+	}
+}
@@ -0,0 +1,257 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Route search over a contraction hierarchy.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Finds shortest routes with a ContractionHierarchy: a search from each end
+ * that only follows arcs up in rank (or between core GraphPoints), stopping
+ * once neither search can find anything shorter than the best place they've
+ * met. The route found is unpacked back into Edges, and costs the same as
+ * ShortestPath's (the no-pass-through penalty is added for going into a
+ * GraphPoint, the same way BidirectionalPath adds it).
+ * <br><br>
+ * Searches for a single target (route(), routeLocations()) use the
+ * hierarchy; searchAll() has no target, so it's the same as ShortestPath's.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class HierarchyPath extends ShortestPath
+{
+	private ContractionHierarchy ch;
+
+	// state of the backward search; via[] and backVia[] hold arcs here, not
+	// connections
+	private long [] backDist;
+	private int [] backVia;
+	private int [] backFrom;
+	private int [] backReached;
+	private int [] backSettled;
+	private IndexedHeap backHeap;
+
+	// cost of the best route found so far, and the GraphPoint where its
+	// two halves meet
+	private long best;
+	private int meet;
+	// the GraphPoint the current search starts at
+	private int source;
+
+	// for unpacking routes
+	private IntList froms = new IntList(64);
+	private IntList edges = new IntList(64);
+
+	/**
+	 * Create a searcher for a hierarchy.
+	 * @param ch the hierarchy to search
+	 */
+	public HierarchyPath(ContractionHierarchy ch)
+	{
+		super(ch.graph);
+		this.ch = ch;
+		int n = graph.numPoints + 1;
+		backDist = new long[n];
+		backVia = new int[n];
+		backFrom = new int[n];
+		backReached = new int[n];
+		backSettled = new int[n];
+		backHeap = new IndexedHeap(n);
+	}
+
+	/**
+	 * Find the shortest route between two GraphPoints.
+	 * @param source ID of the GraphPoint to start at
+	 * @param target ID of the GraphPoint to go to
+	 * @return the route, or null if there is none
+	 */
+	public Route route(int source, int target)
+	{
+		startSearch();
+		this.source = source;
+		this.target = target;
+
+		reach(source, 0, -1, 0, 0);
+		backReached[target] = stamp;
+		backDist[target] = 0;
+		backVia[target] = -1;
+		backHeap.push(target, 0);
+
+		best = INFINITY;
+		meet = 0;
+		if(source == target){
+			best = 0;
+			meet = source;
+		}
+		boolean forward = true;
+		while(true){
+			boolean forwardDone = heap.isEmpty() || heap.topKey() >= best;
+			boolean backwardDone = backHeap.isEmpty()
+				|| backHeap.topKey() >= best;
+			if(forwardDone && backwardDone)
+				break;
+			if(forwardDone)
+				forward = false;
+			else if(backwardDone)
+				forward = true;
+
+			if(forward){
+				int v = heap.pop();
+				settledStamp[v] = stamp;
+				settled++;
+				relaxForward(v);
+			}
+			else{
+				int u = backHeap.pop();
+				backSettled[u] = stamp;
+				settled++;
+				relaxBackward(u);
+			}
+			forward = !forward;
+		}
+
+		if(best == INFINITY)
+			return(null);
+		return(unpackRoute(source, meet));
+	}
+
+	/**
+	 * Get ready for a new search (both ways).
+	 */
+	protected void startSearch()
+	{
+		int oldStamp = stamp;
+		super.startSearch();
+		if(stamp < oldStamp){
+			// the stamps started over
+			Arrays.fill(backReached, 0);
+			Arrays.fill(backSettled, 0);
+		}
+		backHeap.clear();
+	}
+
+	/**
+	 * Get the cost of an arc into GraphPoint w.
+	 */
+	private long arcCost(int a, int w)
+	{
+		if(graph.passThrough[w] || w == target)
+			return(ch.arcWeight[a]);
+		return(ch.arcWeight[a] + NO_PASS_THROUGH_PENALTY);
+	}
+
+	/**
+	 * Follow the search arcs out of v, forward. Anything that already costs
+	 * as much as the best route found so far is left alone.
+	 */
+	private void relaxForward(int v)
+	{
+		for(int k = ch.searchOffset[v]; k < ch.searchOffset[v+1]; k++){
+			int a = ch.searchArc[k];
+			int w = ch.otherEnd(a, v);
+			if(settledStamp[w] == stamp)
+				continue;
+			long d = dist[v] + arcCost(a, w);
+			if(d >= best)
+				continue;
+			if(!isReached(w) || d < dist[w]){
+				reach(w, d, a, v, d);
+				if(backReached[w] == stamp && d + backDist[w] < best){
+					best = d + backDist[w];
+					meet = w;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the penalty for going into GraphPoint x, which every route through
+	 * x (other than one starting or ending there) pays, even though the
+	 * backward search hasn't charged it yet. The backward heap is ordered by
+	 * distance plus this, so GraphPoints that can't be passed through don't
+	 * get settled (and their arcs followed) before they could possibly help.
+	 */
+	private long pending(int x)
+	{
+		if(graph.passThrough[x] || x == target || x == source)
+			return(0);
+		return(NO_PASS_THROUGH_PENALTY);
+	}
+
+	/**
+	 * Follow the search arcs out of u, backward (so each one goes into u).
+	 * Anything that already costs as much as the best route found so far is
+	 * left alone.
+	 */
+	private void relaxBackward(int u)
+	{
+		for(int k = ch.searchOffset[u]; k < ch.searchOffset[u+1]; k++){
+			int a = ch.searchArc[k];
+			int x = ch.otherEnd(a, u);
+			if(backSettled[x] == stamp)
+				continue;
+			long d = backDist[u] + arcCost(a, u);
+			long key = d + pending(x);
+			if(key >= best)
+				continue;
+			if(backReached[x] != stamp || d < backDist[x]){
+				if(isReached(x) && dist[x] + d < best){
+					best = dist[x] + d;
+					meet = x;
+				}
+				backDist[x] = d;
+				backVia[x] = a;
+				backFrom[x] = u;
+				if(backHeap.contains(x))
+					backHeap.decreaseKey(x, key);
+				else{
+					backReached[x] = stamp;
+					backHeap.push(x, key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Put together the route through meet, and unpack it into connections.
+	 */
+	private Route unpackRoute(int source, int meet)
+	{
+		froms.size = 0;
+		edges.size = 0;
+
+		// forward part: collect the arcs from meet back to the source, then
+		// unpack them in order
+		IntList arcs = new IntList(16);
+		for(int p = meet; via[p] != -1; p = from[p])
+			arcs.add(via[p]);
+		int p = source;
+		for(int i = arcs.size - 1; i >= 0; i--){
+			ch.unpack(arcs.get(i), p, froms, edges);
+			p = ch.otherEnd(arcs.get(i), p);
+		}
+
+		// backward part
+		for(int q = meet; backVia[q] != -1; q = backFrom[q])
+			ch.unpack(backVia[q], q, froms, edges);
+
+		int [] conns = new int[edges.size];
+		for(int i = 0; i < edges.size; i++)
+			conns[i] = connection(froms.get(i), edges.get(i));
+		return(new Route(graph, source, conns));
+	}
+
+	/**
+	 * Find the connection out of v along an Edge.
+	 */
+	private int connection(int v, int edge)
+	{
+		for(int c = graph.offset[v]; c < graph.offset[v+1]; c++)
+			if(graph.edge[c] == edge)
+				return(c);
+		throw new IllegalStateException("GraphPoint " + v
+				+ " isn't connected to Edge " + edge);
+	}
+}
@@ -0,0 +1,285 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Sweep-line candidate search for PathOptimize.intersections().
+ */
+
+import java.awt.Point;
+import java.util.*;
+
+/**
+ * Finds which PathPoints are worth testing against each other in
+ * PathOptimize.intersections().
+ * <br><br>
+ * Every connection between two PathPoints is a line segment. When the sweep
+ * is created, all of these segments are sorted by their left edge and swept
+ * from left to right, keeping a list of the segments the sweep line is
+ * currently crossing. Every pair of segments whose bounding rectangles touch
+ * is recorded. Two segments can only intersect if their rectangles do, so
+ * this is every pair that can pass PathOptimize.rectangleTest().
+ * <br><br>
+ * intersections() splits segments as it goes, but it only ever puts the new
+ * PathPoint inside the rectangles of the segments it splits. So every
+ * segment created later lies inside the rectangle of one of the original
+ * segments (its "family"). The sweep keeps track of which PathPoints belong
+ * to which family, and the candidates for a PathPoint are all the members of
+ * the families that touch its own. This is never smaller than the set of
+ * PathPoints that could pass the rectangle test, so intersections() does
+ * exactly what the old all-pairs loop did, without visiting every PathPoint
+ * for every other PathPoint.
+ * <br><br>
+ * This is the candidate search intersections() uses when
+ * PathOptimize.intersectCandidates is "sweep"; by default it uses the
+ * PathGrid the other geometry stages share. Both give the same result.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class IntersectionSweep
+{
+	// the PathPoints we were created from (intersections() adds to this)
+	private Vector <PathPoint> pathPoints;
+
+	// index of each PathPoint in pathPoints
+	private HashMap <PathPoint, Integer> indexOf;
+
+	// bounding rectangle of each original segment (family)
+	private int [] minX, minY, maxX, maxY;
+	private int numSegments;
+
+	// families whose rectangles touch each family (in CSR form:
+	// touching[touchingStart[s] .. touchingStart[s+1]-1])
+	private int [] touchingStart;
+	private int [] touching;
+
+	// the indices of the PathPoints that belong to each family
+	private Vector <IntList> members;
+
+	// the families each PathPoint (by index) belongs to
+	private Vector <IntList> families;
+
+	// scratch space for candidates(), so we don't reallocate every time
+	private int [] stamp = new int[0];
+	private int curStamp = 0;
+
+	/**
+	 * Number of pairs of segments whose rectangles touch.
+	 */
+	public int numPairs = 0;
+
+	/**
+	 * Create a sweep over all the connections of the given PathPoints.
+	 * @param pathPoints PathPoints to sweep (after condensePathPoints())
+	 */
+	public IntersectionSweep(Vector <PathPoint> pathPoints)
+	{
+		this.pathPoints = pathPoints;
+		indexOf = new HashMap<PathPoint, Integer>(pathPoints.size() * 2);
+		families = new Vector<IntList>(pathPoints.size());
+		members = new Vector<IntList>();
+
+		for(int i = 0; i < pathPoints.size(); i++){
+			indexOf.put(pathPoints.get(i), i);
+			families.add(new IntList(2));
+		}
+
+		buildSegments();
+		sweep();
+	}
+
+	/**
+	 * Make a family out of every distinct connection between two different
+	 * PathPoints. (Repeated connections between the same pair end up in the
+	 * same family.)
+	 */
+	private void buildSegments()
+	{
+		HashSet<Long> seen = new HashSet<Long>();
+		IntList ends = new IntList(pathPoints.size() * 2);
+
+		for(int i = 0; i < pathPoints.size(); i++){
+			PathPoint p = pathPoints.get(i);
+			for(int c = 0; c < p.numConnectedPoints(); c++){
+				int j = indexOf.get(p.getConnectedPathPoint(c));
+				// only take each pair once, and skip PathPoints connected
+				// to themselves
+				if(j <= i)
+					continue;
+				if(!seen.add(((long)i << 32) | j))
+					continue;
+				ends.add(i);
+				ends.add(j);
+			}
+		}
+
+		numSegments = ends.size / 2;
+		minX = new int[numSegments];
+		minY = new int[numSegments];
+		maxX = new int[numSegments];
+		maxY = new int[numSegments];
+
+		for(int s = 0; s < numSegments; s++){
+			int i = ends.get(2*s);
+			int j = ends.get(2*s + 1);
+			Point a = pathPoints.get(i).point;
+			Point b = pathPoints.get(j).point;
+			minX[s] = Math.min(a.x, b.x);
+			minY[s] = Math.min(a.y, b.y);
+			maxX[s] = Math.max(a.x, b.x);
+			maxY[s] = Math.max(a.y, b.y);
+
+			IntList m = new IntList(2);
+			m.add(i);
+			m.add(j);
+			members.add(m);
+			families.get(i).add(s);
+			families.get(j).add(s);
+		}
+	}
+
+	/**
+	 * Sweep a vertical line from left to right across all the segments,
+	 * recording every pair whose rectangles touch (edges included, to match
+	 * PathOptimize.rectangleTest()).
+	 */
+	private void sweep()
+	{
+		// sort segments by their left edge
+		Integer [] order = new Integer[numSegments];
+		for(int s = 0; s < numSegments; s++)
+			order[s] = s;
+		Arrays.sort(order, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return (minX[a] < minX[b]) ? -1
+						: ((minX[a] == minX[b]) ? 0 : 1);
+			}
+		});
+
+		// segments currently under the sweep line
+		int [] active = new int[16];
+		int numActive = 0;
+
+		// pairs found, two ints (both segments) per pair
+		IntList pairs = new IntList(numSegments * 2);
+
+		for(Integer boxed : order){
+			int s = boxed;
+			int x = minX[s];
+
+			// drop the segments the sweep line has passed, and test the
+			// new segment against all that remain
+			int kept = 0;
+			for(int k = 0; k < numActive; k++){
+				int a = active[k];
+				if(maxX[a] < x)
+					continue;
+				active[kept++] = a;
+				if(minY[a] <= maxY[s] && minY[s] <= maxY[a]){
+					pairs.add(a);
+					pairs.add(s);
+				}
+			}
+			numActive = kept;
+
+			if(numActive == active.length)
+				active = Arrays.copyOf(active, active.length * 2);
+			active[numActive++] = s;
+		}
+		numPairs = pairs.size / 2;
+
+		// turn the pair list into a per-segment adjacency list
+		touchingStart = new int[numSegments + 1];
+		for(int k = 0; k < pairs.size; k++)
+			touchingStart[pairs.get(k) + 1]++;
+		for(int s = 0; s < numSegments; s++)
+			touchingStart[s + 1] += touchingStart[s];
+		touching = new int[pairs.size];
+		int [] fill = Arrays.copyOf(touchingStart, numSegments);
+		for(int k = 0; k < pairs.size; k += 2){
+			int a = pairs.get(k);
+			int b = pairs.get(k + 1);
+			touching[fill[a]++] = b;
+			touching[fill[b]++] = a;
+		}
+	}
+
+	/**
+	 * Register a PathPoint that was just appended to pathPoints.
+	 * @param pi the new PathPoint
+	 */
+	public void addPathPoint(PathPoint pi)
+	{
+		indexOf.put(pi, pathPoints.size() - 1);
+		families.add(new IntList(2));
+	}
+
+	/**
+	 * Record that the segment p1-p2 has been split at pi (see
+	 * PathOptimize.twoWayIntersectReplace()). pi joins the segment's family.
+	 * @param p1 One end of a line segment
+	 * @param p2 The other end of a line segment
+	 * @param pi A point on the line between p1 and p2
+	 */
+	public void split(PathPoint p1, PathPoint p2, PathPoint pi)
+	{
+		int i1 = indexOf.get(p1);
+		int i2 = indexOf.get(p2);
+		int ii = indexOf.get(pi);
+		IntList f1 = families.get(i1);
+		IntList f2 = families.get(i2);
+		IntList fi = families.get(ii);
+
+		// we don't know exactly which family p1-p2 came from, but it's one
+		// both ends belong to. Joining all of them is harmless.
+		for(int a = 0; a < f1.size; a++){
+			int s = f1.get(a);
+			if(!f2.contains(s) || fi.contains(s))
+				continue;
+			members.get(s).add(ii);
+			fi.add(s);
+		}
+	}
+
+	/**
+	 * Get the indices (in pathPoints) of all PathPoints that might have a
+	 * connection intersecting one of the given PathPoint's connections.
+	 * @param p the PathPoint to find candidates for
+	 * @param after only return indices greater than this
+	 * @return the candidate indices, in increasing order
+	 */
+	public int[] candidates(PathPoint p, int after)
+	{
+		if(stamp.length < pathPoints.size())
+			stamp = new int[pathPoints.size() * 2];
+		curStamp++;
+
+		IntList found = new IntList(16);
+		IntList own = families.get(indexOf.get(p));
+		for(int a = 0; a < own.size; a++){
+			int s = own.get(a);
+			collect(s, after, found);
+			for(int t = touchingStart[s]; t < touchingStart[s+1]; t++)
+				collect(touching[t], after, found);
+		}
+
+		int [] ret = Arrays.copyOf(found.data, found.size);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * Add the members of a family to a candidate list, skipping ones we've
+	 * already added and ones not after the given index.
+	 */
+	private void collect(int s, int after, IntList found)
+	{
+		IntList m = members.get(s);
+		for(int k = 0; k < m.size; k++){
+			int i = m.get(k);
+			if(i <= after || stamp[i] == curStamp)
+				continue;
+			stamp[i] = curStamp;
+			found.add(i);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Parallel search for crossing segments, split up by map tiles.
+ */
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Looks for every pair of crossing segments (connections between
+ * PathPoints) in parallel, before PathOptimize.intersections() starts
+ * changing anything.
+ * <br><br>
+ * The map is cut into square tiles of grid cells, and each PathPoint belongs
+ * to the tile its point is in. One task per tile tests that tile's
+ * PathPoints against their neighbors with
+ * PathOptimize.intersectionPoint(), the same test intersections() uses.
+ * A crossing whose segments are in different tiles is found from both sides,
+ * so crossings are kept in a sorted set keyed by the pair of segments, which
+ * drops the duplicates and doesn't depend on which task finished first.
+ * <br><br>
+ * Nothing is rewired here. intersections() does all of that itself, one
+ * PathPoint at a time in its usual order, using what we found to skip the
+ * PathPoints that can't have anything to do. That makes the output the same
+ * for any number of threads.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class IntersectionTiles
+{
+	/**
+	 * Width and height of a tile, in grid cells.
+	 */
+	static final int TILE_CELLS = 16;
+
+	// what we're searching
+	private PathOptimize optimizer;
+	private Vector <PathPoint> pathPoints;
+	private PathGrid grid;
+	private HashMap <PathPoint, Integer> indexOf;
+
+	// the indices (in pathPoints) of the PathPoints in each tile
+	private Vector <IntList> tiles;
+
+	/**
+	 * Number of distinct crossings found by the last findCrossings().
+	 */
+	public int numCrossings = 0;
+
+	/**
+	 * Split the given PathPoints up into tiles.
+	 * @param optimizer the PathOptimize whose intersectionPoint() to use
+	 * @param pathPoints the PathPoints to search
+	 * @param grid the grid holding pathPoints and all their connections
+	 * @param indexOf the index of every PathPoint in pathPoints
+	 */
+	public IntersectionTiles(PathOptimize optimizer,
+			Vector <PathPoint> pathPoints, PathGrid grid,
+			HashMap <PathPoint, Integer> indexOf)
+	{
+		this.optimizer = optimizer;
+		this.pathPoints = pathPoints;
+		this.grid = grid;
+		this.indexOf = indexOf;
+
+		int numTiles = grid.numTiles(TILE_CELLS);
+		tiles = new Vector<IntList>(numTiles);
+		for(int t = 0; t < numTiles; t++)
+			tiles.add(new IntList(8));
+		for(int i = 0; i < pathPoints.size(); i++)
+			tiles.get(grid.tileOf(pathPoints.get(i).point, TILE_CELLS)).add(i);
+	}
+
+	/**
+	 * Find every crossing, using the given number of threads.
+	 * @param threads how many threads to use
+	 * @return for each PathPoint in pathPoints (by index), whether it is
+	 * the end of a segment that crosses another one
+	 */
+	public boolean[] findCrossings(int threads)
+	{
+		TreeSet<Crossing> crossings;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try{
+			crossings = pool.invoke(new TileTask(this, 0, tiles.size()));
+		}
+		finally{
+			pool.shutdown();
+		}
+
+		boolean [] crossed = new boolean[pathPoints.size()];
+		for(Crossing c : crossings){
+			crossed[c.a1] = crossed[c.a2] = true;
+			crossed[c.t1] = crossed[c.t2] = true;
+		}
+		numCrossings = crossings.size();
+		return(crossed);
+	}
+
+	/**
+	 * Find the crossings of the segments starting at the PathPoints in one
+	 * tile. This is the same set of tests intersections() makes for each
+	 * active point, but it stops at nothing and changes nothing.
+	 * @param tile the tile to search
+	 * @return the crossings found
+	 */
+	TreeSet<Crossing> crossingsIn(int tile)
+	{
+		TreeSet<Crossing> found = new TreeSet<Crossing>();
+		IntList members = tiles.get(tile);
+		IntersectionBatchEvent batch =
+			IntersectionBatchEvent.start("tiles", tile);
+		long tested = 0, crossed = 0;
+
+		for(int m = 0; m < members.size; m++){
+			PathPoint ap1 = pathPoints.get(members.get(m));
+			for(PathPoint tp1 : grid.segmentNeighbors(ap1)){
+				if(tp1.equals(ap1))
+					continue;
+				for(int a = 0; a < ap1.numConnectedPoints(); a++){
+					PathPoint ap2 = ap1.getConnectedPathPoint(a);
+					if(tp1.equals(ap2) || ap1.equals(ap2))
+						continue;
+					if(!ap1.allowLink(ap2))
+						continue;
+					double activeSlope = PathOptimize.getSlope(ap1, ap2);
+
+					for(int t = 0; t < tp1.numConnectedPoints(); t++){
+						PathPoint tp2 = tp1.getConnectedPathPoint(t);
+						tested++;
+						if(optimizer.intersectionPoint(ap1, ap2, activeSlope,
+								tp1, tp2) == null)
+							continue;
+						crossed++;
+						found.add(new Crossing(indexOf.get(ap1),
+								indexOf.get(ap2), indexOf.get(tp1),
+								indexOf.get(tp2)));
+					}
+				}
+			}
+		}
+		batch.finish(members.size, tested, crossed);
+		return(found);
+	}
+}
+
+/**
+ * Searches a range of tiles, splitting the range in half until there's just
+ * one tile left.
+ */
+class TileTask extends RecursiveTask<TreeSet<Crossing>>
+{
+	final static long serialVersionUID = 1;
+
+	private IntersectionTiles tiles;
+	private int from, to;
+
+	/**
+	 * Create a task for the tiles from (inclusive) to to (exclusive).
+	 * @param tiles the tiles to search
+	 * @param from first tile to search
+	 * @param to one past the last tile to search
+	 */
+	public TileTask(IntersectionTiles tiles, int from, int to)
+	{
+		this.tiles = tiles;
+		this.from = from;
+		this.to = to;
+	}
+
+	protected TreeSet<Crossing> compute()
+	{
+		if(to - from <= 1){
+			if(to == from)
+				return(new TreeSet<Crossing>());
+			return(tiles.crossingsIn(from));
+		}
+
+		int mid = (from + to) / 2;
+		TileTask left = new TileTask(tiles, from, mid);
+		left.fork();
+		TreeSet<Crossing> found = new TileTask(tiles, mid, to).compute();
+		found.addAll(left.join());
+		return(found);
+	}
+}
+
+/**
+ * A pair of crossing segments, by the indices of their end PathPoints. The
+ * ends of each segment, and the two segments, are kept in a fixed order, so
+ * the same crossing found from either segment is equal.
+ */
+class Crossing implements Comparable<Crossing>
+{
+	// ends of the first and second segments
+	int a1, a2, t1, t2;
+
+	/**
+	 * Create a crossing between segment p1-p2 and segment q1-q2.
+	 * @param p1 one end of the first segment
+	 * @param p2 the other end of the first segment
+	 * @param q1 one end of the second segment
+	 * @param q2 the other end of the second segment
+	 */
+	public Crossing(int p1, int p2, int q1, int q2)
+	{
+		int pMin = Math.min(p1, p2), pMax = Math.max(p1, p2);
+		int qMin = Math.min(q1, q2), qMax = Math.max(q1, q2);
+		if(pMin < qMin || (pMin == qMin && pMax <= qMax)){
+			a1 = pMin; a2 = pMax; t1 = qMin; t2 = qMax;
+		}
+		else{
+			a1 = qMin; a2 = qMax; t1 = pMin; t2 = pMax;
+		}
+	}
+
+	public int compareTo(Crossing o)
+	{
+		if(a1 != o.a1) return(a1 < o.a1 ? -1 : 1);
+		if(a2 != o.a2) return(a2 < o.a2 ? -1 : 1);
+		if(t1 != o.t1) return(t1 < o.t1 ? -1 : 1);
+		if(t2 != o.t2) return(t2 < o.t2 ? -1 : 1);
+		return(0);
+	}
+
+	public boolean equals(Object o)
+	{
+		return(o instanceof Crossing && compareTo((Crossing)o) == 0);
+	}
+
+	public int hashCode()
+	{
+		return(((a1 * 31 + a2) * 31 + t1) * 31 + t2);
+	}
+}
@@ -0,0 +1,34 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Helpers for writing JSON.
+ */
+
+/**
+ * What RouteServer and OptimizeReport share in writing JSON by hand.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class JSON
+{
+	/**
+	 * Append a string, quoted and escaped.
+	 * @param json where to append it
+	 * @param s the string
+	 */
+	static void appendString(StringBuilder json, String s)
+	{
+		json.append('"');
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if(c < ' ')
+				json.append(String.format("\\u%04x", (int)c));
+			else
+				json.append(c);
+		}
+		json.append('"');
+	}
+}
@@ -0,0 +1,132 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * A* search over a PathGraph, with landmark bounds (ALT).
+ */
+
+/**
+ * Finds shortest routes through a PathGraph with A*, like AStarPath, but
+ * estimates the distance left with Landmarks instead of the straight line.
+ * <br><br>
+ * Write d(L, v) for the distance from landmark L to v (penalties for the
+ * GraphPoints in between, but not the ends) and p(v) for v's penalty. Any
+ * route from L to t can go through v, paying p(v) on the way, so
+ * d(L, t) <= d(L, v) + p(v) + d(v, t), and the same the other way around.
+ * That gives two bounds on what's left from v to the target t:
+ * <pre>
+ *     d(L, t) - d(L, v) - p(v)    and    d(L, v) - d(L, t) - p(t)
+ * </pre>
+ * The estimate is the biggest of those (and 0) over the few landmarks that
+ * give the best bound at the source. It's never more than a connection's
+ * cost plus the estimate at its other end, so a GraphPoint's distance is
+ * final as soon as it comes off the heap, and the routes found cost the same
+ * as ShortestPath's. And if a landmark can reach one end of a route but not
+ * the other, there's no route at all, so there's no need to search.
+ * <br><br>
+ * Searches for a single target (route(), routeLocations()) use the estimate;
+ * searchAll() has no target, so it's the same as ShortestPath's.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class LandmarkPath extends ShortestPath
+{
+	/**
+	 * Most landmarks to estimate with in one search. Using all of them makes
+	 * every estimate cost more than the better bounds save.
+	 */
+	static final int ACTIVE_LANDMARKS = 4;
+
+	private Landmarks landmarks;
+
+	// the landmarks used by the current search, their distances to the
+	// target, and the target's penalty
+	private int [] active = new int[ACTIVE_LANDMARKS];
+	private long [] toTarget = new long[ACTIVE_LANDMARKS];
+	private int numActive = 0;
+	private long targetPenalty;
+
+	/**
+	 * Create a searcher that uses the given landmarks.
+	 * @param landmarks the landmarks (and the graph they're in)
+	 */
+	public LandmarkPath(Landmarks landmarks)
+	{
+		super(landmarks.graph);
+		this.landmarks = landmarks;
+	}
+
+	/**
+	 * Pick the landmarks for a search, then run it. If a landmark can reach
+	 * one end but not the other, there's no route, and nothing to search.
+	 */
+	protected void search(int source, int target)
+	{
+		numActive = 0;
+		if(target != 0 && !chooseLandmarks(source, target)){
+			startSearch();
+			this.target = target;
+			return;
+		}
+		super.search(source, target);
+	}
+
+	/**
+	 * Pick the (up to) ACTIVE_LANDMARKS landmarks that give the best bound
+	 * on the distance from source to target.
+	 * @return false if the landmarks show there's no route
+	 */
+	private boolean chooseLandmarks(int source, int target)
+	{
+		targetPenalty = landmarks.penalty(target);
+		long [] bound = new long[ACTIVE_LANDMARKS];
+		for(int i = 0; i < landmarks.numLandmarks; i++){
+			long ds = landmarks.distance(i, source);
+			long dt = landmarks.distance(i, target);
+			if((ds == INFINITY) != (dt == INFINITY))
+				return(false);
+			if(ds == INFINITY)
+				continue;
+			long b = Math.max(dt - ds - landmarks.penalty(source),
+					ds - dt - targetPenalty);
+
+			// insert it in order, dropping the worst if there's no room
+			int j = numActive;
+			if(j == ACTIVE_LANDMARKS){
+				if(b <= bound[j - 1])
+					continue;
+				j--;
+			}
+			else
+				numActive++;
+			for(; j > 0 && bound[j - 1] < b; j--){
+				bound[j] = bound[j - 1];
+				active[j] = active[j - 1];
+				toTarget[j] = toTarget[j - 1];
+			}
+			bound[j] = b;
+			active[j] = i;
+			toTarget[j] = dt;
+		}
+		return(true);
+	}
+
+	/**
+	 * Estimate the distance from GraphPoint w to the target, from the
+	 * landmarks picked for this search.
+	 */
+	protected long estimate(int w)
+	{
+		long best = 0;
+		long penalty = landmarks.penalty(w);
+		for(int j = 0; j < numActive; j++){
+			long dw = landmarks.distance(active[j], w);
+			if(dw == INFINITY)
+				continue;
+			long dt = toTarget[j];
+			best = Math.max(best, Math.max(dt - dw - penalty,
+					dw - dt - targetPenalty));
+		}
+		return(best);
+	}
+}
@@ -0,0 +1,386 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Landmarks and their distances, for goal-directed (ALT) routing.
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A few GraphPoints picked as landmarks, and the distance from each one to
+ * every GraphPoint, which LandmarkPath uses to bound how far the target
+ * still is (A*, Landmarks and the Triangle inequality: "ALT"). Building them
+ * takes one search per landmark, so unlike a ContractionHierarchy they're
+ * cheap to redo whenever the graph changes.
+ * <br><br>
+ * The distances are route costs the way ShortestPath counts them: the
+ * weights, plus the no-pass-through penalty for every GraphPoint in between
+ * (but not either end). That cost isn't quite a metric, since going through
+ * a GraphPoint can cost its penalty on top of the two halves of the route,
+ * so the bounds in LandmarkPath subtract the penalty where that can happen.
+ * In exchange they know when every route to the target has to go through a
+ * building, which the straight line AStarPath uses can't.
+ * <br><br>
+ * Landmarks are picked in the largest connected part of the graph, one of
+ * two ways:
+ * <ul>
+ * <li>farthest: each landmark is the GraphPoint farthest from all the ones
+ * picked so far.</li>
+ * <li>avoid: each landmark is found by growing a shortest-path tree from a
+ * random GraphPoint, weighting each GraphPoint by how badly the landmarks
+ * picked so far bound its distance from the root, and going down to a leaf
+ * of the heaviest subtree that doesn't already have a landmark in it.</li>
+ * </ul>
+ * The file (see write()) is:
+ * <pre>
+ * int MAGIC, int VERSION, int n (number of GraphPoints), int k (landmarks)
+ * k ints: the landmarks' GraphPoint IDs
+ * for each GraphPoint ID from 1 to n:
+ *     k ints: the distance from each landmark, or -1 if it can't be reached
+ * </pre>
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class Landmarks
+{
+	static final int MAGIC = 0x414C544C;	// "ALTL"
+	static final int VERSION = 1;
+
+	/**
+	 * Distance stored for a GraphPoint a landmark can't reach.
+	 */
+	static final int UNREACHED = -1;
+
+	/**
+	 * The graph the landmarks are in.
+	 */
+	final PathGraph graph;
+	/**
+	 * Number of landmarks.
+	 */
+	final int numLandmarks;
+	/**
+	 * GraphPoint ID of each landmark.
+	 */
+	final int [] landmark;
+	/**
+	 * Distance from each landmark to each GraphPoint: from landmark i to
+	 * GraphPoint v is at [v * numLandmarks + i].
+	 */
+	final int [] dist;
+
+	/**
+	 * Driver for testing Landmarks: load the binary files, and pick
+	 * landmarks both ways, timing each.
+	 * @param args number of landmarks (optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int k = (args.length > 0 ? Integer.parseInt(args[0]) : 16);
+		PathGraph g = PathGraph.load(ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges);
+		for(int pass = 0; pass < 2; pass++){
+			boolean avoid = (pass == 1);
+			long start = System.nanoTime();
+			Landmarks lm = build(g, k, avoid);
+			System.err.println((avoid ? "avoid" : "farthest") + ": "
+					+ (System.nanoTime() - start) / 1000000 + "ms, landmarks "
+					+ Arrays.toString(lm.landmark));
+		}
+	}
+
+	/**
+	 * Create landmarks with room for their distances.
+	 */
+	private Landmarks(PathGraph graph, int numLandmarks)
+	{
+		this.graph = graph;
+		this.numLandmarks = numLandmarks;
+		landmark = new int[numLandmarks];
+		dist = new int[(graph.numPoints + 1) * numLandmarks];
+	}
+
+	/**
+	 * Pick landmarks in a graph, and find their distances.
+	 * @param graph the graph
+	 * @param k how many landmarks to pick (8 to 16 is about right)
+	 * @param avoid pick them with "avoid" (true) or "farthest" (false)
+	 * @return the landmarks
+	 */
+	public static Landmarks build(PathGraph graph, int k, boolean avoid)
+	{
+		Landmarks lm = new Landmarks(graph, k);
+		ShortestPath sp = new ShortestPath(graph);
+		Random rand = new Random(1);
+		int [] component = lm.largestComponent();
+
+		// both ways start at the GraphPoint farthest from somewhere random
+		sp.searchAll(component[rand.nextInt(component.length)]);
+		int first = 0;
+		for(int v : component)
+			if(first == 0 || lm.cost(sp, v) > lm.cost(sp, first))
+				first = v;
+		lm.addLandmark(sp, 0, first);
+
+		// how far each GraphPoint is from the nearest landmark, for farthest
+		long [] nearest = new long[graph.numPoints + 1];
+		Arrays.fill(nearest, ShortestPath.INFINITY);
+		for(int i = 1; i < k; i++){
+			int next;
+			if(avoid)
+				next = lm.avoidLandmark(sp, i,
+						component[rand.nextInt(component.length)]);
+			else{
+				next = 0;
+				for(int v : component){
+					nearest[v] = Math.min(nearest[v], lm.distance(i - 1, v));
+					if(next == 0 || nearest[v] > nearest[next])
+						next = v;
+				}
+			}
+			lm.addLandmark(sp, i, next);
+		}
+		return(lm);
+	}
+
+	/**
+	 * Get the cost of the route the last search found to v, not counting
+	 * v's own penalty.
+	 */
+	private long cost(ShortestPath sp, int v)
+	{
+		long d = sp.distanceTo(v);
+		if(d == ShortestPath.INFINITY || d == 0)
+			return(d);
+		return(d - penalty(v));
+	}
+
+	/**
+	 * @param v a GraphPoint ID
+	 * @return the penalty for going into (or through) v
+	 */
+	long penalty(int v)
+	{
+		return(graph.passThrough[v] ? 0 : ShortestPath.NO_PASS_THROUGH_PENALTY);
+	}
+
+	/**
+	 * Make v landmark number i, and find its distances.
+	 */
+	private void addLandmark(ShortestPath sp, int i, int v)
+	{
+		landmark[i] = v;
+		sp.searchAll(v);
+		for(int w = 1; w <= graph.numPoints; w++){
+			long d = cost(sp, w);
+			if(d == ShortestPath.INFINITY)
+				d = UNREACHED;
+			else if(d > Integer.MAX_VALUE)
+				throw new IllegalStateException("Distance from landmark "
+						+ v + " to GraphPoint " + w + " is too big");
+			dist[w * numLandmarks + i] = (int)d;
+		}
+	}
+
+	/**
+	 * @param i a landmark number
+	 * @param v a GraphPoint ID
+	 * @return the distance from landmark i to v, or INFINITY if it can't
+	 * be reached
+	 */
+	long distance(int i, int v)
+	{
+		int d = dist[v * numLandmarks + i];
+		return(d == UNREACHED ? ShortestPath.INFINITY : d);
+	}
+
+	/**
+	 * Get the best lower bound the first n landmarks give on the cost of
+	 * a route from v to t (see LandmarkPath).
+	 * @param v a GraphPoint ID
+	 * @param t a GraphPoint ID
+	 * @param n how many landmarks to use
+	 * @return the bound
+	 */
+	long lowerBound(int v, int t, int n)
+	{
+		long best = 0;
+		for(int i = 0; i < n; i++){
+			long dv = distance(i, v), dt = distance(i, t);
+			if(dv == ShortestPath.INFINITY || dt == ShortestPath.INFINITY)
+				continue;
+			best = Math.max(best, Math.max(dt - dv - penalty(v),
+					dv - dt - penalty(t)));
+		}
+		return(best);
+	}
+
+	/**
+	 * Pick landmark number i with "avoid", growing the tree from root.
+	 */
+	private int avoidLandmark(ShortestPath sp, int i, int root)
+	{
+		int n = graph.numPoints;
+		sp.searchAll(root);
+
+		// the tree, as lists of children, and its GraphPoints from the root
+		// down
+		int [] firstChild = new int[n + 1];
+		int [] nextSibling = new int[n + 1];
+		for(int v = 1; v <= n; v++){
+			int p = sp.fromPoint(v);
+			if(p != 0){
+				nextSibling[v] = firstChild[p];
+				firstChild[p] = v;
+			}
+		}
+		int [] order = new int[n];
+		int size = 0;
+		order[size++] = root;
+		for(int j = 0; j < size; j++)
+			for(int c = firstChild[order[j]]; c != 0; c = nextSibling[c])
+				order[size++] = c;
+
+		boolean [] isLandmark = new boolean[n + 1];
+		for(int j = 0; j < i; j++)
+			isLandmark[landmark[j]] = true;
+
+		// weigh each subtree, from the leaves up; a subtree with a landmark
+		// in it weighs nothing
+		long [] weight = new long[n + 1];
+		boolean [] hasLandmark = new boolean[n + 1];
+		for(int j = size - 1; j >= 0; j--){
+			int v = order[j];
+			hasLandmark[v] = isLandmark[v];
+			weight[v] = cost(sp, v) - lowerBound(root, v, i);
+			for(int c = firstChild[v]; c != 0; c = nextSibling[c]){
+				hasLandmark[v] |= hasLandmark[c];
+				weight[v] += weight[c];
+			}
+		}
+		int best = root;
+		for(int j = 0; j < size; j++){
+			int v = order[j];
+			if(hasLandmark[v])
+				weight[v] = 0;
+			if(weight[v] > weight[best])
+				best = v;
+		}
+
+		// go down to a leaf, always into the heaviest subtree
+		while(firstChild[best] != 0){
+			int heaviest = firstChild[best];
+			for(int c = firstChild[best]; c != 0; c = nextSibling[c])
+				if(weight[c] > weight[heaviest])
+					heaviest = c;
+			best = heaviest;
+		}
+		return(best);
+	}
+
+	/**
+	 * Find the largest connected part of the graph.
+	 * @return its GraphPoint IDs
+	 */
+	private int[] largestComponent()
+	{
+		int n = graph.numPoints;
+		int [] label = new int[n + 1];
+		int [] stack = new int[n];
+		int bestLabel = 0, bestSize = 0;
+		int labels = 0;
+		for(int s = 1; s <= n; s++){
+			if(label[s] != 0)
+				continue;
+			labels++;
+			int size = 0, top = 0;
+			stack[top++] = s;
+			label[s] = labels;
+			while(top > 0){
+				int v = stack[--top];
+				size++;
+				for(int c = graph.offset[v]; c < graph.offset[v+1]; c++){
+					int w = graph.neighbor[c];
+					if(label[w] == 0){
+						label[w] = labels;
+						stack[top++] = w;
+					}
+				}
+			}
+			if(size > bestSize){
+				bestSize = size;
+				bestLabel = labels;
+			}
+		}
+
+		int [] component = new int[bestSize];
+		int size = 0;
+		for(int v = 1; v <= n; v++)
+			if(label[v] == bestLabel)
+				component[size++] = v;
+		return(component);
+	}
+
+	/**
+	 * Write the landmarks to a file (see the class comment for the format).
+	 * @param fileName the file to write
+	 */
+	public void write(String fileName)
+	{
+		try{
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(
+							new FileOutputStream(new File(fileName))));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(graph.numPoints);
+			out.writeInt(numLandmarks);
+			for(int i = 0; i < numLandmarks; i++)
+				out.writeInt(landmark[i]);
+			for(int j = numLandmarks; j < dist.length; j++)
+				out.writeInt(dist[j]);
+			out.close();
+		}
+		catch(IOException e){
+			System.err.println("Error in writing \"" + fileName + "\"!\n"
+					+ e + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read landmarks written by write().
+	 * @param fileName the file to read
+	 * @param graph the graph the landmarks were picked in
+	 * @return the landmarks
+	 * @throws IOException if the file can't be read, or doesn't match the
+	 * graph
+	 */
+	public static Landmarks load(String fileName, PathGraph graph)
+		throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(new File(fileName))));
+		try{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(fileName
+						+ " isn't a (version " + VERSION + ") landmark file");
+			if(in.readInt() != graph.numPoints)
+				throw new IOException(fileName
+						+ " was built from a different graph");
+
+			Landmarks lm = new Landmarks(graph, in.readInt());
+			for(int i = 0; i < lm.numLandmarks; i++)
+				lm.landmark[i] = in.readInt();
+			for(int j = lm.numLandmarks; j < lm.dist.length; j++)
+				lm.dist[j] = in.readInt();
+			return(lm);
+		}
+		finally{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Histogram of latencies (or any other non-negative values).
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in buckets that get wider as the values get bigger, the way
+ * HdrHistogram does, so percentiles come out within about 1.6% of the real
+ * value whether it's a few nanoseconds or a few minutes, in a fixed 30K or
+ * so of memory. Values below 128 each get a bucket of their own; above
+ * that, each power of two is split into 64 buckets.
+ * <br><br>
+ * Recording is lock-free, so any number of threads can record into one
+ * histogram at once. Reading while they do gives numbers that may be a few
+ * values behind, but never wrong by more than that.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class LatencyHistogram
+{
+	// buckets per power of two (above the first SUB_BUCKETS values)
+	private static final int HALF = 64;
+	private static final int SUB_BUCKETS = 2 * HALF;
+	// values 0..127, then 64 buckets for each shift from 1 to 57
+	private static final int NUM_BUCKETS = SUB_BUCKETS + 57 * HALF;
+
+	private AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Get the bucket a value goes in.
+	 */
+	static int bucket(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return((int)value);
+		// shift the value down to between 64 and 127
+		int shift = 57 - Long.numberOfLeadingZeros(value);
+		return(SUB_BUCKETS + (shift - 1) * HALF
+				+ (int)(value >>> shift) - HALF);
+	}
+
+	/**
+	 * Get the biggest value that goes in a bucket.
+	 */
+	static long highestValue(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return(bucket);
+		int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+		long m = (bucket - SUB_BUCKETS) % HALF + HALF;
+		return(((m + 1) << shift) - 1);
+	}
+
+	/**
+	 * Record a value.
+	 * @param value the value (negative values count as 0)
+	 */
+	public void record(long value)
+	{
+		if(value < 0)
+			value = 0;
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while(value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long count()
+	{
+		return(count.get());
+	}
+
+	/**
+	 * @return mean of the values recorded, or 0 if there are none
+	 */
+	public double mean()
+	{
+		long n = count.get();
+		return(n == 0 ? 0 : (double)sum.get() / n);
+	}
+
+	/**
+	 * @return biggest value recorded, or 0 if there are none
+	 */
+	public long max()
+	{
+		return(max.get());
+	}
+
+	/**
+	 * Get a percentile of the values recorded: the value that many percent
+	 * of them are no bigger than (to within a bucket; the top of the bucket
+	 * is given).
+	 * @param percent the percentile, from 0 to 100
+	 * @return the value, or 0 if there are none
+	 */
+	public long percentile(double percent)
+	{
+		long n = 0;
+		long [] snapshot = new long[NUM_BUCKETS];
+		for(int i = 0; i < NUM_BUCKETS; i++){
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if(n == 0)
+			return(0);
+
+		long rank = Math.max(1, (long)Math.ceil(percent / 100 * n));
+		long seen = 0;
+		for(int i = 0; i < NUM_BUCKETS; i++){
+			seen += snapshot[i];
+			if(seen >= rank)
+				return(Math.min(highestValue(i), max.get()));
+		}
+		return(max.get());
+	}
+}
@@ -0,0 +1,362 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Location search by name, building code or keyword.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Finds Locations from what a user typed, the same way the Perl frontend
+ * does (LoadData::findLocation(), fuzzyFind(), findKeyword() and friends):
+ * an exact name or building code first, then the shortest name or alias that
+ * has the text in it, and then fuzzy matching word by word. The rules,
+ * weights and cutoffs are all the same, so the same text finds the same
+ * Locations.
+ * <br><br>
+ * An index doesn't change after it's built, so it can be shared between
+ * threads.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class LocationIndex
+{
+	// words tokenize() drops
+	private static final Set<String> STOP_WORDS = new HashSet<String>(
+			Arrays.asList("and", "of", "by", "for"));
+
+	/**
+	 * IDs of the Locations, in the order they were read.
+	 */
+	final int [] ids;
+
+	// name, building code (lowercase) and aliases of each Location, by
+	// index in ids
+	private String [] names;
+	private String [] codes;
+	private String [][] aliases;
+
+	// Location indices by normalized name, by building code, and by keyword
+	private HashMap<String, Integer> byName = new HashMap<String, Integer>();
+	private HashMap<String, Integer> byCode = new HashMap<String, Integer>();
+	private HashMap<String, Vector<Integer>> byKeyword =
+		new HashMap<String, Vector<Integer>>();
+	// index in ids of each Location ID
+	private HashMap<Integer, Integer> indexOf = new HashMap<Integer, Integer>();
+
+	/**
+	 * Driver for testing LocationIndex: search the Locations in the binary
+	 * files for whatever's on the command line.
+	 * @param args the search text
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		MappedGraph g = MappedGraph.open(ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges);
+		LocationIndex index = new LocationIndex(g);
+		StringBuffer text = new StringBuffer();
+		for(int i = 0; i < args.length; i++)
+			text.append(i > 0 ? " " : "").append(args[i]);
+		for(LocationMatch m : index.search(text.toString()))
+			System.err.println(m.id + " (" + index.name(m.id) + "): "
+					+ m.text + " [" + m.matches + "]");
+	}
+
+	/**
+	 * Index the Locations in a set of binary files.
+	 * @param g the files
+	 */
+	public LocationIndex(MappedGraph g)
+	{
+		int n = g.numLocations();
+		ids = new int[n];
+		names = new String[n];
+		codes = new String[n];
+		aliases = new String[n][];
+		for(int i = 0; i < n; i++){
+			int id = g.locationID(i);
+			ids[i] = id;
+			indexOf.put(id, i);
+			names[i] = g.locationName(id);
+			byName.put(nameNormalize(names[i]), i);
+			codes[i] = g.locationBuildingCode(id).toLowerCase();
+			if(codes[i].length() > 0)
+				byCode.put(codes[i], i);
+			for(String key : tokenize(g.locationKeywords(id))){
+				Vector<Integer> locs = byKeyword.get(key);
+				if(locs == null){
+					locs = new Vector<Integer>();
+					byKeyword.put(key, locs);
+				}
+				locs.add(i);
+			}
+			aliases[i] = new String[g.locationNumAliases(id)];
+			for(int a = 0; a < aliases[i].length; a++)
+				aliases[i][a] = g.locationAlias(id, a);
+		}
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the Location's name, or null if there's no such Location
+	 */
+	public String name(int id)
+	{
+		Integer i = indexOf.get(id);
+		return(i == null ? null : names[i]);
+	}
+
+	/**
+	 * Find the Locations that match what a user typed: a keyword search if
+	 * it starts with "keyword:" (see findKeyword()), otherwise the same as
+	 * findLocation().
+	 * @param text the search text
+	 * @return the matches, best first
+	 */
+	public Vector<LocationMatch> search(String text)
+	{
+		if(isKeyword(text))
+			return(findKeyword(getKeyText(text)));
+		return(findLocation(text));
+	}
+
+	/**
+	 * Find the best match for a search string, or a few possible matches if
+	 * there's no single good one (LoadData::findLocation()).
+	 * @param text the search text
+	 * @return the matches, best first
+	 */
+	public Vector<LocationMatch> findLocation(String text)
+	{
+		Vector<LocationMatch> found = new Vector<LocationMatch>();
+		if(text.length() == 0)
+			return(found);
+
+		Integer i = byName.get(nameNormalize(text));
+		if(i == null)
+			i = byCode.get(text.toLowerCase());
+		if(i != null){
+			found.add(new LocationMatch(ids[i], 1.0, names[i]));
+			return(found);
+		}
+		return(fuzzyFind(text));
+	}
+
+	/**
+	 * Look for substrings of names and aliases, and then fuzzy matches word
+	 * by word (LoadData::fuzzyFind()).
+	 * @param text the search text
+	 * @return the matches, best first
+	 */
+	public Vector<LocationMatch> fuzzyFind(String text)
+	{
+		Vector<LocationMatch> found = new Vector<LocationMatch>();
+		Vector<String> searchToks = tokenize(text);
+		String searchNorm = nameNormalize(text);
+
+		// first look for straight substrings, and keep the shortest
+		int bestIndex = -1;
+		String bestText = null;
+		for(int i = 0; i < ids.length; i++){
+			for(String s : namesOf(i)){
+				if(nameNormalize(s).indexOf(searchNorm) != -1
+						&& (bestText == null
+							|| s.length() < bestText.length())){
+					bestIndex = i;
+					bestText = s;
+				}
+			}
+		}
+		if(bestText != null){
+			found.add(new LocationMatch(ids[bestIndex], 1.0, bestText));
+			return(found);
+		}
+
+		// then fuzzy matching
+		for(int i = 0; i < ids.length; i++){
+			for(String s : namesOf(i)){
+				Vector<String> locToks = tokenize(s);
+				double matches = 0;
+				int matched = 0;
+				for(String l : locToks){
+					for(String t : searchToks){
+						// exact match: that's all for this word
+						if(t.equals(l)){
+							matches += 1;
+							matched++;
+							break;
+						}
+						// substring and superstring
+						else if(l.indexOf(t) != -1){
+							matches += (double)t.length() / l.length();
+							matched++;
+						}
+						else if(t.indexOf(l) != -1){
+							matches += (double)l.length() / t.length();
+							matched++;
+						}
+						// fuzzy matching, ignoring the really bad matches, so
+						// long names don't add up a lot of them
+						else{
+							double strength = 1
+								- (double)editDistance(t, l) / t.length();
+							if(strength > 0.5){
+								matches += strength;
+								matched++;
+							}
+						}
+					}
+				}
+
+				// favor matching more words, and lightly penalize longer
+				// names
+				if(matches > 0 && matched > 0){
+					matches = matches * matches / locToks.size();
+					if(matches >= 0.05)
+						found.add(new LocationMatch(ids[i], matches, s));
+				}
+			}
+		}
+
+		Collections.sort(found);
+		// one good enough match, or the top five
+		if(found.size() > 0 && found.get(0).matches > 0.5)
+			found.setSize(1);
+		else if(found.size() > 5)
+			found.setSize(5);
+		return(found);
+	}
+
+	/**
+	 * Find all the Locations with a keyword (LoadData::findKeyword()).
+	 * @param keyword the keyword, normalized, without "keyword:"
+	 * @return the matches, in the order they were read
+	 */
+	public Vector<LocationMatch> findKeyword(String keyword)
+	{
+		Vector<LocationMatch> found = new Vector<LocationMatch>();
+		Vector<Integer> locs = byKeyword.get(keyword);
+		if(locs != null)
+			for(int i : locs)
+				found.add(new LocationMatch(ids[i], 1.0, names[i]));
+		return(found);
+	}
+
+	/**
+	 * Get a Location's name followed by its aliases.
+	 */
+	private Vector<String> namesOf(int i)
+	{
+		Vector<String> all = new Vector<String>(aliases[i].length + 1);
+		all.add(names[i]);
+		all.addAll(Arrays.asList(aliases[i]));
+		return(all);
+	}
+
+	/**
+	 * Lowercase a name and take out everything but letters, digits and
+	 * underscores (LoadData::nameNormalize()).
+	 * @param name the name
+	 * @return the normalized name
+	 */
+	static String nameNormalize(String name)
+	{
+		return(name.toLowerCase().replaceAll("\\W", ""));
+	}
+
+	/**
+	 * Split a string into normalized words, dropping the empty ones,
+	 * duplicates and very common ones (LoadData::tokenize()).
+	 * @param text the string
+	 * @return the words
+	 */
+	static Vector<String> tokenize(String text)
+	{
+		LinkedHashSet<String> toks = new LinkedHashSet<String>();
+		text = text.replaceAll("(\\w)'(\\w)", "$1$2");
+		for(String s : text.split("[\\s/]+")){
+			String norm = nameNormalize(s);
+			if(norm.length() > 0 && !STOP_WORDS.contains(norm))
+				toks.add(norm);
+		}
+		return(new Vector<String>(toks));
+	}
+
+	/**
+	 * @param text a search string
+	 * @return whether it's a keyword search (LoadData::isKeyword())
+	 */
+	static boolean isKeyword(String text)
+	{
+		return(text.toLowerCase().startsWith("keyword:"));
+	}
+
+	/**
+	 * @param text a keyword search string
+	 * @return the keyword in it (LoadData::getKeyText())
+	 */
+	static String getKeyText(String text)
+	{
+		return(nameNormalize(text.substring(8)));
+	}
+
+	/**
+	 * Get the edit distance between two strings: how many characters have to
+	 * be put in, taken out or changed to turn one into the other (what
+	 * Text::WagnerFischer::distance() gives with costs [0, 1, 1]).
+	 */
+	static int editDistance(String a, String b)
+	{
+		int [] prev = new int[b.length() + 1];
+		int [] cur = new int[b.length() + 1];
+		for(int j = 0; j <= b.length(); j++)
+			prev[j] = j;
+		for(int i = 1; i <= a.length(); i++){
+			cur[0] = i;
+			for(int j = 1; j <= b.length(); j++){
+				int change = prev[j-1]
+					+ (a.charAt(i-1) == b.charAt(j-1) ? 0 : 1);
+				cur[j] = Math.min(change, Math.min(prev[j], cur[j-1]) + 1);
+			}
+			int [] tmp = prev;
+			prev = cur;
+			cur = tmp;
+		}
+		return(prev[b.length()]);
+	}
+}
+
+/**
+ * A Location found by a search: its ID, how good a match it is (1.0 is as
+ * good as it gets), and the name or alias that matched.
+ */
+class LocationMatch implements Comparable<LocationMatch>
+{
+	final int id;
+	final double matches;
+	final String text;
+
+	/**
+	 * Create a match.
+	 * @param id the Location's ID
+	 * @param matches how good a match it is
+	 * @param text the name or alias that matched
+	 */
+	public LocationMatch(int id, double matches, String text)
+	{
+		this.id = id;
+		this.matches = matches;
+		this.text = text;
+	}
+
+	/**
+	 * Better matches sort first.
+	 */
+	public int compareTo(LocationMatch other)
+	{
+		return(Double.compare(other.matches, matches));
+	}
+}
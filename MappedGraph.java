@@ -0,0 +1,514 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Read-only, memory-mapped access to the binary files written by
+ * PathOptimize.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Memory-maps the three binary files written by PathOptimize.binaryWrite()
+ * (points, locations and edges) and reads fields straight out of them.
+ * Nothing is turned into GraphPoint, Edge or Location objects: every
+ * accessor takes an ID and returns a primitive, and Edge points are read
+ * with an EdgePointCursor. The only thing built when the files are opened is
+ * a table of where each point and location record starts (those records
+ * have variable length), which is one quick pass over each file.
+ * <br><br>
+ * Both edge file formats are understood: the old fixed-width one
+ * (binEdgeData.dat) and the compact one, with or without delta-encoded
+ * points (see PathOptimize.binaryWriteCompactEdges()).
+ * <br><br>
+ * All IDs are 1-based, like they are in the files. A MappedGraph never
+ * changes after it's opened, so it's safe to share between threads (but an
+ * EdgePointCursor isn't).
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class MappedGraph
+{
+	// sizes of the fixed parts of records
+	private static final int INT = 4;
+	private static final int POINT_HEADER = 5*INT + 1;
+	private static final int CONNECTION_SIZE = 3*INT;
+	private static final int EDGE_HEADER = 4*INT;
+
+	// the mapped files
+	private ByteBuffer points;
+	private ByteBuffer locations;
+	private ByteBuffer edges;
+
+	// where each GraphPoint's record starts (index ID - 1)
+	private int [] pointOffset;
+
+	// where each Location's record starts (index ID; -1 if there's no
+	// Location with that ID), and the Location IDs in file order
+	private int [] locationOffset;
+	private int [] locationIDs;
+
+	// edge file layout
+	private boolean compactEdges;
+	private boolean deltaEdges;
+	private int numEdges;
+	// fixed-width format: bytes per edge
+	private int edgeSize;
+
+	/**
+	 * Driver for testing MappedGraph: open the binary files (the ones
+	 * ShowImage writes, or the ones given on the command line) and print
+	 * what's in them.
+	 * @param args point file, location file and edge file (optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		String pointFile = ScrollablePicture.binaryPoints;
+		String locFile = ScrollablePicture.binaryLocations;
+		String edgeFile = ScrollablePicture.binaryEdges;
+		if(args.length == 3)
+		{
+			pointFile = args[0];
+			locFile = args[1];
+			edgeFile = args[2];
+		}
+
+		long start = System.nanoTime();
+		MappedGraph g = open(pointFile, locFile, edgeFile);
+		long elapsed = System.nanoTime() - start;
+
+		long connections = 0;
+		long edgePoints = 0;
+		for(int id = 1; id <= g.numPoints(); id++)
+			connections += g.numConnections(id);
+		for(int id = 1; id <= g.numEdges(); id++)
+			edgePoints += g.edgeNumPoints(id);
+
+		System.err.println("Opened " + pointFile + ", " + locFile + ", "
+				+ edgeFile + " in " + (elapsed / 1000) + "us");
+		System.err.println(g.numPoints() + " GraphPoints, " + connections
+				+ " connections");
+		System.err.println(g.numEdges() + " Edges (" + (g.compactEdges
+				? (g.deltaEdges ? "compact, deltas" : "compact")
+				: "fixed-width") + "), " + edgePoints + " points");
+		System.err.println(g.numLocations() + " Locations");
+	}
+
+	/**
+	 * Open and map the given files.
+	 * @param pointFile the GraphPoint file (binPointData.dat)
+	 * @param locFile the Location file (binLocationData.dat)
+	 * @param edgeFile the Edge file, in either format
+	 * @return a MappedGraph reading from the files
+	 * @throws IOException if a file can't be read or isn't in the right
+	 * format
+	 */
+	public static MappedGraph open(String pointFile, String locFile,
+			String edgeFile) throws IOException
+	{
+		MappedGraph g = new MappedGraph();
+		g.points = map(pointFile);
+		g.locations = map(locFile);
+		g.edges = map(edgeFile);
+		g.indexPoints();
+		g.indexLocations();
+		g.readEdgeHeader(edgeFile);
+		return(g);
+	}
+
+	/**
+	 * Map a whole file read-only.
+	 */
+	static ByteBuffer map(String fileName) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try{
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			return(buf);
+		}
+		finally{
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * Find where each GraphPoint record starts.
+	 */
+	private void indexPoints() throws IOException
+	{
+		IntList offsets = new IntList(1024);
+		int pos = 0;
+		int limit = points.limit();
+		while(pos + POINT_HEADER <= limit){
+			if(points.getInt(pos) != offsets.size + 1)
+				throw new IOException("GraphPoint IDs aren't contiguous at "
+						+ "byte " + pos);
+			offsets.add(pos);
+			pos += POINT_HEADER
+				+ CONNECTION_SIZE * points.getInt(pos + 4*INT + 1);
+		}
+		pointOffset = Arrays.copyOf(offsets.data, offsets.size);
+	}
+
+	/**
+	 * Find where each Location record starts.
+	 */
+	private void indexLocations()
+	{
+		IntList offsets = new IntList(256);
+		IntList ids = new IntList(256);
+		int maxID = 0;
+		int pos = 0;
+		int limit = locations.limit();
+		while(pos < limit){
+			int id = locations.getInt(pos);
+			ids.add(id);
+			offsets.add(pos);
+			maxID = Math.max(maxID, id);
+
+			// ID, x, y, displayName, GraphPoint ID, then the strings
+			pos += 3*INT + 1 + INT;
+			pos = skipString(pos);  // name
+			pos = skipString(pos);  // building code
+			pos = skipString(pos);  // keywords
+			int aliases = locations.getInt(pos);
+			pos += INT;
+			for(int a = 0; a < aliases; a++)
+				pos = skipString(pos);
+		}
+
+		locationIDs = Arrays.copyOf(ids.data, ids.size);
+		locationOffset = new int[maxID + 1];
+		Arrays.fill(locationOffset, -1);
+		for(int i = 0; i < ids.size; i++)
+			locationOffset[ids.get(i)] = offsets.get(i);
+	}
+
+	/**
+	 * Work out which edge file format we have.
+	 */
+	private void readEdgeHeader(String edgeFile) throws IOException
+	{
+		if(edges.limit() >= 4*INT && edges.getInt(0) == Edge.COMPACT_MAGIC){
+			if(edges.getInt(INT) != Edge.COMPACT_VERSION)
+				throw new IOException(edgeFile + ": unknown edge file version "
+						+ edges.getInt(INT));
+			compactEdges = true;
+			deltaEdges = (edges.getInt(2*INT) & EdgeGeometry.FLAG_DELTAS) != 0;
+			numEdges = edges.getInt(3*INT);
+		}
+		else{
+			compactEdges = false;
+			edgeSize = edges.getInt(0);
+			numEdges = (edgeSize > 0) ? (edges.limit() - INT) / edgeSize : 0;
+		}
+	}
+
+	/**
+	 * Get the position just past a string written by
+	 * GraphPoint.binWriteStr() that starts at pos.
+	 */
+	private int skipString(int pos)
+	{
+		return(pos + INT + 2*locations.getInt(pos));
+	}
+
+	/**
+	 * Read a string written by GraphPoint.binWriteStr() that starts at pos.
+	 */
+	private String readString(int pos)
+	{
+		int len = locations.getInt(pos);
+		char [] chars = new char[len];
+		for(int i = 0; i < len; i++)
+			chars[i] = locations.getChar(pos + INT + 2*i);
+		return(new String(chars));
+	}
+
+	// ================ GraphPoints ================
+
+	/**
+	 * @return the number of GraphPoints (IDs run from 1 to this)
+	 */
+	public int numPoints()
+	{
+		return(pointOffset.length);
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return the GraphPoint's x coordinate
+	 */
+	public int pointX(int id)
+	{
+		return(points.getInt(pointOffset[id-1] + INT));
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return the GraphPoint's y coordinate
+	 */
+	public int pointY(int id)
+	{
+		return(points.getInt(pointOffset[id-1] + 2*INT));
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return the ID of the (displayed) Location at the GraphPoint, or 0 if
+	 * there isn't one
+	 */
+	public int pointLocationID(int id)
+	{
+		return(points.getInt(pointOffset[id-1] + 3*INT));
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return whether routes may pass through the GraphPoint
+	 */
+	public boolean canPassThrough(int id)
+	{
+		return(points.get(pointOffset[id-1] + 4*INT) != 0);
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return the number of connections (Edges) the GraphPoint has
+	 */
+	public int numConnections(int id)
+	{
+		return(points.getInt(pointOffset[id-1] + 4*INT + 1));
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @param k which connection (from 0 to numConnections(id) - 1)
+	 * @return the ID of the GraphPoint at the other end of the connection
+	 */
+	public int connectionPoint(int id, int k)
+	{
+		return(points.getInt(connection(id, k)));
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @param k which connection (from 0 to numConnections(id) - 1)
+	 * @return the weight (length) of the connection
+	 */
+	public int connectionWeight(int id, int k)
+	{
+		return(points.getInt(connection(id, k) + INT));
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @param k which connection (from 0 to numConnections(id) - 1)
+	 * @return the ID of the Edge making up the connection
+	 */
+	public int connectionEdge(int id, int k)
+	{
+		return(points.getInt(connection(id, k) + 2*INT));
+	}
+
+	/**
+	 * Get where connection k of a GraphPoint starts.
+	 */
+	private int connection(int id, int k)
+	{
+		return(pointOffset[id-1] + POINT_HEADER + CONNECTION_SIZE*k);
+	}
+
+	// ================ Edges ================
+
+	/**
+	 * @return the number of Edges (IDs run from 1 to this)
+	 */
+	public int numEdges()
+	{
+		return(numEdges);
+	}
+
+	/**
+	 * Get where an Edge's record starts.
+	 */
+	private int edgeOffset(int id)
+	{
+		if(compactEdges)
+			return(edges.getInt(4*INT + INT*(id-1)));
+		return(INT + edgeSize*(id-1));
+	}
+
+	/**
+	 * @param id an Edge ID
+	 * @return the ID of the GraphPoint the Edge starts at
+	 */
+	public int edgeStart(int id)
+	{
+		return(edges.getInt(edgeOffset(id) + INT));
+	}
+
+	/**
+	 * @param id an Edge ID
+	 * @return the ID of the GraphPoint the Edge ends at
+	 */
+	public int edgeEnd(int id)
+	{
+		return(edges.getInt(edgeOffset(id) + 2*INT));
+	}
+
+	/**
+	 * @param id an Edge ID
+	 * @return the number of points in the Edge's path
+	 */
+	public int edgeNumPoints(int id)
+	{
+		return(edges.getInt(edgeOffset(id) + 3*INT));
+	}
+
+	/**
+	 * Point a cursor at the points of an Edge's path, from its start to its
+	 * end.
+	 * @param id an Edge ID
+	 * @param cursor the cursor to reset
+	 * @return the cursor
+	 */
+	public EdgePointCursor edgePoints(int id, EdgePointCursor cursor)
+	{
+		int offset = edgeOffset(id);
+		cursor.reset(edges, offset + EDGE_HEADER,
+				edges.getInt(offset + 3*INT), deltaEdges);
+		return(cursor);
+	}
+
+	// ================ Locations ================
+
+	/**
+	 * @return the number of Locations
+	 */
+	public int numLocations()
+	{
+		return(locationIDs.length);
+	}
+
+	/**
+	 * @param index from 0 to numLocations() - 1
+	 * @return the ID of the index'th Location in the file
+	 */
+	public int locationID(int index)
+	{
+		return(locationIDs[index]);
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return whether there's a Location with that ID
+	 */
+	public boolean hasLocation(int id)
+	{
+		return(id > 0 && id < locationOffset.length
+				&& locationOffset[id] != -1);
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the Location's x coordinate
+	 */
+	public int locationX(int id)
+	{
+		return(locations.getInt(locationOffset[id] + INT));
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the Location's y coordinate
+	 */
+	public int locationY(int id)
+	{
+		return(locations.getInt(locationOffset[id] + 2*INT));
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return whether the Location's name is displayed
+	 */
+	public boolean locationDisplayName(int id)
+	{
+		return(locations.get(locationOffset[id] + 3*INT) != 0);
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the ID of the GraphPoint the Location is at
+	 */
+	public int locationPoint(int id)
+	{
+		return(locations.getInt(locationOffset[id] + 3*INT + 1));
+	}
+
+	/**
+	 * Get where a Location's name starts (the other strings follow it).
+	 */
+	private int locationStrings(int id)
+	{
+		return(locationOffset[id] + 4*INT + 1);
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the Location's name
+	 */
+	public String locationName(int id)
+	{
+		return(readString(locationStrings(id)));
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the Location's building code
+	 */
+	public String locationBuildingCode(int id)
+	{
+		return(readString(skipString(locationStrings(id))));
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the Location's keywords
+	 */
+	public String locationKeywords(int id)
+	{
+		return(readString(skipString(skipString(locationStrings(id)))));
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the number of aliases the Location has
+	 */
+	public int locationNumAliases(int id)
+	{
+		return(locations.getInt(
+				skipString(skipString(skipString(locationStrings(id))))));
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @param index which alias (from 0 to locationNumAliases(id) - 1)
+	 * @return the alias
+	 */
+	public String locationAlias(int id, int index)
+	{
+		int pos = skipString(skipString(skipString(locationStrings(id))))
+			+ INT;
+		for(int a = 0; a < index; a++)
+			pos = skipString(pos);
+		return(readString(pos));
+	}
+}
@@ -0,0 +1,192 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Timing, memory and object counts for a PathOptimize run.
+ */
+
+import java.io.*;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Keeps track of how long each stage of PathOptimize.run() takes, how much
+ * the heap grew (or shrank) during it, and how many of each kind of object
+ * there were, and writes it all out as JSON, so one release of the data can
+ * be compared against the next:
+ * <pre>
+ * {"date": "...", "totalMillis": 1234.5,
+ *  "stages": [{"name": "convertPointsToPathPoints", "millis": 12.3,
+ *              "heapDeltaBytes": 456789, "heapAfterBytes": 12345678}, ...],
+ *  "counts": {"pathPoints": 1234, ...}}
+ * </pre>
+ * Times come from System.nanoTime(). The heap is sampled (used memory, as
+ * Runtime gives it) at the start and end of each stage without forcing a
+ * garbage collection, so a delta is what a stage allocated and kept, minus
+ * whatever happened to be collected meanwhile.
+ * <br><br>
+ * Each stage is also a Flight Recorder event (see OptimizeStageEvent), so a
+ * recording of a run shows the stages alongside everything else in it.
+ * <br><br>
+ * Usage:
+ * <pre>
+ *   report.start("intersections");
+ *   ... the stage ...
+ *   report.end("pathPoints", pathPoints.size());
+ * </pre>
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class OptimizeReport
+{
+	/**
+	 * One stage's numbers.
+	 */
+	private static class Stage
+	{
+		String name;
+		long nanos;
+		long heapDelta;
+		long heapAfter;
+	}
+
+	private Vector<Stage> stages = new Vector<Stage>();
+	private LinkedHashMap<String, Long> counts =
+		new LinkedHashMap<String, Long>();
+	private Date date = new Date();
+	private long created = System.nanoTime();
+
+	// the stage running now
+	private String current = null;
+	private long startNanos;
+	private long startHeap;
+	private OptimizeStageEvent event;
+
+	/**
+	 * Get how many bytes of the heap are in use.
+	 */
+	private static long heapUsed()
+	{
+		Runtime rt = Runtime.getRuntime();
+		return(rt.totalMemory() - rt.freeMemory());
+	}
+
+	/**
+	 * Start timing a stage.
+	 * @param name the stage's name
+	 */
+	public void start(String name)
+	{
+		current = name;
+		event = new OptimizeStageEvent();
+		event.stage = name;
+		startHeap = heapUsed();
+		event.begin();
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Stop timing the stage start() was last called for.
+	 */
+	public void end()
+	{
+		end(null, 0);
+	}
+
+	/**
+	 * Stop timing the stage start() was last called for, and set the count
+	 * of what it made.
+	 * @param countName what it made (see count()), or null for nothing
+	 * @param records how many
+	 */
+	public void end(String countName, long records)
+	{
+		long elapsed = System.nanoTime() - startNanos;
+		if(current == null)
+			return;
+		event.end();
+		Stage s = new Stage();
+		s.name = current;
+		s.nanos = elapsed;
+		s.heapAfter = heapUsed();
+		s.heapDelta = s.heapAfter - startHeap;
+		stages.add(s);
+		if(countName != null)
+			count(countName, records);
+		if(event.shouldCommit()){
+			event.records = records;
+			event.heapDelta = s.heapDelta;
+			event.commit();
+		}
+		current = null;
+		event = null;
+	}
+
+	/**
+	 * Set a count (replacing it, if it was already set).
+	 * @param name what's counted
+	 * @param value how many
+	 */
+	public void count(String name, long value)
+	{
+		counts.put(name, value);
+	}
+
+	/**
+	 * Get the report as JSON.
+	 */
+	public String toJSON()
+	{
+		StringBuilder json = new StringBuilder();
+		json.append("{\"date\": ");
+		JSON.appendString(json, date.toString());
+		json.append(String.format(Locale.ROOT, ", \"totalMillis\": %.1f",
+					(System.nanoTime() - created) / 1e6));
+		json.append(",\n \"stages\": [");
+		for(int i = 0; i < stages.size(); i++){
+			Stage s = stages.get(i);
+			json.append(i > 0 ? ",\n  " : "\n  ");
+			json.append("{\"name\": ");
+			JSON.appendString(json, s.name);
+			json.append(String.format(Locale.ROOT, ", \"millis\": %.1f",
+						s.nanos / 1e6));
+			json.append(", \"heapDeltaBytes\": ").append(s.heapDelta);
+			json.append(", \"heapAfterBytes\": ").append(s.heapAfter);
+			json.append("}");
+		}
+		json.append("],\n \"counts\": {");
+		boolean first = true;
+		for(Map.Entry<String, Long> c : counts.entrySet()){
+			json.append(first ? "" : ", ");
+			JSON.appendString(json, c.getKey());
+			json.append(": ").append(c.getValue());
+			first = false;
+		}
+		json.append("}}\n");
+		return(json.toString());
+	}
+
+	/**
+	 * Write the report to a file, as JSON.
+	 * @param fileName the file to write
+	 * @return whether it was written
+	 */
+	public boolean write(String fileName)
+	{
+		try{
+			Writer out = new OutputStreamWriter(
+					new FileOutputStream(fileName), "UTF-8");
+			out.write(toJSON());
+			out.close();
+			return(true);
+		}
+		catch(IOException e){
+			System.err.println("Error in writing \"" + fileName + "\"!\n"
+					+ e + ": " + e.getMessage());
+			return(false);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Flight Recorder events for PathOptimize.
+ */
+
+import jdk.jfr.*;
+
+/**
+ * A Flight Recorder event for one stage of PathOptimize.run() (see
+ * OptimizeReport, which begins and commits them). Like every event here, it
+ * costs next to nothing unless a recording is running, so a run can be
+ * profiled (with allocation and lock events too) just by starting it with
+ * -XX:StartFlightRecording, or attaching jcmd JFR.start to it:
+ * <pre>
+ *   java -XX:StartFlightRecording=filename=optimize.jfr PathOptimize
+ *   jfr print --categories "UCSD Map" optimize.jfr
+ * </pre>
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+@Name("ucsdmap.OptimizeStage")
+@Label("PathOptimize Stage")
+@Category({"UCSD Map", "PathOptimize"})
+@Description("One stage of PathOptimize.run()")
+class OptimizeStageEvent extends Event
+{
+	@Label("Stage")
+	String stage;
+
+	@Label("Records")
+	@Description("Number of objects the stage left (PathPoints, "
+			+ "GraphPoints, Edges...), if it counts any")
+	long records;
+
+	@Label("Heap Delta")
+	@DataAmount
+	long heapDelta;
+}
+
+/**
+ * A batch of the crossing tests in PathOptimize.intersections(): either a
+ * run of active PathPoints in the sequential pass, or one tile in the
+ * parallel one (see IntersectionTiles).
+ */
+@Name("ucsdmap.IntersectionBatch")
+@Label("Intersection Batch")
+@Category({"UCSD Map", "PathOptimize"})
+@Description("Crossing tests for a batch of PathPoints")
+class IntersectionBatchEvent extends Event
+{
+	/**
+	 * Active PathPoints in each batch of the sequential pass.
+	 */
+	static final int BATCH_SIZE = 256;
+
+	@Label("Pass")
+	@Description("\"sequential\" or \"tiles\"")
+	String pass;
+
+	@Label("First")
+	@Description("Index of the first active PathPoint, or the tile")
+	int first;
+
+	@Label("Points")
+	@Description("Active PathPoints in the batch")
+	int points;
+
+	@Label("Pairs Tested")
+	long pairsTested;
+
+	@Label("Pairs Accepted")
+	@Description("Pairs of segments that crossed")
+	long pairsAccepted;
+
+	/**
+	 * Start a batch.
+	 * @param pass "sequential" or "tiles"
+	 * @param first index of the first active PathPoint, or the tile
+	 * @return the event, begun
+	 */
+	static IntersectionBatchEvent start(String pass, int first)
+	{
+		IntersectionBatchEvent e = new IntersectionBatchEvent();
+		e.pass = pass;
+		e.first = first;
+		e.begin();
+		return(e);
+	}
+
+	/**
+	 * Finish a batch.
+	 * @param points active PathPoints in it
+	 * @param pairsTested pairs of segments tested
+	 * @param pairsAccepted pairs that crossed
+	 */
+	void finish(int points, long pairsTested, long pairsAccepted)
+	{
+		end();
+		if(!shouldCommit())
+			return;
+		this.points = points;
+		this.pairsTested = pairsTested;
+		this.pairsAccepted = pairsAccepted;
+		commit();
+	}
+}
+
+/**
+ * A crossing PathOptimize.intersections() split two segments at, for
+ * debugging intersections. There's one for every crossing found, so it's
+ * off unless a recording turns it on:
+ * <pre>
+ *   -XX:StartFlightRecording=filename=optimize.jfr,+ucsdmap.Intersection#enabled=true
+ * </pre>
+ */
+@Name("ucsdmap.Intersection")
+@Label("Intersection")
+@Category({"UCSD Map", "PathOptimize"})
+@Description("Two segments split at their crossing")
+@Enabled(false)
+@StackTrace(false)
+class IntersectionEvent extends Event
+{
+	@Label("Active Segment")
+	String active;
+
+	@Label("Test Segment")
+	String test;
+
+	@Label("X")
+	int x;
+
+	@Label("Y")
+	int y;
+
+	@Label("Overlap")
+	@Description("Whether there was already a PathPoint at the crossing")
+	boolean overlap;
+
+	/**
+	 * Record a crossing, if a recording wants it.
+	 * @param ap1 first point in the active segment
+	 * @param ap2 second point in the active segment
+	 * @param tp1 first point in the test segment
+	 * @param tp2 second point in the test segment
+	 * @param pi the PathPoint at the crossing
+	 * @param overlap whether pi was already there
+	 */
+	static void record(PathPoint ap1, PathPoint ap2, PathPoint tp1,
+			PathPoint tp2, PathPoint pi, boolean overlap)
+	{
+		IntersectionEvent e = new IntersectionEvent();
+		if(!e.shouldCommit())
+			return;
+		e.active = segment(ap1, ap2);
+		e.test = segment(tp1, tp2);
+		e.x = pi.point.x;
+		e.y = pi.point.y;
+		e.overlap = overlap;
+		e.commit();
+	}
+
+	/**
+	 * Describe a segment.
+	 */
+	private static String segment(PathPoint p1, PathPoint p2)
+	{
+		return("(" + p1.point.x + ", " + p1.point.y + ") - (" + p2.point.x
+				+ ", " + p2.point.y + ")");
+	}
+}
+
+/**
+ * The tracing of one Edge from a GraphPoint in
+ * PathOptimize.convertPathPointsToGraphPoints(), whether it ended up in the
+ * graph or not.
+ */
+@Name("ucsdmap.EdgeBuild")
+@Label("Edge Construction")
+@Category({"UCSD Map", "PathOptimize"})
+@Description("One Edge traced from a GraphPoint")
+@StackTrace(false)
+class EdgeBuildEvent extends Event
+{
+	@Label("Edge ID")
+	@Description("ID of the Edge, or 0 if it wasn't added")
+	int edge;
+
+	@Label("From")
+	@Description("ID of the GraphPoint it was traced from")
+	int from;
+
+	@Label("Points")
+	int points;
+
+	@Label("Weight")
+	double weight;
+
+	@Label("Outcome")
+	@Description("\"added\", \"shared\" (the other end already had it) or "
+			+ "\"discarded\" (it doesn't end at a GraphPoint)")
+	String outcome;
+
+	/**
+	 * Finish tracing an Edge.
+	 * @param e the Edge
+	 * @param outcome "added", "shared" or "discarded"
+	 */
+	void finish(Edge e, String outcome)
+	{
+		end();
+		if(!shouldCommit())
+			return;
+		this.edge = (outcome.equals("added") ? e.ID : 0);
+		this.from = (e.endpt1 == null ? 0 : e.endpt1.ID);
+		this.points = e.path.size();
+		this.weight = e.weight;
+		this.outcome = outcome;
+		commit();
+	}
+}
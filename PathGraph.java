@@ -0,0 +1,335 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * The optimized path graph, in flat primitive arrays.
+ */
+
+import java.awt.Point;
+import java.io.*;
+import java.util.Vector;
+
+/**
+ * The graph PathOptimize builds (GraphPoints joined by Edges), stored in
+ * compressed sparse row form: instead of a GraphPoint object with a Vector of
+ * Edges, each with a Vector of Points, everything is in a handful of int
+ * arrays.
+ * <br><br>
+ * GraphPoints and Edges are identified by their IDs (as in the binary files),
+ * so slot 0 of every array indexed by ID is unused. The connections of
+ * GraphPoint id are at indices offset[id] to offset[id+1] - 1 of
+ * neighbor[], weight[] and edge[], in the same order they're written to the
+ * point file. The points of Edge id are at coords[2*i], coords[2*i + 1] for i
+ * from edgeOffset[id] to edgeOffset[id+1] - 1, from its start GraphPoint to
+ * its end.
+ * <br><br>
+ * A PathGraph can be built from the GraphPoints and Edges
+ * convertPathPointsToGraphPoints() makes, or from the binary files (through
+ * MappedGraph); either way gives the same arrays. Weights are the truncated
+ * ints the point file has. A PathGraph never changes once it's built, so
+ * it's safe to share between threads.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class PathGraph
+{
+	/**
+	 * Number of GraphPoints (IDs run from 1 to this).
+	 */
+	final int numPoints;
+	/**
+	 * Number of Edges (IDs run from 1 to this).
+	 */
+	final int numEdges;
+
+	/**
+	 * Coordinates of each GraphPoint, by ID.
+	 */
+	final int [] x, y;
+	/**
+	 * ID of the (displayed) Location at each GraphPoint, or 0, by ID.
+	 */
+	final int [] locationID;
+	/**
+	 * Whether routes may pass through each GraphPoint, by ID.
+	 */
+	final boolean [] passThrough;
+
+	/**
+	 * Where each GraphPoint's connections start in neighbor[], weight[] and
+	 * edge[] (numPoints + 2 entries, so offset[id+1] always works).
+	 */
+	final int [] offset;
+	/**
+	 * GraphPoint ID at the other end of each connection.
+	 */
+	final int [] neighbor;
+	/**
+	 * Weight (length) of each connection.
+	 */
+	final int [] weight;
+	/**
+	 * Edge ID of each connection.
+	 */
+	final int [] edge;
+
+	/**
+	 * Start and end GraphPoint of each Edge, by ID.
+	 */
+	final int [] edgeStart, edgeEnd;
+	/**
+	 * Where each Edge's points start in coords[], counted in points (not
+	 * ints); numEdges + 2 entries.
+	 */
+	final int [] edgeOffset;
+	/**
+	 * x, y of every point of every Edge, one after the other.
+	 */
+	final int [] coords;
+
+	/**
+	 * GraphPoint ID of each (displayed) Location, by Location ID, or 0 if
+	 * there's no such Location.
+	 */
+	final int [] locationPoint;
+
+	/**
+	 * Driver for testing PathGraph: load the binary files (the ones
+	 * ShowImage writes, or the ones given on the command line) and print how
+	 * big the graph is.
+	 * @param args point file, location file and edge file (optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		String pointFile = ScrollablePicture.binaryPoints;
+		String locFile = ScrollablePicture.binaryLocations;
+		String edgeFile = ScrollablePicture.binaryEdges;
+		if(args.length == 3)
+		{
+			pointFile = args[0];
+			locFile = args[1];
+			edgeFile = args[2];
+		}
+
+		long start = System.nanoTime();
+		PathGraph g = load(pointFile, locFile, edgeFile);
+		long elapsed = System.nanoTime() - start;
+
+		System.err.println("Loaded " + g.numPoints + " GraphPoints, "
+				+ g.neighbor.length + " connections, " + g.numEdges
+				+ " Edges (" + g.coords.length/2 + " points) in "
+				+ (elapsed / 1000) + "us");
+		System.err.println("Arrays take " + g.sizeInBytes() + " bytes");
+	}
+
+	/**
+	 * Allocate the arrays for a graph of the given size.
+	 */
+	private PathGraph(int numPoints, int numConnections, int numEdges,
+			int numEdgePoints, int maxLocation)
+	{
+		this.numPoints = numPoints;
+		this.numEdges = numEdges;
+		x = new int[numPoints + 1];
+		y = new int[numPoints + 1];
+		locationID = new int[numPoints + 1];
+		passThrough = new boolean[numPoints + 1];
+		offset = new int[numPoints + 2];
+		neighbor = new int[numConnections];
+		weight = new int[numConnections];
+		edge = new int[numConnections];
+		edgeStart = new int[numEdges + 1];
+		edgeEnd = new int[numEdges + 1];
+		edgeOffset = new int[numEdges + 2];
+		coords = new int[2*numEdgePoints];
+		locationPoint = new int[maxLocation + 1];
+	}
+
+	/**
+	 * Build a graph from GraphPoints and Edges (what
+	 * PathOptimize.convertPathPointsToGraphPoints() makes). Their IDs must
+	 * be contiguous, starting at 1 (see PathOptimize.checkIDs()).
+	 * @param graphPoints all the GraphPoints, in ID order
+	 * @param edges all the Edges, in ID order
+	 * @return the graph
+	 */
+	public static PathGraph build(Vector <GraphPoint> graphPoints,
+			Vector <Edge> edges)
+	{
+		int numConnections = 0;
+		int maxLocation = 0;
+		for(GraphPoint gp : graphPoints){
+			numConnections += gp.edges.size();
+			if(gp.locLabel != null && gp.locLabel.isDisplayName())
+				maxLocation = Math.max(maxLocation, gp.locLabel.ID);
+		}
+		int numEdgePoints = 0;
+		for(Edge e : edges)
+			numEdgePoints += e.path.size();
+
+		PathGraph g = new PathGraph(graphPoints.size(), numConnections,
+				edges.size(), numEdgePoints, maxLocation);
+
+		// GraphPoints and their connections (the same values
+		// GraphPoint.binaryWrite() writes)
+		int c = 0;
+		for(GraphPoint gp : graphPoints){
+			int id = gp.ID;
+			g.x[id] = gp.point.x;
+			g.y[id] = gp.point.y;
+			if(gp.locLabel != null && gp.locLabel.isDisplayName()){
+				g.locationID[id] = gp.locLabel.ID;
+				g.locationPoint[gp.locLabel.ID] = id;
+			}
+			g.passThrough[id] = (gp.locLabel == null)
+				|| gp.locLabel.isCanPassThrough();
+
+			g.offset[id] = c;
+			for(Edge e : gp.edges){
+				g.neighbor[c] = (e.endpt1 == gp) ? e.endpt2.ID : e.endpt1.ID;
+				g.weight[c] = (int)e.weight;
+				g.edge[c] = e.ID;
+				c++;
+			}
+		}
+		g.offset[g.numPoints + 1] = c;
+
+		// Edges
+		int p = 0;
+		for(Edge e : edges){
+			g.edgeStart[e.ID] = e.endpt1.ID;
+			g.edgeEnd[e.ID] = e.endpt2.ID;
+			g.edgeOffset[e.ID] = p;
+			for(Point pt : e.path){
+				g.coords[2*p] = pt.x;
+				g.coords[2*p + 1] = pt.y;
+				p++;
+			}
+		}
+		g.edgeOffset[g.numEdges + 1] = p;
+		return(g);
+	}
+
+	/**
+	 * Build a graph from the binary files.
+	 * @param m the mapped binary files
+	 * @return the graph
+	 */
+	public static PathGraph build(MappedGraph m)
+	{
+		int numConnections = 0;
+		for(int id = 1; id <= m.numPoints(); id++)
+			numConnections += m.numConnections(id);
+		int numEdgePoints = 0;
+		for(int id = 1; id <= m.numEdges(); id++)
+			numEdgePoints += m.edgeNumPoints(id);
+		int maxLocation = 0;
+		for(int i = 0; i < m.numLocations(); i++)
+			maxLocation = Math.max(maxLocation, m.locationID(i));
+
+		PathGraph g = new PathGraph(m.numPoints(), numConnections,
+				m.numEdges(), numEdgePoints, maxLocation);
+
+		int c = 0;
+		for(int id = 1; id <= g.numPoints; id++){
+			g.x[id] = m.pointX(id);
+			g.y[id] = m.pointY(id);
+			g.locationID[id] = m.pointLocationID(id);
+			if(g.locationID[id] != 0)
+				g.locationPoint[g.locationID[id]] = id;
+			g.passThrough[id] = m.canPassThrough(id);
+
+			g.offset[id] = c;
+			for(int k = 0; k < m.numConnections(id); k++){
+				g.neighbor[c] = m.connectionPoint(id, k);
+				g.weight[c] = m.connectionWeight(id, k);
+				g.edge[c] = m.connectionEdge(id, k);
+				c++;
+			}
+		}
+		g.offset[g.numPoints + 1] = c;
+
+		int p = 0;
+		EdgePointCursor cursor = new EdgePointCursor();
+		for(int id = 1; id <= g.numEdges; id++){
+			g.edgeStart[id] = m.edgeStart(id);
+			g.edgeEnd[id] = m.edgeEnd(id);
+			g.edgeOffset[id] = p;
+			m.edgePoints(id, cursor);
+			while(cursor.next()){
+				g.coords[2*p] = cursor.x();
+				g.coords[2*p + 1] = cursor.y();
+				p++;
+			}
+		}
+		g.edgeOffset[g.numEdges + 1] = p;
+		return(g);
+	}
+
+	/**
+	 * Load a graph from the binary files.
+	 * @param pointFile the GraphPoint file (binPointData.dat)
+	 * @param locFile the Location file (binLocationData.dat)
+	 * @param edgeFile the Edge file, in either format
+	 * @return the graph
+	 * @throws IOException if a file can't be read
+	 */
+	public static PathGraph load(String pointFile, String locFile,
+			String edgeFile) throws IOException
+	{
+		return(build(MappedGraph.open(pointFile, locFile, edgeFile)));
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return the ID of the GraphPoint the Location is at, or 0 if there's
+	 * no (displayed) Location with that ID
+	 */
+	public int pointOfLocation(int id)
+	{
+		if(id <= 0 || id >= locationPoint.length)
+			return(0);
+		return(locationPoint[id]);
+	}
+
+	/**
+	 * @param id an Edge ID
+	 * @return the number of points in the Edge's path
+	 */
+	public int edgeNumPoints(int id)
+	{
+		return(edgeOffset[id+1] - edgeOffset[id]);
+	}
+
+	/**
+	 * @param id an Edge ID
+	 * @param i which point (from 0 to edgeNumPoints(id) - 1)
+	 * @return the x coordinate of the point
+	 */
+	public int edgeX(int id, int i)
+	{
+		return(coords[2*(edgeOffset[id] + i)]);
+	}
+
+	/**
+	 * @param id an Edge ID
+	 * @param i which point (from 0 to edgeNumPoints(id) - 1)
+	 * @return the y coordinate of the point
+	 */
+	public int edgeY(int id, int i)
+	{
+		return(coords[2*(edgeOffset[id] + i) + 1]);
+	}
+
+	/**
+	 * @return roughly how much memory the arrays take up, in bytes
+	 */
+	public long sizeInBytes()
+	{
+		long ints = x.length + y.length + locationID.length + offset.length
+			+ neighbor.length + weight.length + edge.length
+			+ edgeStart.length + edgeEnd.length + edgeOffset.length
+			+ coords.length + locationPoint.length;
+		return(4*ints + passThrough.length);
+	}
+}
@@ -0,0 +1,419 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Uniform grid spatial index used by the PathOptimize geometry stages.
+ */
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.*;
+
+/**
+ * A uniform grid over the map, used by PathOptimize to find PathPoints and
+ * connections between PathPoints (segments) near a given spot without
+ * scanning all of them.
+ * <br><br>
+ * The grid is sized from the extent of the map so that each cell holds only
+ * a handful of points on average. Anything outside the extent is clamped
+ * into the border cells, so lookups are always correct, just slower out
+ * there.
+ * <br><br>
+ * PathPoints are kept in the cell that contains them. A segment is kept in
+ * every cell that its bounding rectangle covers, so two segments whose
+ * rectangles touch always share a cell. Each cell keeps its contents in the
+ * order they were added, so the first match in a cell is also the first one
+ * that was added (which is what the old linear scans returned).
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class PathGrid
+{
+	/**
+	 * Average number of points we aim to put in each cell.
+	 */
+	static final int POINTS_PER_CELL = 4;
+
+	// top-left corner of the grid, and the size of each (square) cell
+	private int originX, originY;
+	private int cellSize;
+	private int cols, rows;
+
+	// PathPoints in each cell (null if empty)
+	private Vector <Vector<PathPoint>> pointCells;
+	// segments in each cell, stored as pairs of PathPoints (null if empty)
+	private Vector <Vector<PathPoint>> segmentCells;
+
+	// cells whose segments have changed since trackChanges() was called
+	// (null if we aren't tracking changes)
+	private boolean [] changed;
+
+	/**
+	 * Create an empty grid covering the given area.
+	 * @param extent the area of the map the grid should cover
+	 * @param numPoints roughly how many points will go in the grid
+	 */
+	public PathGrid(Rectangle extent, int numPoints)
+	{
+		originX = extent.x;
+		originY = extent.y;
+
+		// choose a cell size so there are about POINTS_PER_CELL points in
+		// each cell, if they were spread out evenly
+		double area = (double)(extent.width + 1) * (extent.height + 1);
+		cellSize = (int)Math.ceil(Math.sqrt(
+				area * POINTS_PER_CELL / Math.max(numPoints, 1)));
+		if(cellSize < 1)
+			cellSize = 1;
+
+		cols = extent.width / cellSize + 1;
+		rows = extent.height / cellSize + 1;
+
+		pointCells = emptyCells();
+		segmentCells = emptyCells();
+	}
+
+	/**
+	 * Get the smallest Rectangle that contains all the given paths (edges
+	 * included).
+	 * @param paths the paths to cover
+	 * @return the bounding Rectangle, or an empty Rectangle at the origin if
+	 * there are no points at all.
+	 */
+	public static Rectangle extentOf(Vector <Vector<Point>> paths)
+	{
+		Rectangle extent = null;
+		for(Vector<Point> path : paths){
+			for(Point p : path){
+				if(extent == null)
+					extent = new Rectangle(p);
+				else
+					extent.add(p);
+			}
+		}
+		if(extent == null)
+			extent = new Rectangle();
+		return(extent);
+	}
+
+	/**
+	 * Make a Vector with one (empty, null) entry for every cell.
+	 */
+	private <T> Vector<Vector<T>> emptyCells()
+	{
+		Vector<Vector<T>> cells = new Vector<Vector<T>>(cols * rows);
+		cells.setSize(cols * rows);
+		return(cells);
+	}
+
+	/**
+	 * Get the column containing the given x coordinate (clamped to the grid).
+	 */
+	private int col(int x)
+	{
+		return(Math.max(0, Math.min(cols - 1, (x - originX) / cellSize)));
+	}
+
+	/**
+	 * Get the row containing the given y coordinate (clamped to the grid).
+	 */
+	private int row(int y)
+	{
+		return(Math.max(0, Math.min(rows - 1, (y - originY) / cellSize)));
+	}
+
+	/**
+	 * Get the index of the cell containing the given point.
+	 */
+	private int cell(Point p)
+	{
+		return(row(p.y) * cols + col(p.x));
+	}
+
+	/**
+	 * Get the contents of a cell, creating it if necessary.
+	 */
+	private static <T> Vector<T> getOrCreate(Vector<Vector<T>> cells,
+			int index)
+	{
+		Vector<T> v = cells.get(index);
+		if(v == null){
+			v = new Vector<T>(2);
+			cells.set(index, v);
+		}
+		return(v);
+	}
+
+	/**
+	 * Add a PathPoint to the grid.
+	 * @param p the PathPoint to add
+	 */
+	public void addPoint(PathPoint p)
+	{
+		getOrCreate(pointCells, cell(p.point)).add(p);
+	}
+
+	/**
+	 * Remove a PathPoint from the grid.
+	 * @param p the PathPoint to remove
+	 * @return true if it was in the grid, false otherwise
+	 */
+	public boolean removePoint(PathPoint p)
+	{
+		Vector<PathPoint> v = pointCells.get(cell(p.point));
+		return(v != null && v.remove(p));
+	}
+
+	/**
+	 * Get the first PathPoint added to the grid at exactly the given
+	 * coordinates.
+	 * @param pt the coordinates to look at
+	 * @return the PathPoint at pt, or null if there isn't one
+	 */
+	public PathPoint pointAt(Point pt)
+	{
+		Vector<PathPoint> v = pointCells.get(cell(pt));
+		if(v != null)
+			for(PathPoint p : v)
+				if(p.point.equals(pt))
+					return(p);
+		return(null);
+	}
+
+	/**
+	 * Add the segment between two PathPoints to every cell its bounding
+	 * rectangle covers.
+	 * @param a one end of the segment
+	 * @param b the other end of the segment
+	 */
+	public void addSegment(PathPoint a, PathPoint b)
+	{
+		int c1 = col(Math.min(a.point.x, b.point.x));
+		int c2 = col(Math.max(a.point.x, b.point.x));
+		int r1 = row(Math.min(a.point.y, b.point.y));
+		int r2 = row(Math.max(a.point.y, b.point.y));
+		for(int r = r1; r <= r2; r++){
+			for(int c = c1; c <= c2; c++){
+				Vector<PathPoint> v = getOrCreate(segmentCells, r*cols + c);
+				v.add(a);
+				v.add(b);
+				if(changed != null)
+					changed[r*cols + c] = true;
+			}
+		}
+	}
+
+	/**
+	 * Remove one copy of the segment between two PathPoints (in either
+	 * direction) from the grid.
+	 * @param a one end of the segment
+	 * @param b the other end of the segment
+	 */
+	public void removeSegment(PathPoint a, PathPoint b)
+	{
+		int c1 = col(Math.min(a.point.x, b.point.x));
+		int c2 = col(Math.max(a.point.x, b.point.x));
+		int r1 = row(Math.min(a.point.y, b.point.y));
+		int r2 = row(Math.max(a.point.y, b.point.y));
+		for(int r = r1; r <= r2; r++){
+			for(int c = c1; c <= c2; c++){
+				Vector<PathPoint> v = segmentCells.get(r*cols + c);
+				if(v == null)
+					continue;
+				if(changed != null)
+					changed[r*cols + c] = true;
+				for(int i = 0; i < v.size(); i += 2){
+					if((v.get(i) == a && v.get(i+1) == b)
+							|| (v.get(i) == b && v.get(i+1) == a))
+					{
+						v.remove(i+1);
+						v.remove(i);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add every connection of every given PathPoint to the grid, once per
+	 * connection. (Each connection is stored by both of its ends, so we only
+	 * take it from the first one.)
+	 * @param pathPoints the PathPoints whose connections should be added
+	 */
+	public void addSegments(Vector <PathPoint> pathPoints)
+	{
+		HashMap<PathPoint, Integer> indexOf =
+			new HashMap<PathPoint, Integer>(pathPoints.size() * 2);
+		for(int i = 0; i < pathPoints.size(); i++)
+			indexOf.put(pathPoints.get(i), i);
+
+		for(int i = 0; i < pathPoints.size(); i++){
+			PathPoint p = pathPoints.get(i);
+			for(int c = 0; c < p.numConnectedPoints(); c++){
+				PathPoint q = p.getConnectedPathPoint(c);
+				Integer j = indexOf.get(q);
+				if(j != null && j > i)
+					addSegment(p, q);
+			}
+		}
+	}
+
+	/**
+	 * Start remembering which cells have had segments added or removed, for
+	 * changedNear(). Any changes remembered so far are forgotten.
+	 */
+	public void trackChanges()
+	{
+		changed = new boolean[cols * rows];
+	}
+
+	/**
+	 * Check if any segment has been added to or removed from the cells that
+	 * the given PathPoint's connections cover, since trackChanges() was
+	 * called. If nothing has, segmentNeighbors(p) would return the same
+	 * segments now as it did then.
+	 * @param p the PathPoint whose neighborhood to check
+	 * @return true if something changed (or changes aren't being tracked),
+	 * false otherwise
+	 */
+	public boolean changedNear(PathPoint p)
+	{
+		if(changed == null)
+			return(true);
+		for(int k = 0; k < p.numConnectedPoints(); k++){
+			Point a = p.point;
+			Point b = p.getConnectedPoint(k);
+			for(int r = row(Math.min(a.y, b.y)); r <= row(Math.max(a.y, b.y));
+					r++)
+			{
+				for(int c = col(Math.min(a.x, b.x));
+						c <= col(Math.max(a.x, b.x)); c++)
+				{
+					if(changed[r*cols + c])
+						return(true);
+				}
+			}
+		}
+		return(false);
+	}
+
+	/**
+	 * Get the number of tiles the grid splits into, if each tile is a square
+	 * of tileCells x tileCells cells.
+	 * @param tileCells width and height of a tile, in cells
+	 * @return the number of tiles
+	 */
+	public int numTiles(int tileCells)
+	{
+		int tileCols = (cols + tileCells - 1) / tileCells;
+		int tileRows = (rows + tileCells - 1) / tileCells;
+		return(tileCols * tileRows);
+	}
+
+	/**
+	 * Get the tile containing the given point, if each tile is a square of
+	 * tileCells x tileCells cells.
+	 * @param p the point to look for
+	 * @param tileCells width and height of a tile, in cells
+	 * @return the index of the tile, from 0 to numTiles(tileCells) - 1
+	 */
+	public int tileOf(Point p, int tileCells)
+	{
+		int tileCols = (cols + tileCells - 1) / tileCells;
+		return((row(p.y) / tileCells) * tileCols + col(p.x) / tileCells);
+	}
+
+	/**
+	 * Get every PathPoint that is the end of a segment whose bounding
+	 * rectangle touches the bounding rectangle of one of the given
+	 * PathPoint's connections (edges included, like
+	 * PathOptimize.rectangleTest()).
+	 * @param p the PathPoint whose neighborhood to search
+	 * @return the PathPoints found, including p itself if it has any
+	 * connections
+	 */
+	public HashSet<PathPoint> segmentNeighbors(PathPoint p)
+	{
+		HashSet<PathPoint> found = new HashSet<PathPoint>();
+		for(int k = 0; k < p.numConnectedPoints(); k++){
+			Point a = p.point;
+			Point b = p.getConnectedPoint(k);
+			int minX = Math.min(a.x, b.x), maxX = Math.max(a.x, b.x);
+			int minY = Math.min(a.y, b.y), maxY = Math.max(a.y, b.y);
+
+			for(int r = row(minY); r <= row(maxY); r++){
+				for(int c = col(minX); c <= col(maxX); c++){
+					Vector<PathPoint> v = segmentCells.get(r*cols + c);
+					if(v == null)
+						continue;
+					for(int i = 0; i < v.size(); i += 2){
+						Point s = v.get(i).point;
+						Point t = v.get(i+1).point;
+						if(Math.min(s.x, t.x) <= maxX
+								&& minX <= Math.max(s.x, t.x)
+								&& Math.min(s.y, t.y) <= maxY
+								&& minY <= Math.max(s.y, t.y))
+						{
+							found.add(v.get(i));
+							found.add(v.get(i+1));
+						}
+					}
+				}
+			}
+		}
+		return(found);
+	}
+}
+
+/**
+ * A growable list of ints, to avoid boxing every index in a Vector.
+ */
+class IntList
+{
+	int [] data;
+	int size = 0;
+
+	/**
+	 * Create an empty list.
+	 * @param capacity initial capacity
+	 */
+	public IntList(int capacity)
+	{
+		data = new int[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Append a value.
+	 * @param v the value to append
+	 */
+	public void add(int v)
+	{
+		if(size == data.length)
+			data = Arrays.copyOf(data, data.length * 2);
+		data[size++] = v;
+	}
+
+	/**
+	 * Get the value at the given index.
+	 * @param i index
+	 * @return the value at i
+	 */
+	public int get(int i)
+	{
+		return data[i];
+	}
+
+	/**
+	 * Linear search for a value. (Only used on very short lists.)
+	 * @param v the value to look for
+	 * @return true if v is in the list
+	 */
+	public boolean contains(int v)
+	{
+		for(int i = 0; i < size; i++)
+			if(data[i] == v)
+				return true;
+		return false;
+	}
+}
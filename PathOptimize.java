@@ -24,13 +24,102 @@ import java.util.*;
 public class PathOptimize
 {
 	/**
-	 * General debug flag...will set all flags to false if set to false
+	 * Number of threads to look for intersections with. Anything more than
+	 * 1 turns on the parallel search in intersections(), which gives the
+	 * same results as the sequential one. (Set from the
+	 * PathOptimize.threads system property.)
 	 */
-	public static boolean debugOn = false;
+	public static int intersectThreads = 
+		Integer.getInteger("PathOptimize.threads", 1);
 	/**
-	 * Debug flag for debugging intersection()
+	 * Where intersections() gets the PathPoints to test each active
+	 * PathPoint against: "grid" (the PathGrid the geometry stages share) or
+	 * "sweep" (an IntersectionSweep over the segments' rectangles). Both
+	 * give the same result. (Set from the PathOptimize.candidates system
+	 * property.)
 	 */
-	public static boolean intersectDebug = false;
+	public static String intersectCandidates = 
+		System.getProperty("PathOptimize.candidates", "grid");
+	/**
+	 * File to write the Edges to again in the compact format (see
+	 * binaryWriteCompactEdges()), or null not to. (Set from the
+	 * PathOptimize.compactEdges system property.)
+	 */
+	public static String compactEdgeFile = 
+		System.getProperty("PathOptimize.compactEdges");
+	/**
+	 * Delta + varint encode Edge points in the compact edge file? (See
+	 * EdgeGeometry. Set from the PathOptimize.deltaEdges system property.)
+	 */
+	public static boolean deltaEncodeEdges = 
+		Boolean.getBoolean("PathOptimize.deltaEdges");
+	/**
+	 * File to write a contraction hierarchy of the graph to (see
+	 * ContractionHierarchy), or null not to build one. (Set from the
+	 * PathOptimize.hierarchy system property.)
+	 */
+	public static String hierarchyFile = 
+		System.getProperty("PathOptimize.hierarchy");
+	/**
+	 * File to write the route length between every pair of Locations to
+	 * (see DistanceMatrix), or null not to. (Set from the
+	 * PathOptimize.distances system property.)
+	 */
+	public static String distanceFile = 
+		System.getProperty("PathOptimize.distances");
+	/**
+	 * File to write the shortest-path tree from every Location's GraphPoint
+	 * to (see TreePack), or null not to. (Set from the PathOptimize.trees
+	 * system property.)
+	 */
+	public static String treeFile = 
+		System.getProperty("PathOptimize.trees");
+	/**
+	 * File to write landmarks for ALT routing to (see Landmarks), or null
+	 * not to pick any. (Set from the PathOptimize.landmarks system
+	 * property.)
+	 */
+	public static String landmarkFile = 
+		System.getProperty("PathOptimize.landmarks");
+	/**
+	 * How many landmarks to pick, and how: "avoid" or "farthest". (Set from
+	 * the PathOptimize.landmarkCount and PathOptimize.landmarkSelection
+	 * system properties.)
+	 */
+	public static int landmarkCount = 
+		Integer.getInteger("PathOptimize.landmarkCount", 16);
+	public static String landmarkSelection = 
+		System.getProperty("PathOptimize.landmarkSelection", "avoid");
+	/**
+	 * Access log to warm the route cache from (see CacheWarmer), the cache
+	 * directory to write the routes to, and how many of the most asked-for
+	 * routes to write; no routes are written unless there's a log and a
+	 * directory. (Set from the PathOptimize.warmLog, PathOptimize.warmCache
+	 * and PathOptimize.warmCount system properties.)
+	 */
+	public static String warmLog = 
+		System.getProperty("PathOptimize.warmLog");
+	public static String warmCacheDir = 
+		System.getProperty("PathOptimize.warmCache");
+	public static int warmCount = 
+		Integer.getInteger("PathOptimize.warmCount",
+				CacheWarmer.DEFAULT_COUNT);
+	/**
+	 * File to write the stage timing, memory and object counts of a run to
+	 * (see OptimizeReport), or null not to. (Set from the
+	 * PathOptimize.report system property.)
+	 */
+	public static String reportFile = 
+		System.getProperty("PathOptimize.report");
+	/**
+	 * Number of threads for the optional routing preprocessing (the
+	 * distance matrix and shortest-path trees). (Set from the
+	 * PathOptimize.preprocessThreads system property; the default is one
+	 * per processor.)
+	 */
+	public static int preprocessThreads = 
+		Integer.getInteger("PathOptimize.preprocessThreads",
+				Runtime.getRuntime().availableProcessors());
 	/**
 	 * Debug flag for the binary writing of binary GraphPoint data
 	 */
@@ -56,6 +145,12 @@ public class PathOptimize
 	// Container for PathPoints
     private Vector <PathPoint> pathPoints;
     
+    // Spatial index over pathPoints and their connections
+    private PathGrid grid;
+    
+    // readLocations, by coordinate
+    private HashMap <Point, Location> locationIndex;
+    
 	// Container for GraphPoints
     private Vector <GraphPoint> graphPoints;
     
@@ -65,6 +160,12 @@ public class PathOptimize
     private Vector <Location> outLocations;
     private Vector <Edge> outEdges;
 
+    // segment pairs intersections() tested for a crossing, and the ones
+    // that crossed (not counting the parallel pass, if there is one; see
+    // IntersectionTiles)
+    private long pairsTested = 0;
+    private long pairsAccepted = 0;
+
     /**
      * Driver for testing PathOptimize
      * 
@@ -77,6 +178,7 @@ public class PathOptimize
     	final String binaryPoints = ScrollablePicture.binaryPoints;
     	final String binaryLocations =  ScrollablePicture.binaryLocations;
     	final String binaryEdges = ScrollablePicture.binaryEdges;
+    	final String binaryEdgesCompact = compactEdgeFile;
 		String XMLPathFile = null;
 		String XMLLocFile = null;
     	if(args.length == 2)
@@ -98,7 +200,7 @@ public class PathOptimize
     	}
     	run(XMLFileIO.loadPaths(XMLPathFile), 
     			XMLFileIO.loadLocations(XMLLocFile), optPathFile, optLocFile,
-    			binaryPoints, binaryLocations, binaryEdges
+    			binaryPoints, binaryLocations, binaryEdges, binaryEdgesCompact
     	);
     }
 
@@ -120,8 +222,36 @@ public class PathOptimize
 			Vector <Location> inLocations,
     		String outPathFile, String outLocFile, 
 			String binaryPoints, String binaryLocations, String binaryEdges)
+    {
+    	return(run(inPaths, inLocations, outPathFile, outLocFile,
+    			binaryPoints, binaryLocations, binaryEdges, null));
+    }
+    
+	/**
+	 * Same as the other run(), but also writes edge data in the compact
+	 * (version 2) format. While the frontend moves over to the new format,
+	 * both edge files can be written in the same run.
+	 * <br><br>
+	 * @param inPaths The raw path data from ShowImage
+	 * @param inLocations The "raw" location data from ShowImage
+	 * @param outPathFile The filename to write "optimized" raw data to
+	 * @param outLocFile  The filename to write "optimized" location data to
+	 * @param binaryPoints The filename to write binary point data to 
+	 * @param binaryLocations The filename to write binary location data to
+	 * @param binaryEdges The filename to write binary edge data to in the
+	 * old fixed-width format, or null to skip it
+	 * @param binaryEdgesCompact The filename to write binary edge data to in
+	 * the compact format, or null to skip it
+	 * @return True all the time, for no reason whatsoever...  :)
+	 */
+    public static boolean run(Vector <Vector<Point>>inPaths, 
+			Vector <Location> inLocations,
+    		String outPathFile, String outLocFile, 
+			String binaryPoints, String binaryLocations, String binaryEdges,
+			String binaryEdgesCompact)
     {
     	PathOptimize pathOp = new PathOptimize();
+    	OptimizeReport report = new OptimizeReport();
     	
     	/**
     	 * This reads in the Vector of vector of points and Vector of 
@@ -129,6 +259,12 @@ public class PathOptimize
     	 */
 		pathOp.readPaths = inPaths;
 		pathOp.readLocations = inLocations;
+		
+		/**
+		 * Index the locations by coordinate, so we can find the location
+		 * at each point we read in constant time.
+		 */
+		pathOp.indexLocations();
 
     	/**
     	 * Convert the incoming paths of points that we read in
@@ -138,7 +274,9 @@ public class PathOptimize
     	 * Takes the points from readLocations and readPoints.  
     	 */
 		System.err.print("\tConverting Points to PathPoints.....");
+		report.start("convertPointsToPathPoints");
     	pathOp.convertPointsToPathPoints();
+		report.end("pathPointsRead", pathOp.pathPoints.size());
     	/**
     	 * Data is now all stored in the pathPoints vector
     	 */
@@ -146,7 +284,9 @@ public class PathOptimize
 
 		System.err.print("\tCollapsing duplicate PathPoints.....");
     	//Collapse all duplications of PathPoints.  
+		report.start("condensePathPoints");
     	pathOp.condensePathPoints();
+		report.end("pathPointsCondensed", pathOp.pathPoints.size());
 		System.err.println("done: " + pathOp.pathPoints.size() 
 				+ " points after collapsing.");
     	
@@ -157,32 +297,126 @@ public class PathOptimize
     	 * the points that caused the intersections to the intersection
     	 * point
     	 */
+		report.start("intersections");
     	pathOp.intersections();
+		report.end("pathPoints", pathOp.pathPoints.size());
+		report.count("intersectionPairsTested", pathOp.pairsTested);
+		report.count("intersectionPairsAccepted", pathOp.pairsAccepted);
     	System.err.println("done.");
 		
 		System.err.print("\tConverting PathPoints to Graph Points.....");
+		report.start("convertPathPointsToGraphPoints");
 		pathOp.convertPathPointsToGraphPoints();
+		report.end("graphPoints", pathOp.graphPoints.size());
 		System.err.println("done.");
 		
 		System.err.print("\tConverting GraphPoints down to plain points" +
 				" and writing path and location objects.....");
+		report.start("writePoints");
     	pathOp.convertGraphPointsToPoints();
     	pathOp.writePoints(outPathFile, outLocFile);
+		report.end();
 		System.err.println("done.");
 
         System.err.print("Ensuring all ID numbers are contiguous and minimal...");
+		report.start("checkIDs");
         pathOp.checkIDs();
+		report.end();
 		System.err.println("done.");
 		
 		System.err.print("\tWriting out to binary files.....");
+		report.start("binaryWrite");
     	pathOp.binaryWrite(binaryPoints, binaryLocations, binaryEdges);
+    	if(binaryEdgesCompact != null)
+    		pathOp.binaryWriteCompactEdges(binaryEdgesCompact);
+		report.end("edges", pathOp.outEdges.size());
+		report.count("locations", pathOp.outLocations.size());
 		System.err.println("done.");
 		
+		/**
+		 * Optional preprocessing for the routing code, from the graph in
+		 * flat arrays
+		 */
+		PathGraph graph = null;
+		if(hierarchyFile != null)
+		{
+			graph = pathOp.buildPathGraph();
+			System.err.print("\tBuilding contraction hierarchy.....");
+			report.start("buildHierarchy");
+			ContractionHierarchy ch = ContractionHierarchy.build(graph);
+			ch.write(hierarchyFile);
+			report.end();
+			System.err.println("done: " + ch.numArcs + " arcs, "
+					+ ch.numCore + " core GraphPoints.");
+		}
+		if(distanceFile != null)
+		{
+			if(graph == null)
+				graph = pathOp.buildPathGraph();
+			System.err.print("\tFinding distances between Locations.....");
+			report.start("buildDistances");
+			DistanceMatrix.build(graph, preprocessThreads).write(distanceFile);
+			report.end();
+			System.err.println("done.");
+		}
+		if(treeFile != null)
+		{
+			if(graph == null)
+				graph = pathOp.buildPathGraph();
+			System.err.print("\tFinding shortest-path trees.....");
+			report.start("buildTrees");
+			TreePack.write(graph, preprocessThreads, treeFile);
+			report.end();
+			System.err.println("done.");
+		}
+		if(landmarkFile != null)
+		{
+			if(graph == null)
+				graph = pathOp.buildPathGraph();
+			System.err.print("\tPicking landmarks.....");
+			report.start("buildLandmarks");
+			Landmarks.build(graph, landmarkCount,
+					!landmarkSelection.equals("farthest")).write(landmarkFile);
+			report.end();
+			System.err.println("done.");
+		}
+		if(warmLog != null && warmCacheDir != null && binaryEdges != null)
+		{
+			// routed over the files just written, with whatever
+			// preprocessing was just done for them
+			System.err.print("\tWarming the route cache.....");
+			report.start("warmCache");
+			try{
+				CacheWarmer warmer = new CacheWarmer(new RouteService(
+						binaryPoints, binaryLocations, binaryEdges,
+						hierarchyFile, landmarkFile, distanceFile));
+				warmer.readLog(warmLog);
+				long [] pairs = warmer.top(warmCount);
+				if(warmer.writePathFiles(warmCacheDir, pairs,
+							warmer.findRoutes(pairs, preprocessThreads)))
+					System.err.println("done: " + warmer.summary(pairs)
+							+ ".");
+				else
+					System.err.println("Error in warming the route cache!\n"
+							+ "Couldn't write every route to \""
+							+ warmCacheDir + "\".");
+			}
+			catch(IOException e){
+				System.err.println("Error in warming the route cache!\n" + e
+						+ ": " + e.getMessage());
+			}
+			report.end();
+		}
+		
 		System.err.println("====== Path Optimize complete! ======");
 		System.err.println("Wrote out:");
 		System.err.println(pathOp.graphPoints.size() + " GraphPoints");
 		System.err.println(pathOp.outEdges.size() + " Edges");
 		System.err.println(pathOp.outLocations.size() + " Locations");
+
+		// how the run went, next to the binary files
+		if(reportFile != null && report.write(reportFile))
+			System.err.println("Report: " + reportFile);
     	return(true);
     }
     
@@ -203,15 +437,6 @@ public class PathOptimize
 		// more than once
 		Edge.resetIDCount();
 		GraphPoint.resetIDCount();
-
-		if(!debugOn)
-		{
-			// Assign all debug flags to false
-			debugBinaryEdges = false;
-			debugBinaryGraphPoints = false;
-			debugBinaryLocations = false;
-			debugPPtoGP = false;
-		}
     }
     
 	/**
@@ -295,6 +520,8 @@ public class PathOptimize
     	PathPoint currentPP;  // The current Path Point we are at
     	PathPoint prevPP;  // The previous Path Point we were at
     	
+    	PathGrid grid = getGrid();
+    	
     	//For each vector of points in the vector of "paths"
     	// Each path is a set of points
     	for(int pathIndex = 0; pathIndex < readPaths.size(); pathIndex++)
@@ -321,6 +548,7 @@ public class PathOptimize
 						atlocation);
     			// Add the newPathPoint to the vector of Path Points
     			pathPoints.add(currentPP);
+    			grid.addPoint(currentPP);
     			
     			// As long as there is a previous point, 
     			// cross nit the two together.  
@@ -450,12 +678,25 @@ public class PathOptimize
         }
     }
 
+	/**
+	 * Build a PathGraph (the graph in flat arrays) from the GraphPoints and
+	 * Edges. Call this after convertPathPointsToGraphPoints() and
+	 * checkIDs().
+	 * @return the graph
+	 */
+	public PathGraph buildPathGraph()
+	{
+		return(PathGraph.build(graphPoints, outEdges));
+	}
+
 	/**
 	 * Write data to disk in binary format, suitable for reading from
      * the web-based frontend.
 	 * @param pointFileName
 	 * @param locFileName
-	 * @param edgeFileName
+	 * @param edgeFileName the file to write edges to in the old fixed-width
+	 * format (see binaryWriteCompactEdges() for the new one), or null to
+	 * skip it
 	 */
 	public void binaryWrite(String pointFileName, String locFileName,
     		String edgeFileName)
@@ -514,7 +755,9 @@ public class PathOptimize
 	    	return;
 	    }
 	    
-	    // output edge data
+	    // output edge data (unless we're only writing the compact format)
+		if(edgeFileName == null)
+			return;
         try{
 			if(debugBinaryEdges)
 				System.err.println("===== Edges =====");
@@ -565,6 +808,68 @@ public class PathOptimize
 			System.err.println("\n======  END OF BINARY FILE OUTPUT  ======");
     }
 	
+	/**
+	 * Write Edge data to disk in the compact (version 2) format. Instead of
+	 * padding every Edge out to the length of the longest one, each Edge
+	 * takes only as much space as its points need, and a table at the start
+	 * of the file says where each one begins, so an Edge can still be found
+	 * from its ID with one lookup.
+	 * <br><br>
+	 * The layout is (all ints are 4 bytes, big-endian, like the rest of the
+	 * binary files):
+	 * <pre>
+	 *   magic ('CMED'), version (2), flags, number of Edges (n)
+	 *     (the only flag is EdgeGeometry.FLAG_DELTAS, set if
+	 *     deltaEncodeEdges is)
+	 *   n+1 offsets: the byte offset (from the start of the file) of Edge
+	 *     ID 1 .. n, then the length of the file
+	 *   n Edge records, in ID order (see Edge.binaryWriteCompact())
+	 * </pre>
+	 * @param edgeFileName the file to write to
+	 */
+	public void binaryWriteCompactEdges(String edgeFileName)
+	{
+		if(debugBinaryEdges)
+			System.err.println("===== Edges (compact) =====");
+		try{
+            DataOutputStream edgeOut = new DataOutputStream(
+					new BufferedOutputStream(
+							new FileOutputStream(new File(edgeFileName))));
+			
+			final int SIZE_OF_INT = 4;
+			
+			final boolean deltas = deltaEncodeEdges;
+			
+			// header
+			edgeOut.writeInt(Edge.COMPACT_MAGIC);
+			edgeOut.writeInt(Edge.COMPACT_VERSION);
+			edgeOut.writeInt(deltas ? EdgeGeometry.FLAG_DELTAS : 0);
+			edgeOut.writeInt(outEdges.size());
+			
+			// offset table: the records start right after it. (Edge IDs
+			// are contiguous and start at 1, see checkIDs().)
+			int offset = SIZE_OF_INT * (4 + outEdges.size() + 1);
+			for(Edge e : outEdges){
+				edgeOut.writeInt(offset);
+				offset += e.compactSize(deltas);
+			}
+			edgeOut.writeInt(offset);
+			
+			// records
+			for(Edge e : outEdges)
+				e.binaryWriteCompact(edgeOut, deltas);
+			
+			edgeOut.close();
+        }
+	    catch(IOException e){
+	    	System.err.println("Error in writing \"" + edgeFileName + "\"!\n"
+	    			+ e + ": " + e.getMessage());
+	    	return;
+	    }
+		if(debugBinaryEdges)
+			System.err.println("==== END of Edges (compact) ====");
+	}
+	
     /**
      * Return a Location (from readLocations) that corresponds with the given
      * Point (from readPaths).
@@ -574,13 +879,57 @@ public class PathOptimize
      */
     public Location locationAtPoint(Point pointToCompare)
     {
-    	for(int locIndex = 0; locIndex < readLocations.size(); locIndex++){
-			if ((getReadLocation(locIndex).cord).equals(pointToCompare))
-			{
-				return(getReadLocation(locIndex));
-			}
+    	if(locationIndex == null)
+    		indexLocations();
+    	return(locationIndex.get(pointToCompare));
+    }
+    
+    /**
+     * Build the index of readLocations by coordinate that locationAtPoint()
+     * uses. If more than one Location is at the same spot, only the first
+     * one (in readLocations order) can ever be attached to a PathPoint, so
+     * each of the others is reported.
+     * @return the number of Locations that were shadowed by an earlier
+     * Location at the same coordinates
+     */
+    public int indexLocations()
+    {
+    	int duplicates = 0;
+    	locationIndex = new HashMap<Point, Location>(readLocations.size() * 2);
+    	for(Location l : readLocations)
+    	{
+    		Location first = locationIndex.get(l.cord);
+    		if(first == null)
+    		{
+    			locationIndex.put(l.cord, l);
+    			continue;
+    		}
+    		duplicates++;
+    		System.err.println("WARNING: Location \"" + l.getName() 
+    				+ "\" (ID " + l.ID + ") is at the same spot as \""
+    				+ first.getName() + "\" (ID " + first.ID + ") @ ("
+    				+ l.cord.x + ", " + l.cord.y + "). Using \""
+    				+ first.getName() + "\".");
+    	}
+    	return(duplicates);
+    }
+    
+    /**
+     * Get the spatial index used by the geometry stages, creating it (sized
+     * from readPaths) if it doesn't exist yet.
+     * @return the PathGrid for this PathOptimize
+     */
+    private PathGrid getGrid()
+    {
+    	if(grid == null)
+    	{
+    		int numPoints = 0;
+    		for(Vector<Point> path : readPaths)
+    			numPoints += path.size();
+    		
+    		grid = new PathGrid(PathGrid.extentOf(readPaths), numPoints);
     	}
-    	return(null);
+    	return(grid);
     }
     
     /**
@@ -609,6 +958,13 @@ public class PathOptimize
     /**
      * Condense all overlapping PathPoints into single PathPoints with
      * appropriate links.
+     * 
+     * PathPoints are grouped by their coordinates in a single pass, so this
+     * runs in linear time. The groups are merged in the order of their first
+     * PathPoint, and each group's overlaps in the order they were read, which
+     * is exactly the order the old pairwise scan merged them in. (That keeps
+     * the connection order -- and therefore the Edge IDs -- unchanged.) The
+     * merged PathPoints are taken out of the grid as they go.
      */
     public void condensePathPoints ()
     {
@@ -621,75 +977,99 @@ public class PathOptimize
     	//a PathPoint that is connected to the overlap PathPoint
     	PathPoint overlapConnection;
     	
-    	// Loop through all PathPoints in Paths Vector
-    	for(int activeIndex = 0; activeIndex<pathPoints.size(); activeIndex++){
-    		// Set active PathPoint (the one to check for overlaps)
-    		active = getPathPoint(activeIndex);
+    	PathGrid grid = getGrid();
+    	
+    	// all the PathPoints at each coordinate, in the order they were read.
+    	// The first PathPoint in each group is the active one.
+    	LinkedHashMap<Point, Vector<PathPoint>> groups = 
+    		new LinkedHashMap<Point, Vector<PathPoint>>(pathPoints.size() * 2);
+    	
+    	for(PathPoint p : pathPoints){
+    		Vector<PathPoint> group = groups.get(p.point);
+    		if(group == null){
+    			group = new Vector<PathPoint>(1);
+    			groups.put(p.point, group);
+    		}
+    		group.add(p);
+    	}
+    	
+    	// the PathPoints that survive the collapse, in their original order
+    	Vector<PathPoint> condensed = new Vector<PathPoint>(groups.size());
+    	
+    	for(Vector<PathPoint> group : groups.values()){
+    		// Set active PathPoint (the one to keep)
+    		active = group.get(0);
+    		condensed.add(active);
     		
-    		// Loop through all path points again to look for intersections
-    		for(int overlapIndex = activeIndex + 1; 
-    			overlapIndex < pathPoints.size(); overlapIndex++)
+    		// every other PathPoint in the group is an overlap PathPoint
+    		for(int overlapIndex = 1; overlapIndex < group.size(); 
+    			overlapIndex++)
     		{
-    			// If the active PathPoint intersects with a PathPoint, 
-    			// then that PathPoint is an overlap PathPoint
-    			if(getPointAtPathPointsIndex(activeIndex).equals(
-    					getPointAtPathPointsIndex(overlapIndex)))
+    			// Set overlap PathPoint (the one that is going to be
+    			// removed
+    			overlap = group.get(overlapIndex);
+    			// For all points that are connected to that overlap 
+    			// PathPoint
+    			// ... link the connected pathPoints to the active 
+    			// PathPoint
+    			for(int conPointIndex = 0; 
+    					conPointIndex < overlap.numConnectedPoints();
+    					conPointIndex++)
     			{
-    				// Set overlap PathPoint (the one that is going to be
-    				// removed
-    				overlap = getPathPoint(overlapIndex);
-    				// For all points that are connected to that overlap 
-    				// PathPoint
-    				// ... link the connected pathPoints to the active 
-    				// PathPoint
-    				for(int conPointIndex = 0; 
-    						conPointIndex < overlap.numConnectedPoints();
-    						conPointIndex++)
-    				{
-    					// Set the PathPoint that is connected to the 
-    					// overlap PathPoint
-    					overlapConnection = 
-    						overlap.getConnectedPathPoint(conPointIndex);
-    					
-    					// Remove the overlap PathPoint from the PathPoint
-    					// that is/was connected to the overlap PathPoint
-    					overlapConnection.removeConnectedPoint(overlap);
-    					
-    					// Add the active (the PathPoint we are overwriting
-    					// over the overlap PathPoint) to the PathPoint
-    					// that was connected to the overlap PathPoint.
-    					overlapConnection.addConnectedPoint(active);
-    					
-    					// Add the connected PathPoint to the active
-    					// PathPoint
-    					active.addConnectedPoint(overlapConnection);
-    				}
+    				// Set the PathPoint that is connected to the 
+    				// overlap PathPoint
+    				overlapConnection = 
+    					overlap.getConnectedPathPoint(conPointIndex);
     				
-    				// Remove the overlapping PathPoint
-    				pathPoints.remove(overlap);
-                    
-                    // we just removed this item, so decrement the index
-                    overlapIndex--;
+    				// Remove the overlap PathPoint from the PathPoint
+    				// that is/was connected to the overlap PathPoint
+    				overlapConnection.removeConnectedPoint(overlap);
+    				
+    				// Add the active (the PathPoint we are overwriting
+    				// over the overlap PathPoint) to the PathPoint
+    				// that was connected to the overlap PathPoint.
+    				overlapConnection.addConnectedPoint(active);
+    				
+    				// Add the connected PathPoint to the active
+    				// PathPoint
+    				active.addConnectedPoint(overlapConnection);
     			}
+    			
+    			// the overlap PathPoint is gone
+    			grid.removePoint(overlap);
     		}
     	}
+    	
+    	// drop all the overlapping PathPoints in one go
+    	pathPoints = condensed;
         
         // this part doesn't actually _do_ anything: rather, it's an integrity
         // check to make sure all the duplicate points were removed.
         // (I'm paranoid.)
+        HashSet<Point> seen = new HashSet<Point>(pathPoints.size() * 2);
         for(PathPoint a: pathPoints){
-            for(PathPoint o: pathPoints){
-                if(a == o)
-                    continue;
-                if(a.point.equals(o.point))
-                    System.err.println("ERROR: Overlapping PathPoints!");
-            }
+            if(!seen.add(a.point))
+                System.err.println("ERROR: Overlapping PathPoints!");
         }
     }
     
     /**
      * Find all intersections of connections from PathPoints, and add new,
      * connected PathPoints at these spots.
+     * 
+     * Each active PathPoint is only tested against the PathPoints the grid
+     * says could possibly intersect it (in the same order as the full scan
+     * would have visited them), so the result is the same as testing every
+     * PathPoint against every other one. The grid is kept up to date as
+     * links are rewired (see twoWayIntersectReplace). If intersectCandidates
+     * is "sweep", the candidates come from an IntersectionSweep instead,
+     * which is told about every split as well.
+     * 
+     * If intersectThreads is more than 1, the crossings are first looked for
+     * in parallel (see IntersectionTiles), and the loop below then skips
+     * every active PathPoint that had no crossing and whose neighborhood
+     * hasn't changed since. The result is identical for any number of
+     * threads.
      */
     public void intersections ()
     {
@@ -698,29 +1078,79 @@ public class PathOptimize
     	PathPoint tp1;  // Test point 1
     	PathPoint tp2;  // Test point 2
     	
-    	// The intersect coordinates
-    	double intersectX;
-    	double intersectYTest;
-    	double intersectYActive;
     	double activeSlope;
-    	double testSlope;
+    	Point intersectPoint;
+    	PathPoint overlap;
+    	
+    	// the PathPoints that might intersect the active point
+    	PathGrid grid = getGrid();
+    	grid.addSegments(pathPoints);
+    	HashMap<PathPoint, Integer> indexOf = 
+    		new HashMap<PathPoint, Integer>(pathPoints.size() * 2);
+    	for(int i = 0; i < pathPoints.size(); i++)
+    		indexOf.put(pathPoints.get(i), i);
+    	IntersectionSweep sweep = null;
+    	if(intersectCandidates.equals("sweep"))
+    		sweep = new IntersectionSweep(pathPoints);
+    	int [] candidates;
+    	int candidateIndex;
+    	boolean splitSomething;
+    	
+    	// active PathPoints that need the full test (null means all of them)
+    	boolean [] crossed = null;
+    	int numInitialPoints = pathPoints.size();
+    	if(intersectThreads > 1)
+    	{
+    		IntersectionTiles tiles = new IntersectionTiles(this, pathPoints,
+    				grid, indexOf);
+    		crossed = tiles.findCrossings(intersectThreads);
+    		// from here on, only what we change can create new crossings
+    		grid.trackChanges();
+    	}
+    	
+    	// for Flight Recorder (see IntersectionBatchEvent)
+    	IntersectionBatchEvent batch = null;
+    	int batchStart = 0;
+    	long batchTested = 0, batchAccepted = 0;
     	
-    	boolean intersect = false;  // For vertical test
-    	int ovIndex;
     	// Loop through all PathPoints in Paths Vector
     	for(int activeIndex1 = 0; activeIndex1<pathPoints.size(); 
     	activeIndex1++)
     	{
+    		if(activeIndex1 % IntersectionBatchEvent.BATCH_SIZE == 0)
+    		{
+    			if(batch != null)
+    				batch.finish(activeIndex1 - batchStart,
+    						pairsTested - batchTested,
+    						pairsAccepted - batchAccepted);
+    			batch = IntersectionBatchEvent.start("sequential",
+    					activeIndex1);
+    			batchStart = activeIndex1;
+    			batchTested = pairsTested;
+    			batchAccepted = pairsAccepted;
+    		}
+    		
     		// store the first point in our active line segment
     		ap1 = getPathPoint(activeIndex1);
     		
+    		// nothing crossed this point before we started, and nothing
+    		// around it has changed, so there's nothing to find
+    		if(crossed != null && activeIndex1 < numInitialPoints
+    				&& !crossed[activeIndex1] && !grid.changedNear(ap1))
+    			continue;
+    		
 			// For all points that are connected to that active point 1 
 			// PathPoint
     		
-			// now loop through all the points, again
-			for(int testIndex1 = 0; testIndex1<pathPoints.size(); 
-	    		testIndex1++)
+			// now loop through all the points that could intersect, again
+    		candidates = (sweep != null ? sweep.candidates(ap1, -1)
+    				: candidateIndices(ap1, indexOf, -1));
+    		candidateIndex = 0;
+			while(candidateIndex < candidates.length)
 	    	{
+				int testIndex1 = candidates[candidateIndex++];
+				splitSomething = false;
+				
 			    // store the first point in the test line segment
 	    		tp1 = getPathPoint(testIndex1);
 	    		//If the test point and active point are the same
@@ -757,195 +1187,218 @@ AP1:    		for(int activeIndex2 = 0;
 					    // store the second point in the test line segment
 						tp2 = tp1.getConnectedPathPoint(testIndex2);
 						
-						// if _this_ point is one of the active points, skip it
-						// if _this_ point is the same as the first test point
-						// skip!
-			    		if(tp2.equals(ap1) || tp2.equals(ap2) 
-			    				|| tp2.equals(tp1))
-			    			continue;
-						
-			    		
-			    		// test if this line (tp1-tp2) represents a bridge, tunnel,
-						// etc.
-						if(!tp1.allowLink(tp2))
+						intersectPoint = 
+							intersectionPoint(ap1, ap2, activeSlope, tp1, tp2);
+						pairsTested++;
+						if(intersectPoint == null)
 							continue;
+						pairsAccepted++;
 						
-			    		// this is The Rectangle Test
-			    		if(!rectangleTest(ap1, ap2, tp1, tp2))
-			    			continue;
-			    		
-						// Debug printing of the active and test points
-						if(intersectDebug)
-						{
-							System.err.print("ap1: (" + ap1.point.x + ", " + 
-									ap1.point.y + ") ");
-						
-							System.err.println(";  ap2: (" + ap2.point.x + 
-									", " + ap2.point.y + ") ");
-							
-							System.err.print("tp1: (" + tp1.point.x + ", " + 
-									tp1.point.y + ") ");
-							
-							System.err.println(";  tp2: (" + tp2.point.x + 
-									", " + tp2.point.y + ") ");
-							
-							System.err.println("Active slope: " + activeSlope);
-						}
-			    		
-						testSlope = getSlope(tp1, tp2);
-
-						//System.err.println("Test slope: " + testSlope);
-						
-						if(testSlope == activeSlope)
-							continue;
-
-						// calculate the possible X intersect coordinate
-						intersectX =
-							((  (activeSlope*(ap1.point.x) - ap1.point.y)
-								- (testSlope*(tp1.point.x) - tp1.point.y))/
-							   (activeSlope - testSlope));
+						// (this is actually supposed to be "P-sub-i", not
+						// the Greek letter Pi.)
+						// create a PathPoint in the location of the
+						// intercept point
+						PathPoint pi = new PathPoint(intersectPoint,
+								new Vector<PathPoint>(2), null );
 						
-						// calculate the two possible Y intersect coordinates
-						intersectYTest = ((testSlope)
-						        * (intersectX - tp1.point.x) + tp1.point.y);
-						intersectYActive = ((activeSlope)
-						        * (intersectX - ap1.point.x) + ap1.point.y);
+						// congratulations, you've found an intercept!
 						
-						// if the two Y intersect coordinates are the same,
-						// it's a real intersection
-						
-						// If vertical line!
-						if(Double.isInfinite(activeSlope) && 
-								Double.isInfinite(testSlope))
-							continue;
-						intersect = false;
-						if(Double.isInfinite(activeSlope) && 
-								!Double.isInfinite(testSlope))
-						{
-							intersectYTest = ((testSlope)
-									*(ap1.point.x-tp1.point.x) + tp1.point.y);
-							intersect = 
-								checkRange(ap1.point.y, 
-										ap2.point.y, intersectYTest);
-							intersectX = ap1.point.x;
-						}
-						if(Double.isInfinite(testSlope) && 
-								!Double.isInfinite(activeSlope))
-						{
-							intersectYActive = ((activeSlope)
-							        * (tp1.point.x - ap1.point.x) + ap1.point.y);
-							intersect = 
-								checkRange(tp1.point.y, 
-										tp2.point.y, intersectYActive);
-							intersectX = tp1.point.x;
-						}
-						// Debug print of the active and intersect slopes
-						if(intersectDebug)
-							System.err.println("iA: " + intersectYActive + "\n" 
-									+ "iT: " + intersectYTest);
-						if((intersect
-						|| Math.abs(intersectYActive-intersectYTest) < 0.00001))
+						if ((overlap = checkForPathPointOverlap(pi)) != null)
 						{
-							// Debug printing if the points inersect
-							if(intersectDebug){
-								System.err.println("Points are equal!");
-								System.err.println("(" + intersectX + ", " 
-										+ intersectYTest + ")");
+							pi = overlap;
+							// and integrate the new point with its neighbors
+							if(!pi.equals(ap1) && !pi.equals(ap2)){
+								twoWayIntersectReplace(ap1, ap2, pi);
+								if(sweep != null)
+									sweep.split(ap1, ap2, pi);
 							}
-							// (this is actually supposed to be "P-sub-i", not
-                            // the Greek letter Pi.)
-							// create a PathPoint in the location of the
-							// potential intercept point
-							PathPoint pi = new PathPoint(
-							        new Point( (int)intersectX,
-							                (int)intersectYTest),
-							        new Vector<PathPoint>(2), null );
-							
-							if(intersectDebug)
-								System.err.println("pi: (" + pi.point.x + ", " 
-										+ pi.point.y + ") ");
-							
-							// ensure that the potential point is actually on
-							// both lines
-							if(!pointInSegments(ap1, ap2, tp1, tp2, pi))
-								continue;
-							
-							// congratulations, you've found an intercept!
 							
-							if ((ovIndex = checkForPathPointOverlap(pi)) != -1)
-							{
-								pi = (PathPoint)pathPoints.get(ovIndex);
-								// and integrate the new point with its neighbors
-								if(!pi.equals(ap1) && !pi.equals(ap2))
-									twoWayIntersectReplace(ap1, ap2, pi);
-								
-								if(intersectDebug)
-									System.err.println("pi, 1: " + pi);
-								
-								if(!pi.equals(tp1) && !pi.equals(tp2))
-									twoWayIntersectReplace(tp1, tp2, pi);
-								
-								if(intersectDebug)
-									System.err.println("pi, 2: " + pi);
-
-							}
-							else
-							{
-								// add the new point to the main points Vector
-								pathPoints.add(pi);
-								twoWayIntersectReplace(ap1, ap2, pi);
+							if(!pi.equals(tp1) && !pi.equals(tp2)){
 								twoWayIntersectReplace(tp1, tp2, pi);
+								if(sweep != null)
+									sweep.split(tp1, tp2, pi);
 							}
-
-							if(intersectDebug){
-								System.err.println("pi, after: " + pi);
-								
-								System.err.println("ap1, after: " + ap1);
-								System.err.println("ap2, after: " + ap2);
-								System.err.println("tp1, after: " + tp1);
-								System.err.println("tp2, after: " + tp2);
+						}
+						else
+						{
+							// add the new point to the main points Vector
+							indexOf.put(pi, pathPoints.size());
+							pathPoints.add(pi);
+							grid.addPoint(pi);
+							twoWayIntersectReplace(ap1, ap2, pi);
+							twoWayIntersectReplace(tp1, tp2, pi);
+							if(sweep != null){
+								sweep.addPathPoint(pi);
+								sweep.split(ap1, ap2, pi);
+								sweep.split(tp1, tp2, pi);
 							}
-							// since we've found an intercept, abort this
-							// entire test line, and move on to the next 
-							// 'active point 2'
-							continue AP1;
 						}
-						
+						splitSomething = true;
+						IntersectionEvent.record(ap1, ap2, tp1, tp2, pi,
+								overlap != null);
+
+						// since we've found an intercept, abort this
+						// entire test line, and move on to the next 
+						// 'active point 2'
+						continue AP1;
 					}
 		    	}
-
+				
+				// the links have changed, so the remaining candidates may
+				// have too
+				if(splitSomething){
+					candidates = (sweep != null
+							? sweep.candidates(ap1, testIndex1)
+							: candidateIndices(ap1, indexOf, testIndex1));
+					candidateIndex = 0;
+				}
 			}
     	}
-		if(intersectDebug)
-			System.err.println("End intersections().");
+		if(batch != null)
+			batch.finish(pathPoints.size() - batchStart,
+					pairsTested - batchTested, pairsAccepted - batchAccepted);
+    }
+    
+    /**
+     * Find where the line segments ap1-ap2 and tp1-tp2 intersect, if they
+     * do. This is the test intersections() applies to every pair of
+     * segments; it doesn't change anything, so it's also safe to call from
+     * several threads at once.
+     * 
+     * @param ap1 first point in the active line
+     * @param ap2 second point in the active line
+     * @param activeSlope the slope of the active line (see getSlope)
+     * @param tp1 first point in the test line
+     * @param tp2 second point in the test line
+     * @return the intersection point (truncated to integers), or null if the
+     * segments don't intersect, share an end, or one of them is a bridge,
+     * tunnel, etc.
+     */
+    public Point intersectionPoint(PathPoint ap1, PathPoint ap2,
+    		double activeSlope, PathPoint tp1, PathPoint tp2)
+    {
+    	// The intersect coordinates
+    	double intersectX;
+    	double intersectYTest;
+    	double intersectYActive;
+    	double testSlope;
+    	
+    	boolean intersect = false;  // For vertical test
+    	
+		// if _this_ point is one of the active points, skip it
+		// if _this_ point is the same as the first test point
+		// skip!
+		if(tp2.equals(ap1) || tp2.equals(ap2) 
+				|| tp2.equals(tp1))
+			return(null);
+		
+		// test if this line (tp1-tp2) represents a bridge, tunnel,
+		// etc.
+		if(!tp1.allowLink(tp2))
+			return(null);
+		
+		// this is The Rectangle Test
+		if(!rectangleTest(ap1, ap2, tp1, tp2))
+			return(null);
+		
+		testSlope = getSlope(tp1, tp2);
+
+		//System.err.println("Test slope: " + testSlope);
+		
+		if(testSlope == activeSlope)
+			return(null);
+
+		// calculate the possible X intersect coordinate
+		intersectX =
+			((  (activeSlope*(ap1.point.x) - ap1.point.y)
+				- (testSlope*(tp1.point.x) - tp1.point.y))/
+			   (activeSlope - testSlope));
+		
+		// calculate the two possible Y intersect coordinates
+		intersectYTest = ((testSlope)
+		        * (intersectX - tp1.point.x) + tp1.point.y);
+		intersectYActive = ((activeSlope)
+		        * (intersectX - ap1.point.x) + ap1.point.y);
+		
+		// if the two Y intersect coordinates are the same,
+		// it's a real intersection
+		
+		// If vertical line!
+		if(Double.isInfinite(activeSlope) && 
+				Double.isInfinite(testSlope))
+			return(null);
+		intersect = false;
+		if(Double.isInfinite(activeSlope) && 
+				!Double.isInfinite(testSlope))
+		{
+			intersectYTest = ((testSlope)
+					*(ap1.point.x-tp1.point.x) + tp1.point.y);
+			intersect = 
+				checkRange(ap1.point.y, 
+						ap2.point.y, intersectYTest);
+			intersectX = ap1.point.x;
+		}
+		if(Double.isInfinite(testSlope) && 
+				!Double.isInfinite(activeSlope))
+		{
+			intersectYActive = ((activeSlope)
+			        * (tp1.point.x - ap1.point.x) + ap1.point.y);
+			intersect = 
+				checkRange(tp1.point.y, 
+						tp2.point.y, intersectYActive);
+			intersectX = tp1.point.x;
+		}
+		if(!(intersect
+		|| Math.abs(intersectYActive-intersectYTest) < 0.00001))
+			return(null);
+		
+		Point pi = new Point( (int)intersectX, (int)intersectYTest);
+		
+		// ensure that the potential point is actually on
+		// both lines
+		if(!inRectangle(ap1.point, ap2.point, pi)
+				|| !inRectangle(tp1.point, tp2.point, pi))
+			return(null);
+		
+		return(pi);
+    }
+    
+    /**
+     * Get the indices (in pathPoints) of all PathPoints that might have a
+     * connection intersecting one of the given PathPoint's connections,
+     * according to the grid.
+     * @param p the PathPoint to find candidates for
+     * @param indexOf the index of every PathPoint in pathPoints
+     * @param after only return indices greater than this
+     * @return the candidate indices, in increasing order
+     */
+    private int[] candidateIndices(PathPoint p,
+    		HashMap<PathPoint, Integer> indexOf, int after)
+    {
+    	HashSet<PathPoint> neighbors = getGrid().segmentNeighbors(p);
+    	IntList found = new IntList(neighbors.size());
+    	for(PathPoint n : neighbors){
+    		int i = indexOf.get(n);
+    		if(i > after)
+    			found.add(i);
+    	}
+    	int [] ret = Arrays.copyOf(found.data, found.size);
+    	Arrays.sort(ret);
+    	return(ret);
     }
     
 	/**
 	 * Checks to see if the passed in Path Point has an intersection
-	 * with any other pathPoints.  Returns the index
-	 * of the PathPoint in the pathPoints vector.
+	 * with any other pathPoints.  Returns the PathPoint already
+	 * at that spot, if any.
 	 * @param pi The PathPoint to check for overlaps with...
-	 * @return The index in the pathPoints vector of the first
-	 * pathPoint found that contains an intersection
+	 * @return The first PathPoint in the pathPoints vector found at the
+	 * same spot as pi, or null if there isn't one
 	 */
-    public int checkForPathPointOverlap(PathPoint pi)
+    public PathPoint checkForPathPointOverlap(PathPoint pi)
     {
-		// Loop through all path points again to look for intersections
-		for(int overlapIndex = 0; overlapIndex < pathPoints.size();
-			overlapIndex++)
-		{
-			// If the active PathPoint intersects with a PathPoint, 
-			// then that PathPoint is an overlap PathPoint
-			if(pi.point.equals(
-					getPointAtPathPointsIndex(overlapIndex)))
-			{
-				if(intersectDebug)
-					System.err.println("Identical PathPoint found " +
-							"for intersections");
-				return(overlapIndex);
-			}
-		}
-		return(-1);
+		// only the grid cell containing pi can hold an overlap
+		return(getGrid().pointAt(pi.point));
     }
 
 	/**
@@ -957,13 +1410,8 @@ AP1:    		for(int activeIndex2 = 0;
 	 */
     public boolean checkRange(double val1, double val2, double testVal)
     {
-		if(intersectDebug)
-			System.err.println("CHECKRANGE:");
     	double min = Math.min(val1, val2);
     	double max = Math.max(val1, val2);
-		if(intersectDebug)
-    		System.err.println("Min: " + min + " Max: " + max 
-					+ "test: " + testVal);
     	if(testVal < min)
     		return(false);
     	if(testVal > max)
@@ -986,14 +1434,12 @@ AP1:    		for(int activeIndex2 = 0;
     public boolean pointInSegments(PathPoint ap1, PathPoint ap2, PathPoint tp1,
     		PathPoint tp2, PathPoint pi)
     {
-    	Rectangle rec1 = createRectangle(ap1.point,ap2.point);
     	// if the point isn't in the first rectangle, it can't be in both
-    	if(!rec1.contains(pi.point))
+    	if(!inRectangle(ap1.point, ap2.point, pi.point))
     		return(false);
     	
-    	Rectangle rec2 = createRectangle(tp1.point, tp2.point);
     	// if the point isn't in the second rectangle, it can't be in both
-    	if(!rec2.contains(pi.point))
+    	if(!inRectangle(tp1.point, tp2.point, pi.point))
     		return(false);
     	
     	// by this point, we've tested both rectangles
@@ -1015,9 +1461,28 @@ AP1:    		for(int activeIndex2 = 0;
     public boolean rectangleTest(PathPoint ap1, PathPoint ap2, PathPoint tp1,
     		PathPoint tp2)
     {
-    	Rectangle rec1 = createRectangle(ap1.point,ap2.point);
-    	Rectangle rec2 = createRectangle(tp1.point, tp2.point);
-    	return(rec1.intersects(rec2));
+    	// same as createRectangle(...).intersects(createRectangle(...)), but
+    	// without allocating two Rectangles for every pair we test
+    	Point a1 = ap1.point, a2 = ap2.point, t1 = tp1.point, t2 = tp2.point;
+    	return(Math.min(a1.x, a2.x) <= Math.max(t1.x, t2.x)
+    			&& Math.min(t1.x, t2.x) <= Math.max(a1.x, a2.x)
+    			&& Math.min(a1.y, a2.y) <= Math.max(t1.y, t2.y)
+    			&& Math.min(t1.y, t2.y) <= Math.max(a1.y, a2.y));
+    }
+    
+    /**
+     * Test if a point is inside the rectangle defined by two other points
+     * (edges included). This is createRectangle(p1, p2).contains(p), without
+     * the Rectangle.
+     * @param p1 A point defining one corner of the rectangle
+     * @param p2 A point defining the other corner of the rectangle
+     * @param p The point to test
+     * @return true if p is inside the rectangle, false otherwise
+     */
+    public static boolean inRectangle(Point p1, Point p2, Point p)
+    {
+    	return(p.x >= Math.min(p1.x, p2.x) && p.x <= Math.max(p1.x, p2.x)
+    			&& p.y >= Math.min(p1.y, p2.y) && p.y <= Math.max(p1.y, p2.y));
     }
     
     /**
@@ -1051,6 +1516,14 @@ AP1:    		for(int activeIndex2 = 0;
     {
         intersectReplace(p1, p2, pi);
         intersectReplace(p2, p1, pi);
+        
+        // keep the grid's segments in step with the new links
+        if(grid != null)
+        {
+        	grid.removeSegment(p1, p2);
+        	grid.addSegment(p1, pi);
+        	grid.addSegment(p2, pi);
+        }
     }
     
     /**
@@ -1175,6 +1648,8 @@ AP1:    		for(int activeIndex2 = 0;
     			conIndex++)
     		{
     			// Create new edge
+				EdgeBuildEvent edgeEvent = new EdgeBuildEvent();
+				edgeEvent.begin();
 				tempEdge = new Edge();
 				
 				// add Significant PathPoint to edge's path.
@@ -1232,6 +1707,7 @@ AP1:    		for(int activeIndex2 = 0;
 						System.err.println("Working with an end that needs" +
 								" to be discarded, (isn't a graphPoint)");
 					tempEdge.discard();
+					edgeEvent.finish(tempEdge, "discarded");
 					continue;
 				}
 				if(debugPPtoGP)
@@ -1245,6 +1721,7 @@ AP1:    		for(int activeIndex2 = 0;
 					
 					// this decrements the Edge class' static ID count
 					tempEdge.discard();
+					edgeEvent.finish(tempEdge, "shared");
 					if(debugPPtoGP)
 						System.err.println("  --Discarding edge--");
 				}
@@ -1264,6 +1741,7 @@ AP1:    		for(int activeIndex2 = 0;
 					// save the edge's path we added so we can print it later
 					outPaths.add(tempEdge.path);
 					outEdges.add(tempEdge);
+					edgeEvent.finish(tempEdge, "added");
 				}
 				
     		}
@@ -1860,6 +2338,15 @@ class Edge
 	// Binary file identifier
 	static int IDcount = 1;
 	
+	/**
+	 * First int of a compact edge file ('CMED')
+	 */
+	static final int COMPACT_MAGIC = 0x434D4544;
+	/**
+	 * Version of the compact edge file format
+	 */
+	static final int COMPACT_VERSION = 2;
+	
 	/**
 	 * Default constructor for edges
 	 */
@@ -1984,4 +2471,61 @@ class Edge
 			System.err.println("Error in Edge.binaryWrite()!");
 		}
 	}
+	
+	/**
+	 * Get the number of bytes binaryWriteCompact() will write for this Edge.
+	 * @param deltas whether the points are delta + varint encoded
+	 * @return the size of this Edge's compact record, in bytes
+	 */
+	public int compactSize(boolean deltas)
+	{
+		// ID, endpoints, number of points, then the points themselves
+		return(4*4 + EdgeGeometry.encodedSize(pathXs(), pathYs(),
+				path.size(), deltas));
+	}
+	
+	/**
+	 * Write this Edge as a record in a compact edge file (see
+	 * PathOptimize.binaryWriteCompactEdges()). Without deltas this is the
+	 * same as binaryWrite(), without the padding.
+	 * @param out Output stream
+	 * @param deltas whether to delta + varint encode the points (see
+	 * EdgeGeometry)
+	 * @throws IOException if the record can't be written
+	 */
+	public void binaryWriteCompact(DataOutputStream out, boolean deltas)
+		throws IOException
+	{
+		if(PathOptimize.debugBinaryEdges)
+			System.err.println("Edge ID: " + ID + " (" + endpt1.ID + " -> "
+					+ endpt2.ID + "), " + path.size() + " points");
+		out.writeInt(ID);
+		out.writeInt(endpt1.ID);
+		out.writeInt(endpt2.ID);
+		out.writeInt(path.size());
+		EdgeGeometry.writePoints(out, pathXs(), pathYs(), path.size(),
+				deltas);
+	}
+	
+	/**
+	 * @return the x coordinates of the points in this Edge's path
+	 */
+	private int[] pathXs()
+	{
+		int [] xs = new int[path.size()];
+		for(int i = 0; i < xs.length; i++)
+			xs[i] = path.get(i).x;
+		return(xs);
+	}
+	
+	/**
+	 * @return the y coordinates of the points in this Edge's path
+	 */
+	private int[] pathYs()
+	{
+		int [] ys = new int[path.size()];
+		for(int i = 0; i < ys.length; i++)
+			ys[i] = path.get(i).y;
+		return(ys);
+	}
 }
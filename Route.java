@@ -0,0 +1,200 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * A route through a PathGraph.
+ */
+
+/**
+ * A route from one GraphPoint to another, as found by ShortestPath: the
+ * GraphPoints it passes through, the Edges between them (and which way each
+ * one is followed), its length and the rectangle needed to view it.
+ * <br><br>
+ * The length and rectangle are worked out the same way
+ * ShortestPath::pathPoints() in the Perl frontend does: the length is the sum
+ * of the (int) connection weights, and the rectangle holds both ends and
+ * every point of every Edge.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class Route
+{
+	/**
+	 * The graph the route is in.
+	 */
+	final PathGraph graph;
+	/**
+	 * GraphPoint IDs along the route, from the source to the target (one
+	 * more than there are Edges).
+	 */
+	final int [] points;
+	/**
+	 * Edge IDs along the route, from the source to the target.
+	 */
+	final int [] edges;
+	/**
+	 * For each Edge, whether it is followed from its start to its end (true)
+	 * or the other way around (false).
+	 */
+	final boolean [] forward;
+	/**
+	 * Length of the route, in pixels.
+	 */
+	final int distance;
+	/**
+	 * The rectangle needed to view the whole route.
+	 */
+	final int xmin, ymin, xmax, ymax;
+
+	/**
+	 * Create a route from the connections followed along it.
+	 * @param graph the graph the route is in
+	 * @param source the GraphPoint the route starts at
+	 * @param conns indices (in graph.neighbor[] etc.) of the connections
+	 * followed, in order from the source
+	 */
+	public Route(PathGraph graph, int source, int [] conns)
+	{
+		this.graph = graph;
+		points = new int[conns.length + 1];
+		edges = new int[conns.length];
+		forward = new boolean[conns.length];
+
+		int target = source;
+		int dist = 0;
+		int x0 = graph.x[source], y0 = graph.y[source];
+		int x1 = x0, y1 = y0;
+		points[0] = source;
+		for(int i = 0; i < conns.length; i++){
+			int c = conns[i];
+			edges[i] = graph.edge[c];
+			forward[i] = (graph.edgeStart[edges[i]] == target);
+			target = graph.neighbor[c];
+			points[i+1] = target;
+			dist += graph.weight[c];
+
+			for(int p = graph.edgeOffset[edges[i]];
+					p < graph.edgeOffset[edges[i]+1]; p++){
+				int x = graph.coords[2*p], y = graph.coords[2*p + 1];
+				x0 = Math.min(x0, x); x1 = Math.max(x1, x);
+				y0 = Math.min(y0, y); y1 = Math.max(y1, y);
+			}
+		}
+		x0 = Math.min(x0, graph.x[target]); x1 = Math.max(x1, graph.x[target]);
+		y0 = Math.min(y0, graph.y[target]); y1 = Math.max(y1, graph.y[target]);
+
+		distance = dist;
+		xmin = x0; ymin = y0;
+		xmax = x1; ymax = y1;
+	}
+
+	/**
+	 * Create a route from the Edges followed along it, when its length and
+	 * rectangle are already known (see RouteCodec), without looking at any
+	 * Edge's points.
+	 * @param graph the graph the route is in
+	 * @param source the GraphPoint the route starts at
+	 * @param edges Edge IDs along the route, from the source
+	 * @param forward which way each Edge is followed
+	 * @param distance length of the route
+	 * @param rect xmin, ymin, xmax, ymax of the rectangle needed to view it
+	 */
+	Route(PathGraph graph, int source, int [] edges, boolean [] forward,
+			int distance, int [] rect)
+	{
+		this.graph = graph;
+		this.edges = edges;
+		this.forward = forward;
+		this.distance = distance;
+		points = new int[edges.length + 1];
+		points[0] = source;
+		for(int i = 0; i < edges.length; i++)
+			points[i+1] = (forward[i] ? graph.edgeEnd[edges[i]]
+					: graph.edgeStart[edges[i]]);
+		xmin = rect[0]; ymin = rect[1];
+		xmax = rect[2]; ymax = rect[3];
+	}
+
+	/**
+	 * @return the GraphPoint the route starts at
+	 */
+	public int source()
+	{
+		return(points[0]);
+	}
+
+	/**
+	 * @return the GraphPoint the route ends at
+	 */
+	public int target()
+	{
+		return(points[points.length - 1]);
+	}
+
+	/**
+	 * Get the same route the other way, from the target to the source. (It's
+	 * as short that way, too: see ShortestPath.)
+	 * @return the reversed route
+	 */
+	public Route reverse()
+	{
+		int [] conns = new int[edges.length];
+		for(int i = 0; i < edges.length; i++){
+			int e = edges[edges.length - 1 - i];
+			int v = points[edges.length - i];
+			int w = points[edges.length - 1 - i];
+			for(int c = graph.offset[v]; c < graph.offset[v+1]; c++)
+				if(graph.edge[c] == e && graph.neighbor[c] == w){
+					conns[i] = c;
+					break;
+				}
+		}
+		return(new Route(graph, target(), conns));
+	}
+
+	/**
+	 * Get all the points along the route, from the source to the target.
+	 * Where one Edge ends and the next begins, the shared point is only
+	 * included once.
+	 * @return x, y of each point, one after the other
+	 */
+	public int[] geometry()
+	{
+		int n = 1;
+		for(int e : edges)
+			n += graph.edgeNumPoints(e) - 1;
+		int [] coords = new int[2*n];
+
+		coords[0] = graph.x[source()];
+		coords[1] = graph.y[source()];
+		int k = 1;
+		for(int i = 0; i < edges.length; i++){
+			int len = graph.edgeNumPoints(edges[i]);
+			// skip the first point of each Edge; it's the last point of the
+			// one before (or the source)
+			for(int j = 1; j < len; j++){
+				int p = forward[i] ? j : len - 1 - j;
+				coords[2*k] = graph.edgeX(edges[i], p);
+				coords[2*k + 1] = graph.edgeY(edges[i], p);
+				k++;
+			}
+		}
+		return(coords);
+	}
+
+	/**
+	 * Describe the route (for debugging).
+	 * @return GraphPoint IDs and distance of the route
+	 */
+	public String toString()
+	{
+		StringBuffer buf = new StringBuffer();
+		for(int i = 0; i < points.length; i++){
+			if(i > 0)
+				buf.append(" -(" + edges[i-1] + ")-> ");
+			buf.append(points[i]);
+		}
+		buf.append(" (distance " + distance + ")");
+		return(buf.toString());
+	}
+}
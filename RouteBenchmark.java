@@ -0,0 +1,158 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Compares the route search modes.
+ */
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Runs the same random Location-to-Location queries through each route
+ * search mode, and reports how many GraphPoints each one settles and how long
+ * it takes per query. It also checks that every mode finds routes that cost
+ * the same (length and no-pass-through penalties) as plain Dijkstra, both for
+ * those queries and for the same number of queries between any two random
+ * GraphPoints (which, unlike Locations, may be able to be passed through).
+ * <br><br>
+ * Usage: java RouteBenchmark [queries [maxDistance]]
+ * <br>
+ * If maxDistance is given, only pairs of Locations at most that many pixels
+ * apart (in a straight line) are used, which is closer to what people
+ * actually ask for: routes between nearby buildings.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class RouteBenchmark
+{
+	/**
+	 * Run the benchmark.
+	 * @param args number of queries and maximum distance (both optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int queries = 10000;
+		int maxDistance = Integer.MAX_VALUE;
+		if(args.length > 0)
+			queries = Integer.parseInt(args[0]);
+		if(args.length > 1)
+			maxDistance = Integer.parseInt(args[1]);
+
+		PathGraph g = PathGraph.load(ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges);
+
+		long start = System.nanoTime();
+		ContractionHierarchy ch = ContractionHierarchy.build(g);
+		System.err.println("Contraction hierarchy: " + ch.numArcs + " arcs, "
+				+ ch.numCore + " core GraphPoints, built in "
+				+ (System.nanoTime() - start) / 1000000 + "ms");
+		start = System.nanoTime();
+		Landmarks lm = Landmarks.build(g, 16, true);
+		System.err.println("Landmarks: " + lm.numLandmarks + ", picked in "
+				+ (System.nanoTime() - start) / 1000000 + "ms");
+
+		ShortestPath [] modes = {
+			new ShortestPath(g), new AStarPath(g), new BidirectionalPath(g),
+			new HierarchyPath(ch), new LandmarkPath(lm)
+		};
+		String [] names = { "Dijkstra", "A*", "Bidirectional", "Hierarchy",
+			"ALT" };
+
+		// queries between Locations
+		int [] locs = ShortestPath.locationIDs(g);
+		int [] sources = new int[queries];
+		int [] targets = new int[queries];
+		Random rand = new Random(1);
+		for(int i = 0; i < queries; ){
+			int s = g.pointOfLocation(locs[rand.nextInt(locs.length)]);
+			int t = g.pointOfLocation(locs[rand.nextInt(locs.length)]);
+			if(Math.hypot(g.x[s] - g.x[t], g.y[s] - g.y[t]) > maxDistance)
+				continue;
+			sources[i] = s;
+			targets[i] = t;
+			i++;
+		}
+		System.err.println(queries + " queries between Locations"
+				+ (maxDistance == Integer.MAX_VALUE ? ""
+					: " (at most " + maxDistance + " pixels apart)") + ":");
+		runAll(names, modes, sources, targets);
+
+		// queries between any GraphPoints
+		for(int i = 0; i < queries; i++){
+			sources[i] = 1 + rand.nextInt(g.numPoints);
+			targets[i] = 1 + rand.nextInt(g.numPoints);
+		}
+		System.err.println(queries + " queries between GraphPoints:");
+		runAll(names, modes, sources, targets);
+	}
+
+	/**
+	 * Run the queries through every mode, checking them against the first.
+	 * @param names name of each mode
+	 * @param modes searcher for each mode
+	 * @param sources source GraphPoint of each query
+	 * @param targets target GraphPoint of each query
+	 */
+	static void runAll(String [] names, ShortestPath [] modes,
+			int [] sources, int [] targets)
+	{
+		long [] expected = new long[sources.length];
+		for(int i = 0; i < sources.length; i++)
+			expected[i] = cost(modes[0].route(sources[i], targets[i]));
+		for(int m = 0; m < modes.length; m++)
+			run(names[m], modes[m], sources, targets, expected);
+	}
+
+	/**
+	 * Get the full cost of a route: its length, plus the penalty for every
+	 * GraphPoint it passes through that can't be passed through.
+	 * @param r the route (or null)
+	 * @return the cost, or -1 if r is null
+	 */
+	static long cost(Route r)
+	{
+		if(r == null)
+			return(-1);
+		long cost = r.distance;
+		for(int i = 1; i < r.points.length - 1; i++)
+			if(!r.graph.passThrough[r.points[i]])
+				cost += ShortestPath.NO_PASS_THROUGH_PENALTY;
+		return(cost);
+	}
+
+	/**
+	 * Run every query through one search mode and print the results.
+	 * @param name name of the mode
+	 * @param sp the searcher
+	 * @param sources source GraphPoint of each query
+	 * @param targets target GraphPoint of each query
+	 * @param expected cost of each route (-1 for none)
+	 */
+	static void run(String name, ShortestPath sp, int [] sources,
+			int [] targets, long [] expected)
+	{
+		long settled = 0;
+		int mismatches = 0;
+		long elapsed = 0;
+		// once to warm up, once to time
+		for(int pass = 0; pass < 2; pass++){
+			settled = 0;
+			mismatches = 0;
+			long start = System.nanoTime();
+			for(int i = 0; i < sources.length; i++){
+				Route r = sp.route(sources[i], targets[i]);
+				settled += sp.settled;
+				if(cost(r) != expected[i])
+					mismatches++;
+			}
+			elapsed = System.nanoTime() - start;
+		}
+		System.err.println("\t" + name + ": "
+				+ (settled / sources.length) + " GraphPoints settled, "
+				+ (elapsed / sources.length / 1000.0) + "us per query"
+				+ (mismatches > 0
+					? " (" + mismatches + " DIFFERENT COSTS!)" : ""));
+	}
+}
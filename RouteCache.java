@@ -0,0 +1,437 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Bounded in-memory cache of routes between Locations.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+/**
+ * The in-memory version of the .path files in the Perl frontend's cache
+ * directory: routes between Locations, kept by the (unordered) pair of
+ * Location IDs, the same way MapGlobals::getCacheName() names them. A route
+ * from B to A is the one from A to B, reversed. Routes are kept encoded as
+ * the Edges they follow (see RouteCodec), which takes an order of magnitude
+ * less room than their points, and decoded when they're asked for.
+ * <br><br>
+ * The cache holds at most a given number of bytes, counting each route as
+ * its encoded size plus a bit for keeping track of it (see weigh()), so long
+ * routes take up more of it than short ones. When it's full, the least
+ * recently used routes are the ones to go, but only if the route that needs
+ * their room has been asked for more often than they have (TinyLFU
+ * admission): how often every pair is asked for, cached or not, is counted
+ * in a FrequencySketch. A pair asked for once doesn't push out a route
+ * people ask for all the time; a pair that gets popular gets in.
+ * <br><br>
+ * "No route" is cached as well. A RouteCache can be shared between threads.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class RouteCache
+{
+	/**
+	 * Finds routes that aren't in the cache.
+	 */
+	interface Loader
+	{
+		/**
+		 * Find a route.
+		 * @param fromLocation ID of the Location to start at
+		 * @param toLocation ID of the Location to go to
+		 * @return the route, or null if there is none
+		 */
+		Route load(int fromLocation, int toLocation);
+	}
+
+	/**
+	 * Bytes counted for each cached route (or "no route") on top of its
+	 * encoding: about what its map entry, key and array take up.
+	 */
+	static final int ENTRY_OVERHEAD = 64;
+
+	/**
+	 * The graph the routes are in.
+	 */
+	final PathGraph graph;
+	/**
+	 * Most bytes of routes the cache holds.
+	 */
+	final long capacity;
+
+	// the routes, least recently used first; each one goes from the lower
+	// Location ID to the higher
+	private LinkedHashMap<Long, Entry> entries =
+		new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+	private long size = 0;
+	private FrequencySketch sketch;
+	// routes being loaded now
+	private SingleFlight<Long, Route> loading = new SingleFlight<Long, Route>();
+
+	// counters
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejections = 0;
+	private long loadNanos = 0;
+	private LatencyHistogram probes = new LatencyHistogram();
+
+	/**
+	 * A cached route, encoded (or null for none), and its size.
+	 */
+	private static class Entry
+	{
+		final byte [] route;
+		final int size;
+
+		Entry(Route r)
+		{
+			route = (r == null ? null : RouteCodec.encode(r));
+			size = (route == null ? 0 : route.length) + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * Create an empty cache.
+	 * @param graph the graph the routes are in
+	 * @param capacity most bytes of routes to hold
+	 */
+	public RouteCache(PathGraph graph, long capacity)
+	{
+		this.graph = graph;
+		this.capacity = capacity;
+		// enough counters for the routes that fit, at a guess of a couple
+		// hundred bytes each (the sketch takes 2 bytes per counter, over
+		// all its rows)
+		sketch = new FrequencySketch((int)Math.min(capacity / 256 + 64,
+					1 << 20));
+	}
+
+	/**
+	 * Get the key for a pair of Locations.
+	 */
+	static long key(int a, int b)
+	{
+		return(((long)Math.min(a, b) << 32) | Math.max(a, b));
+	}
+
+	/**
+	 * Get the size a route takes up in the cache: its encoded size (see
+	 * RouteCodec), plus ENTRY_OVERHEAD.
+	 * @param r the route, or null for none
+	 * @return its size, in bytes
+	 */
+	static int weigh(Route r)
+	{
+		return(new Entry(r).size);
+	}
+
+	/**
+	 * Get the route between two Locations, from the cache if it's there, or
+	 * else from a loader (and then try to cache it). The loader is called
+	 * without holding any lock, and if the same route is asked for while it's
+	 * loading, the request waits for it rather than loading it too.
+	 * @param fromLocation ID of the Location to start at
+	 * @param toLocation ID of the Location to go to
+	 * @param loader finds the route if it isn't cached
+	 * @return the route, or null if there is none
+	 */
+	public Route get(int fromLocation, int toLocation, Loader loader)
+	{
+		long start = System.nanoTime();
+		long key = key(fromLocation, toLocation);
+		Entry e;
+		synchronized(this){
+			sketch.increment(key);
+			e = entries.get(key);
+			if(e != null)
+				hits++;
+			else
+				misses++;
+		}
+		if(e != null){
+			Route r = (e.route == null ? null
+					: RouteCodec.decode(e.route, graph));
+			probes.record(System.nanoTime() - start);
+			return(orient(r, fromLocation, toLocation));
+		}
+		probes.record(System.nanoTime() - start);
+
+		// always load it from the lower ID to the higher, the way it's kept,
+		// and only once at a time; it's cached before anyone else can miss
+		// it again
+		final int a = Math.min(fromLocation, toLocation);
+		final int b = Math.max(fromLocation, toLocation);
+		final Loader l = loader;
+		Route r = loading.run(key, new Callable<Route>(){
+			public Route call()
+			{
+				long start = System.nanoTime();
+				Route loaded = l.load(a, b);
+				long elapsed = System.nanoTime() - start;
+				Entry entry = new Entry(loaded);
+				synchronized(RouteCache.this){
+					loadNanos += elapsed;
+					put(key(a, b), entry);
+				}
+				return(loaded);
+			}
+		});
+		return(orient(r, fromLocation, toLocation));
+	}
+
+	/**
+	 * Add a route found ahead of time (see CacheWarmer), counting it as
+	 * asked for a number of times already, so it isn't pushed out by the
+	 * first few routes asked for once. It's added the same way a loaded route
+	 * is, so it may not be if the cache is full of more popular routes.
+	 * @param fromLocation ID of the Location the route starts at
+	 * @param toLocation ID of the Location the route goes to
+	 * @param r the route, or null if there is none
+	 * @param count how many times it's been asked for
+	 */
+	public synchronized void preload(int fromLocation, int toLocation,
+			Route r, int count)
+	{
+		long key = key(fromLocation, toLocation);
+		for(int i = 0; i < Math.min(count, FrequencySketch.MAX_COUNT); i++)
+			sketch.increment(key);
+		// kept from the lower ID to the higher
+		put(key, new Entry(orient(r, fromLocation, toLocation)));
+	}
+
+	/**
+	 * @param fromLocation ID of one Location
+	 * @param toLocation ID of the other
+	 * @return whether the route between them is cached (without counting it
+	 * as asked for)
+	 */
+	public synchronized boolean contains(int fromLocation, int toLocation)
+	{
+		return(entries.containsKey(key(fromLocation, toLocation)));
+	}
+
+	/**
+	 * Get a route (kept from the lower Location ID to the higher) the way it
+	 * was asked for.
+	 */
+	static Route orient(Route r, int fromLocation, int toLocation)
+	{
+		if(r == null || fromLocation <= toLocation)
+			return(r);
+		return(r.reverse());
+	}
+
+	/**
+	 * Add a route, if there's room for it or it's asked for more often than
+	 * the routes that would have to make room.
+	 */
+	private void put(long key, Entry e)
+	{
+		if(entries.containsKey(key))
+			return;
+		if(e.size > capacity){
+			rejections++;
+			return;
+		}
+
+		// see who would have to go, and whether they're all less popular
+		if(size + e.size > capacity){
+			int frequency = sketch.frequency(key);
+			long freed = 0;
+			Vector<Long> victims = new Vector<Long>();
+			for(Map.Entry<Long, Entry> v : entries.entrySet()){
+				if(size - freed + e.size <= capacity)
+					break;
+				if(sketch.frequency(v.getKey()) >= frequency){
+					rejections++;
+					return;
+				}
+				victims.add(v.getKey());
+				freed += v.getValue().size;
+			}
+			for(long v : victims){
+				size -= entries.remove(v).size;
+				evictions++;
+			}
+		}
+		entries.put(key, e);
+		size += e.size;
+	}
+
+	/**
+	 * Throw out everything (like util/clearcache.sh). The counts of how
+	 * often pairs were asked for are kept.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return number of routes (and "no route"s) cached
+	 */
+	public synchronized int numEntries()
+	{
+		return(entries.size());
+	}
+
+	/**
+	 * @return bytes of routes cached
+	 */
+	public synchronized long size()
+	{
+		return(size);
+	}
+
+	/**
+	 * @return number of requests answered from the cache
+	 */
+	public synchronized long hits()
+	{
+		return(hits);
+	}
+
+	/**
+	 * @return number of requests that had to be loaded
+	 */
+	public synchronized long misses()
+	{
+		return(misses);
+	}
+
+	/**
+	 * @return number of routes thrown out to make room for others
+	 */
+	public synchronized long evictions()
+	{
+		return(evictions);
+	}
+
+	/**
+	 * @return number of loaded routes not cached, because they weren't
+	 * asked for as often as what they'd have pushed out (or were too big)
+	 */
+	public synchronized long rejections()
+	{
+		return(rejections);
+	}
+
+	/**
+	 * @return number of misses that waited for another request loading the
+	 * same route, instead of loading it again
+	 */
+	public long coalesced()
+	{
+		return(loading.shared());
+	}
+
+	/**
+	 * @return how long looking for a route in the cache took (and decoding
+	 * it, if it was there), in nanoseconds, for every request
+	 */
+	public LatencyHistogram probes()
+	{
+		return(probes);
+	}
+
+	/**
+	 * @return total time spent loading routes, in nanoseconds
+	 */
+	public synchronized long loadNanos()
+	{
+		return(loadNanos);
+	}
+}
+
+/**
+ * Approximately counts how often each key is seen, in a fixed amount of
+ * memory (a count-min sketch: a few rows of small counters, each row
+ * indexed by a different hash of the key, and the smallest of a key's
+ * counters is its count). Counters are 4 bits, two to a byte, so they stop
+ * at 15, and every so often all of them are halved, so what was popular a
+ * long time ago fades out.
+ */
+class FrequencySketch
+{
+	private static final int ROWS = 4;
+	static final int MAX_COUNT = 15;
+	private static final long [] SEEDS = {
+		0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL,
+		0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+	};
+
+	// two counters to a byte: counter i is the low 4 bits of byte i / 2 if
+	// i is even, the high 4 if it's odd
+	private byte [][] counts;
+	private int mask;
+	// increments since the counters were last halved, and how many to allow
+	private int additions = 0;
+	private int sampleSize;
+
+	/**
+	 * Create a sketch.
+	 * @param width about how many distinct keys to count well
+	 */
+	public FrequencySketch(int width)
+	{
+		int n = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+		counts = new byte[ROWS][n / 2];
+		mask = n - 1;
+		sampleSize = 10 * n;
+	}
+
+	/**
+	 * Get where a key's counter is in one row.
+	 */
+	private int index(long key, int row)
+	{
+		long h = (key + SEEDS[row]) * SEEDS[(row + 1) % ROWS];
+		h ^= h >>> 31;
+		return((int)h & mask);
+	}
+
+	/**
+	 * Get a counter.
+	 */
+	private static int get(byte [] row, int i)
+	{
+		return((row[i >> 1] >> ((i & 1) << 2)) & 0xF);
+	}
+
+	/**
+	 * Count a key once more.
+	 * @param key the key
+	 */
+	public void increment(long key)
+	{
+		for(int row = 0; row < ROWS; row++){
+			int i = index(key, row);
+			if(get(counts[row], i) < MAX_COUNT)
+				counts[row][i >> 1] += 1 << ((i & 1) << 2);
+		}
+		if(++additions >= sampleSize){
+			// halve both counters in each byte at once
+			for(byte [] row : counts)
+				for(int i = 0; i < row.length; i++)
+					row[i] = (byte)((row[i] >> 1) & 0x77);
+			additions /= 2;
+		}
+	}
+
+	/**
+	 * @param key the key
+	 * @return about how many times it's been counted (lately)
+	 */
+	public int frequency(long key)
+	{
+		int min = MAX_COUNT;
+		for(int row = 0; row < ROWS; row++)
+			min = Math.min(min, get(counts[row], index(key, row)));
+		return(min);
+	}
+}
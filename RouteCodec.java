@@ -0,0 +1,172 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Compact encoding of routes as Edge IDs.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Encodes a Route as the Edges it follows instead of every point along it,
+ * the way a .path file (LoadData::writeCache()) stores it. The points are
+ * already in the edge file, so they're looked up from the graph when a
+ * decoded route's geometry is wanted (Route.geometry(), or
+ * PathGraph.edgeX()/edgeY() for each Edge).
+ * <br><br>
+ * An encoded route is a series of varints (see EdgeGeometry):
+ * <pre>
+ * distance
+ * xmin, ymin, then xmax - xmin, ymax - ymin
+ * the GraphPoint the route starts at
+ * number of Edges
+ * for each Edge: (zig-zag encoded difference from the previous Edge ID,
+ *     or from 0 for the first) &lt;&lt; 1, or'd with 1 if it's followed from
+ *     its end to its start
+ * </pre>
+ * Edges next to each other along a path were usually made one after the
+ * other (see PathOptimize), so most of them take a single byte.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class RouteCodec
+{
+	/**
+	 * Driver for testing RouteCodec: encode and decode routes between random
+	 * pairs of Locations in the binary files, check they come back the same,
+	 * and compare their size to the size of their .path files.
+	 * @param args number of routes (optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+		MappedGraph m = MappedGraph.open(ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges);
+		PathGraph graph = PathGraph.build(m);
+		ShortestPath sp = new ShortestPath(graph);
+		Random rand = new Random(1);
+
+		int routes = 0, bad = 0;
+		long pathBytes = 0, encodedBytes = 0;
+		for(int i = 0; i < count; i++){
+			int from = m.locationID(rand.nextInt(m.numLocations()));
+			int to = m.locationID(rand.nextInt(m.numLocations()));
+			Route r = sp.routeLocations(from, to);
+			if(r == null)
+				continue;
+			byte [] data = encode(r);
+			Route d = decode(data, graph);
+			if(!same(r, d) || distance(data) != r.distance)
+				bad++;
+			routes++;
+			pathBytes += pathFileSize(r);
+			encodedBytes += data.length;
+		}
+		System.err.println(routes + " routes, " + bad + " decoded wrong; "
+				+ pathBytes + " bytes as .path files, " + encodedBytes
+				+ " encoded ("
+				+ (encodedBytes == 0 ? 0 : pathBytes / encodedBytes)
+				+ "x smaller).");
+	}
+
+	/**
+	 * See if two routes are the same.
+	 */
+	private static boolean same(Route a, Route b)
+	{
+		return(a.distance == b.distance && a.xmin == b.xmin
+				&& a.ymin == b.ymin && a.xmax == b.xmax && a.ymax == b.ymax
+				&& Arrays.equals(a.points, b.points)
+				&& Arrays.equals(a.edges, b.edges)
+				&& Arrays.equals(a.forward, b.forward)
+				&& Arrays.equals(a.geometry(), b.geometry()));
+	}
+
+	/**
+	 * Get the size of the .path file LoadData::writeCache() would write for
+	 * a route (distance, rectangle, number of Edges, and for each Edge, its
+	 * number of points and every point).
+	 */
+	private static int pathFileSize(Route r)
+	{
+		int ints = 6 + r.edges.length;
+		for(int e : r.edges)
+			ints += 2 * r.graph.edgeNumPoints(e);
+		return(4 * ints);
+	}
+
+	/**
+	 * Encode a route.
+	 * @param r the route
+	 * @return the encoded route
+	 */
+	public static byte[] encode(Route r)
+	{
+		ByteArrayOutputStream bytes =
+			new ByteArrayOutputStream(16 + 2 * r.edges.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try{
+			EdgeGeometry.writeVarint(out, r.distance);
+			EdgeGeometry.writeVarint(out, r.xmin);
+			EdgeGeometry.writeVarint(out, r.ymin);
+			EdgeGeometry.writeVarint(out, r.xmax - r.xmin);
+			EdgeGeometry.writeVarint(out, r.ymax - r.ymin);
+			EdgeGeometry.writeVarint(out, r.source());
+			EdgeGeometry.writeVarint(out, r.edges.length);
+			int prev = 0;
+			for(int i = 0; i < r.edges.length; i++){
+				EdgeGeometry.writeVarint(out,
+						(EdgeGeometry.zigZag(r.edges[i] - prev) << 1)
+						| (r.forward[i] ? 0 : 1));
+				prev = r.edges[i];
+			}
+		}
+		catch(IOException e){
+			// can't happen with a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+		return(bytes.toByteArray());
+	}
+
+	/**
+	 * Decode a route.
+	 * @param data the encoded route
+	 * @param graph the graph it's in
+	 * @return the route
+	 */
+	public static Route decode(byte [] data, PathGraph graph)
+	{
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int distance = EdgeGeometry.readVarint(buf);
+		int [] rect = new int[4];
+		rect[0] = EdgeGeometry.readVarint(buf);
+		rect[1] = EdgeGeometry.readVarint(buf);
+		rect[2] = rect[0] + EdgeGeometry.readVarint(buf);
+		rect[3] = rect[1] + EdgeGeometry.readVarint(buf);
+		int source = EdgeGeometry.readVarint(buf);
+		int [] edges = new int[EdgeGeometry.readVarint(buf)];
+		boolean [] forward = new boolean[edges.length];
+		int prev = 0;
+		for(int i = 0; i < edges.length; i++){
+			int n = EdgeGeometry.readVarint(buf);
+			edges[i] = prev + EdgeGeometry.unZigZag(n >>> 1);
+			forward[i] = ((n & 1) == 0);
+			prev = edges[i];
+		}
+		return(new Route(graph, source, edges, forward, distance, rect));
+	}
+
+	/**
+	 * Get the length of an encoded route, without decoding the rest of it.
+	 * @param data the encoded route
+	 * @return the length, in pixels
+	 */
+	public static int distance(byte [] data)
+	{
+		return(EdgeGeometry.readVarint(ByteBuffer.wrap(data)));
+	}
+}
@@ -0,0 +1,265 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Latency and search metrics for route queries.
+ */
+
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.*;
+
+/**
+ * Where the time goes in answering route queries: a LatencyHistogram for
+ * each phase of a query, and counts of searches and the GraphPoints they
+ * settled. The phases are:
+ * <ul>
+ * <li>lookup: finding a Location from what was asked for (an ID or a
+ * search; see RouteServer)</li>
+ * <li>cache: looking for the route in the RouteCache, and decoding it if
+ * it's there</li>
+ * <li>search: finding a route or shortest-path tree, once the search is
+ * let in (see AdmissionControl)</li>
+ * <li>geometry: getting the points of every Edge on a route</li>
+ * <li>serialize: writing the answer as JSON</li>
+ * <li>request: the whole /route request, from when it came in until the
+ * answer was sent</li>
+ * </ul>
+ * Along with them go the cache's counters, and how many searches were
+ * shared with another request instead of being run again (cacheCoalesced
+ * for routes through the cache, searchCoalesced for the rest; see
+ * SingleFlight).
+ * <br><br>
+ * The numbers can be read over JMX (this is an MBean; RouteServer registers
+ * it as ucsdmap:type=RouteMetrics) with attributes like searchP99Micros, or
+ * all at once as text (see report() and RouteServer's /metrics).
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class RouteMetrics implements DynamicMBean
+{
+	/**
+	 * Names of the phases.
+	 */
+	static final String [] PHASES = {
+		"lookup", "cache", "search", "geometry", "serialize", "request"
+	};
+	static final int LOOKUP = 0;
+	static final int CACHE = 1;
+	static final int SEARCH = 2;
+	static final int GEOMETRY = 3;
+	static final int SERIALIZE = 4;
+	static final int REQUEST = 5;
+
+	// the percentiles reported, and what their attributes end with
+	private static final double [] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String [] PERCENTILE_NAMES = {
+		"P50", "P90", "P99", "P999"
+	};
+
+	private LatencyHistogram [] phases = new LatencyHistogram[PHASES.length];
+	// GraphPoints settled per search
+	private LatencyHistogram settled = new LatencyHistogram();
+	private AtomicLong settledTotal = new AtomicLong();
+
+	// where the cache's numbers come from
+	private RouteService service;
+
+	/**
+	 * Create empty metrics.
+	 * @param service the service whose cache to report on
+	 */
+	public RouteMetrics(RouteService service)
+	{
+		this.service = service;
+		for(int i = 0; i < phases.length; i++)
+			phases[i] = new LatencyHistogram();
+	}
+
+	/**
+	 * Record how long a phase took.
+	 * @param phase which phase (LOOKUP etc.)
+	 * @param nanos how long it took, in nanoseconds
+	 */
+	public void record(int phase, long nanos)
+	{
+		phases[phase].record(nanos);
+	}
+
+	/**
+	 * Record a search.
+	 * @param nanos how long it took, in nanoseconds
+	 * @param settledPoints how many GraphPoints it settled
+	 */
+	public void recordSearch(long nanos, int settledPoints)
+	{
+		phases[SEARCH].record(nanos);
+		settled.record(settledPoints);
+		settledTotal.addAndGet(settledPoints);
+	}
+
+	/**
+	 * Get the latencies of a phase.
+	 * @param phase which phase (LOOKUP etc.)
+	 * @return the histogram, in nanoseconds
+	 */
+	public LatencyHistogram phase(int phase)
+	{
+		if(phase == CACHE && service.getCache() != null)
+			return(service.getCache().probes());
+		return(phases[phase]);
+	}
+
+	/**
+	 * Write out every number, as text: a line for each phase, with its
+	 * count, mean, percentiles and maximum in microseconds, and then the
+	 * counters, one per line.
+	 * @return the report
+	 */
+	public String report()
+	{
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("# %-9s %10s %10s", "phase", "count",
+					"mean"));
+		for(String p : PERCENTILE_NAMES)
+			text.append(String.format(" %10s", p.toLowerCase()));
+		text.append(String.format(" %10s  (microseconds)\n", "max"));
+		for(int i = 0; i < PHASES.length; i++){
+			LatencyHistogram h = phase(i);
+			text.append(String.format("%-11s %10d %10.1f", PHASES[i],
+						h.count(), h.mean() / 1000));
+			for(double p : PERCENTILES)
+				text.append(String.format(" %10.1f",
+							h.percentile(p) / 1000.0));
+			text.append(String.format(" %10.1f\n", h.max() / 1000.0));
+		}
+		for(String name : counterNames())
+			text.append(name).append(' ').append(counter(name)).append('\n');
+		return(text.toString());
+	}
+
+	/**
+	 * Get the names of the counters.
+	 */
+	private static String[] counterNames()
+	{
+		return(new String[]{
+			"searches", "settledPoints", "settledP50", "settledP99",
+			"settledMax", "cacheHits", "cacheMisses", "cacheCoalesced",
+			"searchCoalesced"
+		});
+	}
+
+	/**
+	 * Get a counter's value.
+	 */
+	private long counter(String name)
+	{
+		RouteCache cache = service.getCache();
+		if(name.equals("searches"))
+			return(settled.count());
+		if(name.equals("settledPoints"))
+			return(settledTotal.get());
+		if(name.equals("settledP50"))
+			return(settled.percentile(50));
+		if(name.equals("settledP99"))
+			return(settled.percentile(99));
+		if(name.equals("settledMax"))
+			return(settled.max());
+		if(name.equals("cacheHits"))
+			return(cache == null ? 0 : cache.hits());
+		if(name.equals("cacheMisses"))
+			return(cache == null ? 0 : cache.misses());
+		if(name.equals("cacheCoalesced"))
+			return(cache == null ? 0 : cache.coalesced());
+		// route searches shared without the cache, and tree searches
+		if(name.equals("searchCoalesced"))
+			return(service.coalesced());
+		return(-1);
+	}
+
+	/**
+	 * Get an attribute: a counter, or a phase's Count, MeanMicros,
+	 * P50Micros (and so on) or MaxMicros, like searchP99Micros.
+	 */
+	public Object getAttribute(String name)
+		throws AttributeNotFoundException
+	{
+		if(counter(name) != -1)
+			return(counter(name));
+		for(int i = 0; i < PHASES.length; i++){
+			if(!name.startsWith(PHASES[i]))
+				continue;
+			LatencyHistogram h = phase(i);
+			String stat = name.substring(PHASES[i].length());
+			if(stat.equals("Count"))
+				return(h.count());
+			if(stat.equals("MeanMicros"))
+				return(h.mean() / 1000);
+			if(stat.equals("MaxMicros"))
+				return(h.max() / 1000.0);
+			for(int p = 0; p < PERCENTILES.length; p++)
+				if(stat.equals(PERCENTILE_NAMES[p] + "Micros"))
+					return(h.percentile(PERCENTILES[p]) / 1000.0);
+		}
+		throw new AttributeNotFoundException(name);
+	}
+
+	public AttributeList getAttributes(String [] names)
+	{
+		AttributeList list = new AttributeList();
+		for(String name : names){
+			try{
+				list.add(new Attribute(name, getAttribute(name)));
+			}
+			catch(AttributeNotFoundException e){
+				// left out
+			}
+		}
+		return(list);
+	}
+
+	public MBeanInfo getMBeanInfo()
+	{
+		Vector<MBeanAttributeInfo> attrs = new Vector<MBeanAttributeInfo>();
+		for(String name : counterNames())
+			attrs.add(new MBeanAttributeInfo(name, "long", name, true,
+						false, false));
+		for(String phase : PHASES){
+			attrs.add(new MBeanAttributeInfo(phase + "Count", "long",
+						"number of times " + phase + " was timed", true,
+						false, false));
+			attrs.add(new MBeanAttributeInfo(phase + "MeanMicros", "double",
+						"mean " + phase + " time", true, false, false));
+			for(String p : PERCENTILE_NAMES)
+				attrs.add(new MBeanAttributeInfo(phase + p + "Micros",
+							"double", p + " " + phase + " time", true,
+							false, false));
+			attrs.add(new MBeanAttributeInfo(phase + "MaxMicros", "double",
+						"longest " + phase + " time", true, false, false));
+		}
+		return(new MBeanInfo(getClass().getName(),
+					"Route query latencies and search counts",
+					attrs.toArray(new MBeanAttributeInfo[attrs.size()]),
+					null, null, null));
+	}
+
+	public void setAttribute(Attribute attribute)
+		throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException(attribute.getName()
+				+ " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return(new AttributeList());
+	}
+
+	public Object invoke(String action, Object [] params, String [] signature)
+		throws ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+}
@@ -0,0 +1,686 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * HTTP server for routes, Location searches and distances.
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-lived routing server, so a request doesn't have to load the binary
+ * files (or run Dijkstra's algorithm from scratch) the way map.cgi does. It
+ * uses the HTTP server built into the JDK, and answers in JSON:
+ * <ul>
+ * <li>/route?from=A&amp;to=B: the route between two Locations, in the shape
+ * LoadData::loadCache() returns it:
+ * <pre>
+ * {"from": A, "to": B, "distance": 1234,
+ *  "rect": {"xmin": 1, "ymin": 2, "xmax": 3, "ymax": 4},
+ *  "path": [[{"x": 1, "y": 2}, ...], ...]}
+ * </pre>
+ * with one list of points per Edge, from A to B, each in the order it's
+ * stored in. If there's no route, distance is null, path is empty, and rect
+ * holds just the two Locations' GraphPoints, the same as
+ * ShortestPath::pathPoints().</li>
+ * <li>/search?q=text: the Locations that match the text, the way map.cgi
+ * looks them up (see LocationIndex):
+ * <pre>
+ * {"query": "text", "matches": [{"id": 1, "name": "...", "text": "...",
+ *  "matches": 1.0, "x": 1, "y": 2}, ...]}
+ * </pre></li>
+ * <li>/distance?from=A&amp;to=B,C,...: the length of the route from A to
+ * each of the others (what map.cgi shows next to a list of suggestions):
+ * <pre>
+ * {"from": A, "distances": [{"to": B, "distance": 1234}, ...]}
+ * </pre></li>
+ * <li>/cache: the route cache's counters (see RouteCache).</li>
+ * <li>/load: how busy searching is (see AdmissionControl):
+ * <pre>
+ * {"running": 2, "waiting": 5, "queued": 0, "maxRunning": 2,
+ *  "maxWaiting": 16, "maxWaitMillis": 500, "admitted": 1234,
+ *  "waits": 56, "waitMillis": 789, "longestWaitMillis": 120,
+ *  "shedFull": 0, "shedLate": 3}
+ * </pre>
+ * where queued is the number of requests waiting for a thread.</li>
+ * <li>/metrics: how long each phase of answering /route takes, as a
+ * percentile table in plain text, and how much searching is done (see
+ * RouteMetrics). The same numbers can be read over JMX, from the
+ * ucsdmap:type=RouteMetrics MBean.</li>
+ * </ul>
+ * Locations may be given by ID, or by anything a search finds exactly one
+ * Location for.
+ * <br><br>
+ * At most RouteServer.searchThreads searches (one per processor by default)
+ * run at once, and at most RouteServer.searchQueue more wait for a turn (8
+ * per search thread by default), for up to RouteServer.maxWaitMillis (500
+ * by default) from when the request came in. A search that can't get in is
+ * shed: /route answers with the route if it's cached, or else the same as
+ * if there were no route, with "degraded": true added; /distance answers
+ * 503. Setting RouteServer.searchThreads to 0 turns this off.
+ * <br><br>
+ * Usage: java RouteServer [port]
+ * <br>
+ * The binary files are read from data/ (see ScrollablePicture), and the
+ * optional preprocessing from the files named by the RouteServer.hierarchy,
+ * RouteServer.landmarks and RouteServer.distances system properties (see
+ * RouteService). Requests are handled by a pool of RouteServer.threads
+ * threads (two per processor by default), and up to RouteServer.cacheBytes
+ * of routes (16MB by default) are cached. If RouteServer.warmLog names an
+ * access log, the most asked-for routes in it are cached before the server
+ * starts listening (see CacheWarmer).
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class RouteServer
+{
+	/**
+	 * Port to listen on, unless one is given on the command line.
+	 */
+	static final int DEFAULT_PORT = 8080;
+
+	/**
+	 * Number of threads to handle requests with. (Set from the
+	 * RouteServer.threads system property.)
+	 */
+	public static int threads = Integer.getInteger("RouteServer.threads",
+			2 * Runtime.getRuntime().availableProcessors());
+	/**
+	 * Most bytes of routes to keep in memory (see RouteCache), or 0 not to
+	 * cache them. (Set from the RouteServer.cacheBytes system property.)
+	 */
+	public static long cacheBytes = Long.getLong("RouteServer.cacheBytes",
+			16 << 20);
+	/**
+	 * Access log to warm the route cache from when the server starts (see
+	 * CacheWarmer), or null not to, and how many of the most asked-for routes
+	 * to put in the cache. (Set from the RouteServer.warmLog and
+	 * RouteServer.warmCount system properties.)
+	 */
+	public static String warmLog = System.getProperty("RouteServer.warmLog");
+	public static int warmCount = Integer.getInteger("RouteServer.warmCount",
+			CacheWarmer.DEFAULT_COUNT);
+
+	/**
+	 * Most searches to run at once, most to wait to run, and longest (in
+	 * milliseconds) to wait; see AdmissionControl. (Set from the
+	 * RouteServer.searchThreads, RouteServer.searchQueue and
+	 * RouteServer.maxWaitMillis system properties.)
+	 */
+	public static int searchThreads = Integer.getInteger(
+			"RouteServer.searchThreads",
+			Runtime.getRuntime().availableProcessors());
+	public static int searchQueue = Integer.getInteger(
+			"RouteServer.searchQueue", 8 * searchThreads);
+	public static long maxWaitMillis = Long.getLong(
+			"RouteServer.maxWaitMillis", 500);
+
+	private RouteService service;
+	private HttpServer server;
+	private ExecutorService pool;
+	// when the request a thread is answering came in (System.nanoTime())
+	private ThreadLocal<Long> arrived = new ThreadLocal<Long>();
+	// requests waiting for a thread (counted here rather than asked of the
+	// pool, so any kind of ExecutorService will do)
+	private AtomicInteger queued = new AtomicInteger();
+
+	/**
+	 * Load the data and start serving.
+	 * @param args port to listen on (optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int port = (args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_PORT);
+		long start = System.nanoTime();
+		RouteService service = new RouteService(
+				ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges,
+				System.getProperty("RouteServer.hierarchy"),
+				System.getProperty("RouteServer.landmarks"),
+				System.getProperty("RouteServer.distances"));
+		System.err.println("Loaded " + service.graph.numPoints
+				+ " GraphPoints, " + service.graph.numEdges + " Edges and "
+				+ service.index.ids.length + " Locations in "
+				+ (System.nanoTime() - start) / 1000000 + "ms; routing with "
+				+ service.searchMode() + ".");
+		if(searchThreads > 0)
+			service.setAdmission(new AdmissionControl(searchThreads,
+						searchQueue, maxWaitMillis));
+		if(cacheBytes > 0){
+			service.setCache(new RouteCache(service.graph, cacheBytes));
+			if(warmLog != null){
+				start = System.nanoTime();
+				CacheWarmer warmer = new CacheWarmer(service);
+				warmer.readLog(warmLog);
+				long [] pairs = warmer.top(warmCount);
+				int loaded = warmer.preload(service.getCache(), pairs,
+						warmer.findRoutes(pairs, threads));
+				System.err.println("Warmed the cache with " + loaded
+						+ " routes in " + (System.nanoTime() - start) / 1000000
+						+ "ms (" + warmer.summary(pairs) + ").");
+			}
+		}
+
+		try{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					service.metrics,
+					new ObjectName("ucsdmap:type=RouteMetrics"));
+		}
+		catch(JMException e){
+			System.err.println("Couldn't register the metrics MBean: " + e);
+		}
+
+		new RouteServer(service).start(port);
+		System.err.println("Listening on port " + port + " with " + threads
+				+ " threads.");
+	}
+
+	/**
+	 * Create a server for a service.
+	 * @param service the service to answer requests with
+	 */
+	public RouteServer(RouteService service)
+	{
+		this.service = service;
+	}
+
+	/**
+	 * Start listening.
+	 * @param port the port to listen on
+	 * @throws IOException if the port can't be listened on
+	 */
+	public void start(int port) throws IOException
+	{
+		// the headers and body go out in separate writes; without this, the
+		// body waits on the client's delayed ACK (about 40ms a request)
+		if(System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/route", new Handler(){
+			String respond(HashMap<String, String> params)
+			{
+				return(route(params));
+			}
+
+			void done()
+			{
+				Long received = arrived.get();
+				if(received != null)
+					service.metrics.record(RouteMetrics.REQUEST,
+							System.nanoTime() - received);
+			}
+		});
+		server.createContext("/search", new Handler(){
+			String respond(HashMap<String, String> params)
+			{
+				return(search(params));
+			}
+		});
+		server.createContext("/distance", new Handler(){
+			String respond(HashMap<String, String> params)
+			{
+				return(distance(params));
+			}
+		});
+		server.createContext("/cache", new Handler(){
+			String respond(HashMap<String, String> params)
+			{
+				return(cacheStats());
+			}
+		});
+		server.createContext("/load", new Handler(){
+			String respond(HashMap<String, String> params)
+			{
+				return(loadStats());
+			}
+		});
+		server.createContext("/metrics", new Handler(){
+			String respond(HashMap<String, String> params)
+			{
+				return(service.metrics.report());
+			}
+
+			String contentType()
+			{
+				return("text/plain; charset=utf-8");
+			}
+		});
+		pool = Executors.newFixedThreadPool(threads);
+		// note when each request comes in, so time spent waiting for a
+		// thread counts against its deadline
+		server.setExecutor(new Executor(){
+			public void execute(final Runnable r)
+			{
+				final long received = System.nanoTime();
+				queued.incrementAndGet();
+				pool.execute(new Runnable(){
+					public void run()
+					{
+						queued.decrementAndGet();
+						arrived.set(received);
+						r.run();
+					}
+				});
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * Stop listening, and let the threads finish.
+	 */
+	public void stop()
+	{
+		server.stop(0);
+		pool.shutdown();
+	}
+
+	/**
+	 * Answer /route.
+	 */
+	String route(HashMap<String, String> params)
+	{
+		int from = location(params, "from");
+		int to = location(params, "to");
+		Route r = null;
+		boolean shed = false;
+		try{
+			r = service.route(from, to, deadline());
+		}
+		catch(ShedException e){
+			// too busy; just show the Locations
+			shed = true;
+		}
+
+		RouteMetrics metrics = service.metrics;
+		StringBuilder json = new StringBuilder();
+		json.append("{\"from\": ").append(from);
+		json.append(", \"to\": ").append(to);
+		if(r == null){
+			long start = System.nanoTime();
+			PathGraph g = service.graph;
+			int s = g.pointOfLocation(from), t = g.pointOfLocation(to);
+			json.append(", \"distance\": null");
+			appendRect(json, Math.min(g.x[s], g.x[t]),
+					Math.min(g.y[s], g.y[t]), Math.max(g.x[s], g.x[t]),
+					Math.max(g.y[s], g.y[t]));
+			json.append(", \"path\": []");
+			if(shed)
+				json.append(", \"degraded\": true");
+			json.append("}");
+			String answer = json.toString();
+			metrics.record(RouteMetrics.SERIALIZE, System.nanoTime() - start);
+			return(answer);
+		}
+
+		// the points of each Edge, x, y one after the other
+		long start = System.nanoTime();
+		PathGraph g = service.graph;
+		int [][] path = new int[r.edges.length][];
+		for(int i = 0; i < r.edges.length; i++){
+			int e = r.edges[i];
+			path[i] = new int[2 * g.edgeNumPoints(e)];
+			for(int p = 0; p < path[i].length / 2; p++){
+				path[i][2*p] = g.edgeX(e, p);
+				path[i][2*p + 1] = g.edgeY(e, p);
+			}
+		}
+		long geometryDone = System.nanoTime();
+		metrics.record(RouteMetrics.GEOMETRY, geometryDone - start);
+
+		json.append(", \"distance\": ").append(r.distance);
+		appendRect(json, r.xmin, r.ymin, r.xmax, r.ymax);
+		json.append(", \"path\": [");
+		for(int i = 0; i < path.length; i++){
+			json.append(i > 0 ? ", [" : "[");
+			for(int p = 0; p < path[i].length; p += 2){
+				json.append(p > 0 ? ", " : "");
+				appendPoint(json, path[i][p], path[i][p + 1]);
+			}
+			json.append("]");
+		}
+		json.append("]}");
+		String answer = json.toString();
+		metrics.record(RouteMetrics.SERIALIZE,
+				System.nanoTime() - geometryDone);
+		return(answer);
+	}
+
+	/**
+	 * Answer /search.
+	 */
+	String search(HashMap<String, String> params)
+	{
+		String text = params.get("q");
+		if(text == null)
+			throw new RequestException(400, "no search text (q)");
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"query\": ");
+		JSON.appendString(json, text);
+		json.append(", \"matches\": [");
+		Vector<LocationMatch> found = service.search(text);
+		for(int i = 0; i < found.size(); i++){
+			LocationMatch m = found.get(i);
+			json.append(i > 0 ? ", " : "");
+			json.append("{\"id\": ").append(m.id);
+			json.append(", \"name\": ");
+			JSON.appendString(json, service.index.name(m.id));
+			json.append(", \"text\": ");
+			JSON.appendString(json, m.text);
+			json.append(", \"matches\": ").append(m.matches);
+			json.append(", \"x\": ").append(service.mapped.locationX(m.id));
+			json.append(", \"y\": ").append(service.mapped.locationY(m.id));
+			json.append("}");
+		}
+		json.append("]}");
+		return(json.toString());
+	}
+
+	/**
+	 * Answer /distance.
+	 */
+	String distance(HashMap<String, String> params)
+	{
+		int from = location(params, "from");
+		String toList = params.get("to");
+		if(toList == null)
+			throw new RequestException(400, "no destinations (to)");
+		String [] names = toList.split(",");
+		int [] to = new int[names.length];
+		for(int i = 0; i < names.length; i++)
+			to[i] = location(names[i], "to");
+		int [] lengths;
+		try{
+			lengths = service.distances(from, to, deadline());
+		}
+		catch(ShedException e){
+			throw new RequestException(503, e.getMessage());
+		}
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"from\": ").append(from);
+		json.append(", \"distances\": [");
+		for(int i = 0; i < to.length; i++){
+			json.append(i > 0 ? ", " : "");
+			json.append("{\"to\": ").append(to[i]);
+			json.append(", \"distance\": ");
+			json.append(lengths[i] < 0 ? "null" : "" + lengths[i]);
+			json.append("}");
+		}
+		json.append("]}");
+		return(json.toString());
+	}
+
+	/**
+	 * Answer /cache: the route cache's counters.
+	 */
+	String cacheStats()
+	{
+		RouteCache cache = service.getCache();
+		if(cache == null)
+			throw new RequestException(404, "routes aren't cached");
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"entries\": ").append(cache.numEntries());
+		json.append(", \"bytes\": ").append(cache.size());
+		json.append(", \"capacity\": ").append(cache.capacity);
+		json.append(", \"hits\": ").append(cache.hits());
+		json.append(", \"misses\": ").append(cache.misses());
+		json.append(", \"evictions\": ").append(cache.evictions());
+		json.append(", \"rejections\": ").append(cache.rejections());
+		json.append(", \"coalesced\": ").append(cache.coalesced());
+		json.append(", \"loadMillis\": ")
+			.append(cache.loadNanos() / 1000000);
+		json.append("}");
+		return(json.toString());
+	}
+
+	/**
+	 * Answer /load: how busy searching is.
+	 */
+	String loadStats()
+	{
+		AdmissionControl admission = service.getAdmission();
+		if(admission == null)
+			throw new RequestException(404, "searches aren't limited");
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"running\": ").append(admission.running());
+		json.append(", \"waiting\": ").append(admission.waiting());
+		json.append(", \"queued\": ").append(queued.get());
+		json.append(", \"maxRunning\": ").append(admission.maxRunning);
+		json.append(", \"maxWaiting\": ").append(admission.maxWaiting);
+		json.append(", \"maxWaitMillis\": ")
+			.append(admission.maxWaitNanos / 1000000);
+		json.append(", \"admitted\": ").append(admission.admitted());
+		json.append(", \"waits\": ").append(admission.waits());
+		json.append(", \"waitMillis\": ")
+			.append(admission.waitNanos() / 1000000);
+		json.append(", \"longestWaitMillis\": ")
+			.append(admission.longestWaitNanos() / 1000000);
+		json.append(", \"shedFull\": ").append(admission.shedFull());
+		json.append(", \"shedLate\": ").append(admission.shedLate());
+		json.append("}");
+		return(json.toString());
+	}
+
+	/**
+	 * Get the deadline for searches for the request this thread is
+	 * answering.
+	 */
+	private long deadline()
+	{
+		AdmissionControl admission = service.getAdmission();
+		if(admission == null)
+			return(0);
+		Long received = arrived.get();
+		return(admission.deadline(received != null ? received
+					: System.nanoTime()));
+	}
+
+	/**
+	 * Get the Location a parameter names.
+	 */
+	private int location(HashMap<String, String> params, String name)
+	{
+		String value = params.get(name);
+		if(value == null)
+			throw new RequestException(400, "no Location given (" + name
+					+ ")");
+		return(location(value, name));
+	}
+
+	/**
+	 * Get the Location a parameter value names: a Location ID, or text that
+	 * matches only one Location.
+	 */
+	private int location(String value, String name)
+	{
+		long start = System.nanoTime();
+		int id;
+		try{
+			id = Integer.parseInt(value.trim());
+		}
+		catch(NumberFormatException e){
+			Vector<LocationMatch> found = service.search(value);
+			if(found.size() != 1)
+				throw new RequestException(404, (found.size() == 0
+							? "no" : "more than one") + " Location matches \""
+						+ value + "\" (" + name + ")");
+			id = found.get(0).id;
+		}
+		if(!service.hasLocation(id))
+			throw new RequestException(404, "no Location " + id + " ("
+					+ name + ")");
+		service.metrics.record(RouteMetrics.LOOKUP, System.nanoTime() - start);
+		return(id);
+	}
+
+	/**
+	 * Append a rectangle, as the "rect" member of an object.
+	 */
+	static void appendRect(StringBuilder json, int xmin, int ymin, int xmax,
+			int ymax)
+	{
+		json.append(", \"rect\": {\"xmin\": ").append(xmin);
+		json.append(", \"ymin\": ").append(ymin);
+		json.append(", \"xmax\": ").append(xmax);
+		json.append(", \"ymax\": ").append(ymax).append("}");
+	}
+
+	/**
+	 * Append a point, as an object.
+	 */
+	static void appendPoint(StringBuilder json, int x, int y)
+	{
+		json.append("{\"x\": ").append(x).append(", \"y\": ").append(y)
+			.append("}");
+	}
+
+	/**
+	 * Split a request's query string into its parameters.
+	 */
+	static HashMap<String, String> parseQuery(URI uri)
+	{
+		return(parseQuery(uri.getRawQuery()));
+	}
+
+	/**
+	 * Split a query string (still URL-encoded) into its parameters.
+	 * @param query the query string, or null for none
+	 * @return the parameters, by name
+	 * @throws IllegalArgumentException if the query string isn't encoded
+	 * properly
+	 */
+	static HashMap<String, String> parseQuery(String query)
+	{
+		HashMap<String, String> params = new HashMap<String, String>();
+		if(query == null)
+			return(params);
+		for(String pair : query.split("&")){
+			int eq = pair.indexOf('=');
+			if(eq <= 0)
+				continue;
+			try{
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+			catch(UnsupportedEncodingException e){
+				// UTF-8 is always supported
+			}
+		}
+		return(params);
+	}
+
+	/**
+	 * Handles a request by passing its parameters to respond(), and sending
+	 * back what that returns (or an error), then calling done(). Requests
+	 * for anything under the handler's path other than the path itself
+	 * (say, /routefoo for /route) get a 404.
+	 */
+	abstract class Handler implements HttpHandler
+	{
+		/**
+		 * Answer a request.
+		 * @param params the request's parameters
+		 * @return the answer to send back (JSON, unless contentType() says
+		 * otherwise)
+		 */
+		abstract String respond(HashMap<String, String> params);
+
+		/**
+		 * @return the Content-Type of what respond() returns (JSON, unless
+		 * overridden)
+		 */
+		String contentType()
+		{
+			return("application/json; charset=utf-8");
+		}
+
+		/**
+		 * Called once the answer has been sent (successfully or not), for
+		 * keeping track of how long requests take.
+		 */
+		void done()
+		{
+		}
+
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			int status = 200;
+			String body;
+			try{
+				// contexts match by prefix; only answer the path itself
+				if(!exchange.getRequestURI().getPath().equals(
+							exchange.getHttpContext().getPath()))
+					throw new RequestException(404, "no such page: "
+							+ exchange.getRequestURI().getPath());
+				body = respond(parseQuery(exchange.getRequestURI()));
+			}
+			catch(RequestException e){
+				status = e.status;
+				StringBuilder json = new StringBuilder("{\"error\": ");
+				JSON.appendString(json, e.getMessage());
+				body = json.append("}").toString();
+			}
+			catch(RuntimeException e){
+				status = 500;
+				body = "{\"error\": \"internal error\"}";
+				System.err.println("Error answering "
+						+ exchange.getRequestURI() + ": " + e);
+			}
+
+			byte [] bytes = body.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", contentType());
+			try{
+				exchange.sendResponseHeaders(status, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+			finally{
+				done();
+			}
+		}
+	}
+}
+
+/**
+ * A request that can't be answered, and the HTTP status to say so with.
+ */
+class RequestException extends RuntimeException
+{
+	final static long serialVersionUID = 1;
+
+	final int status;
+
+	/**
+	 * @param status the HTTP status
+	 * @param message what's wrong
+	 */
+	public RequestException(int status, String message)
+	{
+		super(message);
+		this.status = status;
+	}
+}
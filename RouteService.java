@@ -0,0 +1,442 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Routing over the optimized graph, for a long-lived server.
+ */
+
+import java.io.*;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+/**
+ * Everything a request to the routing server can ask for: routes between
+ * Locations, Location searches, and distances. The binary files are loaded
+ * once, when the service is created, and shared by every thread; each
+ * thread gets its own searcher the first time it needs one.
+ * <br><br>
+ * Routes are found with a ContractionHierarchy if one is given, or else
+ * with Landmarks if those are given, or else with plain Dijkstra
+ * (ShortestPath); all three find routes of the same cost. Distances come out
+ * of a DistanceMatrix if one is given. Routes can also be kept in a
+ * RouteCache (see setCache()).
+ * <br><br>
+ * When several threads ask for the same route, or the same shortest-path
+ * tree, at the same time, only one of them finds it and the others wait for
+ * it and share it (see SingleFlight), so a burst of requests for one route
+ * (say, right after the cache is cleared) costs one search, not one each.
+ * Searches can also be limited with an AdmissionControl (see
+ * setAdmission()); one that isn't let in before its deadline throws a
+ * ShedException instead of running. Routes found in the cache never wait.
+ * A shared search is let in (or shed) by the deadline of the request that
+ * started it, so when it's shed, each request that was waiting for it tries
+ * again if its own deadline hasn't passed.
+ * <br><br>
+ * How long searches take, and how many GraphPoints they settle, is recorded
+ * in metrics, along with whatever the caller records there (see
+ * RouteServer).
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class RouteService
+{
+	/**
+	 * The binary files, mapped.
+	 */
+	final MappedGraph mapped;
+	/**
+	 * The graph, in flat arrays.
+	 */
+	final PathGraph graph;
+	/**
+	 * The Locations, for searching.
+	 */
+	final LocationIndex index;
+	/**
+	 * How long requests take, and how much searching they do.
+	 */
+	final RouteMetrics metrics;
+
+	// optional preprocessing (any of them may be null)
+	private ContractionHierarchy hierarchy;
+	private Landmarks landmarks;
+	private DistanceMatrix matrix;
+	// routes already found (null for none)
+	private RouteCache cache;
+	// limits on searches (null for none)
+	private AdmissionControl admission;
+
+	// each thread's searcher
+	private ThreadLocal<ShortestPath> searchers =
+		new ThreadLocal<ShortestPath>(){
+			protected ShortestPath initialValue()
+			{
+				return(newSearcher());
+			}
+		};
+	// routes (when they aren't cached) and trees being found now
+	private SingleFlight<Long, Route> routes = new SingleFlight<Long, Route>();
+	private SingleFlight<Integer, ShortestTree> trees =
+		new SingleFlight<Integer, ShortestTree>();
+
+	/**
+	 * Load the binary files, and any preprocessing there is for them.
+	 * @param pointFile GraphPoint file
+	 * @param locFile Location file
+	 * @param edgeFile Edge file
+	 * @param hierarchyFile ContractionHierarchy file, or null
+	 * @param landmarkFile Landmarks file, or null
+	 * @param distanceFile DistanceMatrix file, or null
+	 * @throws IOException if any of the files can't be read
+	 */
+	public RouteService(String pointFile, String locFile, String edgeFile,
+			String hierarchyFile, String landmarkFile, String distanceFile)
+		throws IOException
+	{
+		mapped = MappedGraph.open(pointFile, locFile, edgeFile);
+		graph = PathGraph.build(mapped);
+		index = new LocationIndex(mapped);
+		metrics = new RouteMetrics(this);
+		if(hierarchyFile != null)
+			hierarchy = ContractionHierarchy.load(hierarchyFile, graph);
+		if(landmarkFile != null)
+			landmarks = Landmarks.load(landmarkFile, graph);
+		if(distanceFile != null)
+			matrix = DistanceMatrix.open(distanceFile);
+	}
+
+	/**
+	 * Keep routes in a cache from now on.
+	 * @param cache the cache, or null not to cache routes
+	 */
+	public void setCache(RouteCache cache)
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the route cache, or null if routes aren't cached
+	 */
+	public RouteCache getCache()
+	{
+		return(cache);
+	}
+
+	/**
+	 * Limit searches from now on.
+	 * @param admission the limits, or null for none
+	 */
+	public void setAdmission(AdmissionControl admission)
+	{
+		this.admission = admission;
+	}
+
+	/**
+	 * @return the limits on searches, or null if there are none
+	 */
+	public AdmissionControl getAdmission()
+	{
+		return(admission);
+	}
+
+	/**
+	 * Get the deadline for a search asked for now.
+	 */
+	private long deadline()
+	{
+		return(admission == null ? 0 : admission.deadline(System.nanoTime()));
+	}
+
+	/**
+	 * Let a search in, or throw a ShedException if it isn't. If it's let
+	 * in, admission.exit() has to be called when it's done.
+	 */
+	private void enter(long deadline, String what)
+	{
+		if(admission != null && !admission.enter(deadline))
+			throw new ShedException("too busy to find " + what);
+	}
+
+	/**
+	 * Whether a search with a deadline could still be let in. (A request
+	 * shed along with a search it shared has to have time left to try
+	 * again.)
+	 */
+	private boolean timeLeft(long deadline)
+	{
+		return(admission != null && deadline - System.nanoTime() > 0);
+	}
+
+	/**
+	 * Finish a search that enter() let in.
+	 */
+	private void exit()
+	{
+		if(admission != null)
+			admission.exit();
+	}
+
+	/**
+	 * Create a searcher of the best kind we have the preprocessing for.
+	 */
+	private ShortestPath newSearcher()
+	{
+		if(hierarchy != null)
+			return(new HierarchyPath(hierarchy));
+		if(landmarks != null)
+			return(new LandmarkPath(landmarks));
+		return(new ShortestPath(graph));
+	}
+
+	/**
+	 * @return the name of the kind of search routes are found with
+	 */
+	public String searchMode()
+	{
+		if(hierarchy != null)
+			return("hierarchy");
+		if(landmarks != null)
+			return("landmarks");
+		return("dijkstra");
+	}
+
+	/**
+	 * @param id a Location ID
+	 * @return whether the Location is in the graph
+	 */
+	public boolean hasLocation(int id)
+	{
+		return(graph.pointOfLocation(id) != 0);
+	}
+
+	/**
+	 * Find the shortest route between two Locations.
+	 * @param fromLocation ID of the Location to start at
+	 * @param toLocation ID of the Location to go to
+	 * @return the route, or null if either Location doesn't exist or there
+	 * is no route
+	 * @throws ShedException if the route had to be found, and the search
+	 * was shed
+	 */
+	public Route route(int fromLocation, int toLocation)
+	{
+		return(route(fromLocation, toLocation, deadline()));
+	}
+
+	/**
+	 * Find the shortest route between two Locations, giving up if it has to
+	 * be searched for and the search can't start by a deadline.
+	 * @param fromLocation ID of the Location to start at
+	 * @param toLocation ID of the Location to go to
+	 * @param deadline when to give up (System.nanoTime()); ignored if
+	 * searches aren't limited
+	 * @return the route, or null if either Location doesn't exist or there
+	 * is no route
+	 * @throws ShedException if the route had to be found, and the search
+	 * was shed
+	 */
+	public Route route(int fromLocation, int toLocation, long deadline)
+	{
+		while(true){
+			boolean [] searched = { false };
+			try{
+				return(route(fromLocation, toLocation, deadline, searched));
+			}
+			catch(ShedException e){
+				if(searched[0] || !timeLeft(deadline))
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Find a route once, sharing another request's search if there is one.
+	 * @param searched set to whether this request ran the search itself
+	 */
+	private Route route(int fromLocation, int toLocation, final long deadline,
+			final boolean [] searched)
+	{
+		if(cache != null)
+			return(cache.get(fromLocation, toLocation,
+						new RouteCache.Loader(){
+							public Route load(int a, int b)
+							{
+								searched[0] = true;
+								return(searchRoute(a, b, deadline));
+							}
+						}));
+
+		// found from the lower ID to the higher, like the cache does, so
+		// requests both ways share a search
+		final int a = Math.min(fromLocation, toLocation);
+		final int b = Math.max(fromLocation, toLocation);
+		Route r = routes.run(RouteCache.key(a, b), new Callable<Route>(){
+			public Route call()
+			{
+				searched[0] = true;
+				return(searchRoute(a, b, deadline));
+			}
+		});
+		return(RouteCache.orient(r, fromLocation, toLocation));
+	}
+
+	/**
+	 * Find a route, once the search is let in.
+	 */
+	private Route searchRoute(int fromLocation, int toLocation, long deadline)
+	{
+		enter(deadline, "the route from " + fromLocation + " to "
+				+ toLocation);
+		try{
+			long start = System.nanoTime();
+			ShortestPath sp = searchers.get();
+			Route r = sp.routeLocations(fromLocation, toLocation);
+			metrics.recordSearch(System.nanoTime() - start, sp.settled);
+			return(r);
+		}
+		finally{
+			exit();
+		}
+	}
+
+	/**
+	 * Find the shortest route between two Locations, without looking in (or
+	 * adding to) the cache.
+	 * @param fromLocation ID of the Location to start at
+	 * @param toLocation ID of the Location to go to
+	 * @return the route, or null if either Location doesn't exist or there
+	 * is no route
+	 */
+	public Route findRoute(int fromLocation, int toLocation)
+	{
+		return(searchers.get().routeLocations(fromLocation, toLocation));
+	}
+
+	/**
+	 * Get the shortest route from a GraphPoint to every other one.
+	 * @param source ID of the GraphPoint to start at
+	 * @return the tree of routes
+	 * @throws ShedException if the search was shed
+	 */
+	public ShortestTree tree(int source)
+	{
+		return(tree(source, deadline()));
+	}
+
+	/**
+	 * Get the shortest route from a GraphPoint to every other one, giving
+	 * up if the search can't start by a deadline.
+	 * @param source ID of the GraphPoint to start at
+	 * @param deadline when to give up (System.nanoTime()); ignored if
+	 * searches aren't limited
+	 * @return the tree of routes
+	 * @throws ShedException if the search was shed
+	 */
+	public ShortestTree tree(int source, long deadline)
+	{
+		while(true){
+			boolean [] searched = { false };
+			try{
+				return(tree(source, deadline, searched));
+			}
+			catch(ShedException e){
+				if(searched[0] || !timeLeft(deadline))
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Get a tree once, sharing another request's search if there is one.
+	 * @param searched set to whether this request ran the search itself
+	 */
+	private ShortestTree tree(final int source, final long deadline,
+			final boolean [] searched)
+	{
+		return(trees.run(source, new Callable<ShortestTree>(){
+			public ShortestTree call()
+			{
+				searched[0] = true;
+				enter(deadline, "the routes from GraphPoint " + source);
+				try{
+					long start = System.nanoTime();
+					ShortestPath sp = searchers.get();
+					sp.searchAll(source);
+					ShortestTree tree = sp.tree();
+					metrics.recordSearch(System.nanoTime() - start,
+						sp.settled);
+					return(tree);
+				}
+				finally{
+					exit();
+				}
+			}
+		}));
+	}
+
+	/**
+	 * @return number of route searches (not counting the cache's) and tree
+	 * searches that were shared with another request
+	 */
+	public long coalesced()
+	{
+		return(routes.shared() + trees.shared());
+	}
+
+	/**
+	 * Find the Locations that match what a user typed (see LocationIndex).
+	 * @param text the search text
+	 * @return the matches, best first
+	 */
+	public Vector<LocationMatch> search(String text)
+	{
+		return(index.search(text));
+	}
+
+	/**
+	 * Get the lengths of the shortest routes from one Location to others.
+	 * @param fromLocation ID of the Location to start at
+	 * @param toLocations IDs of the Locations to go to
+	 * @return the length to each one, in pixels, or -1 where there's no
+	 * route (or the Location doesn't exist)
+	 * @throws ShedException if they had to be searched for, and the search
+	 * was shed
+	 */
+	public int[] distances(int fromLocation, int [] toLocations)
+	{
+		return(distances(fromLocation, toLocations, deadline()));
+	}
+
+	/**
+	 * Get the lengths of the shortest routes from one Location to others,
+	 * giving up if they have to be searched for and the search can't start
+	 * by a deadline.
+	 * @param fromLocation ID of the Location to start at
+	 * @param toLocations IDs of the Locations to go to
+	 * @param deadline when to give up (System.nanoTime()); ignored if
+	 * searches aren't limited
+	 * @return the length to each one, in pixels, or -1 where there's no
+	 * route (or the Location doesn't exist)
+	 * @throws ShedException if they had to be searched for, and the search
+	 * was shed
+	 */
+	public int[] distances(int fromLocation, int [] toLocations,
+			long deadline)
+	{
+		int [] lengths = new int[toLocations.length];
+		if(matrix != null){
+			for(int i = 0; i < toLocations.length; i++)
+				lengths[i] = matrix.distance(fromLocation, toLocations[i]);
+			return(lengths);
+		}
+
+		// one tree covers all of them
+		int source = graph.pointOfLocation(fromLocation);
+		ShortestTree tree = (source != 0 ? tree(source, deadline) : null);
+		for(int i = 0; i < toLocations.length; i++){
+			int p = graph.pointOfLocation(toLocations[i]);
+			lengths[i] = (tree == null || p == 0 ? -1 : tree.lengthTo(p));
+		}
+		return(lengths);
+	}
+}
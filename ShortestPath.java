@@ -0,0 +1,516 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Shortest path search over a PathGraph.
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Finds shortest routes through a PathGraph with Dijkstra's algorithm. This
+ * is the Java version of ShortestPath::find() in the Perl frontend, and it
+ * follows the same rules:
+ * <ul>
+ * <li>Going into a GraphPoint that can't be passed through (see
+ * Location.isCanPassThrough()) costs an extra NO_PASS_THROUGH_PENALTY. So
+ * routes go around buildings when they can, but can still go through them
+ * when there's no other way. Every route into the target pays the penalty
+ * for the target once, so it can't change which route is shortest; we leave
+ * it off, which lets a search stop long before it has settled everything
+ * closer than the penalty.</li>
+ * <li>Where two GraphPoints are joined by more than one Edge, the lightest
+ * one is used (the first one, if they weigh the same).</li>
+ * </ul>
+ * The distance of a Route is the sum of its weights, without penalties.
+ * <br><br>
+ * A ShortestPath keeps its working arrays between searches, so it doesn't
+ * have to clear or allocate anything per search, but that means each thread
+ * needs its own. The PathGraph can be shared.
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class ShortestPath
+{
+	/**
+	 * Extra cost of going into a GraphPoint that can't be passed through
+	 * ($KONSTANT in ShortestPath.pm). It's bigger than any real route, so a
+	 * route only goes through a building if it has to.
+	 */
+	static final long NO_PASS_THROUGH_PENALTY = 10000000;
+
+	/**
+	 * Distance of a GraphPoint we haven't reached.
+	 */
+	static final long INFINITY = Long.MAX_VALUE;
+
+	// the graph we search
+	protected PathGraph graph;
+
+	// working state of the current search, indexed by GraphPoint ID. An
+	// entry is only valid if its reached[] stamp is the current search's.
+	protected long [] dist;
+	// the connection (index in graph.neighbor[] etc.) we got here through,
+	// or -1 at the source, and the GraphPoint it starts at
+	protected int [] via;
+	protected int [] from;
+	protected int [] reached;
+	protected int [] settledStamp;
+	protected int stamp = 0;
+	protected IndexedHeap heap;
+	// the GraphPoint the current search is looking for (0 for none)
+	protected int target = 0;
+
+	/**
+	 * Number of GraphPoints settled (taken off the heap) by the last search.
+	 */
+	public int settled = 0;
+
+	/**
+	 * Driver for testing ShortestPath: load the binary files and find the
+	 * route between two Locations (given by ID on the command line), or time
+	 * a batch of routes between random Locations.
+	 * @param args two Location IDs (optional)
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		PathGraph g = PathGraph.load(ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges);
+		ShortestPath sp = new ShortestPath(g);
+
+		if(args.length == 2)
+		{
+			Route r = sp.routeLocations(Integer.parseInt(args[0]),
+					Integer.parseInt(args[1]));
+			System.err.println(r == null ? "No route." : r.toString());
+			if(r != null)
+				System.err.println("Rectangle: (" + r.xmin + ", " + r.ymin
+						+ ") - (" + r.xmax + ", " + r.ymax + ")");
+			return;
+		}
+
+		int [] locs = locationIDs(g);
+		Random rand = new Random(1);
+		final int QUERIES = 10000;
+		long settledTotal = 0;
+		// once to warm up, once to time
+		long elapsed = 0;
+		for(int pass = 0; pass < 2; pass++){
+			long start = System.nanoTime();
+			settledTotal = 0;
+			for(int i = 0; i < QUERIES; i++){
+				sp.routeLocations(locs[rand.nextInt(locs.length)],
+						locs[rand.nextInt(locs.length)]);
+				settledTotal += sp.settled;
+			}
+			elapsed = System.nanoTime() - start;
+		}
+		System.err.println(QUERIES + " routes between random Locations: "
+				+ (elapsed / QUERIES / 1000.0) + "us, "
+				+ (settledTotal / QUERIES) + " GraphPoints settled per route");
+	}
+
+	/**
+	 * Get the IDs of all the Locations in a graph.
+	 * @param g the graph
+	 * @return the Location IDs
+	 */
+	static int[] locationIDs(PathGraph g)
+	{
+		int n = 0;
+		for(int id = 1; id < g.locationPoint.length; id++)
+			if(g.locationPoint[id] != 0)
+				n++;
+		int [] ids = new int[n];
+		n = 0;
+		for(int id = 1; id < g.locationPoint.length; id++)
+			if(g.locationPoint[id] != 0)
+				ids[n++] = id;
+		return(ids);
+	}
+
+	/**
+	 * Create a searcher for the given graph.
+	 * @param graph the graph to search
+	 */
+	public ShortestPath(PathGraph graph)
+	{
+		this.graph = graph;
+		int n = graph.numPoints + 1;
+		dist = new long[n];
+		via = new int[n];
+		from = new int[n];
+		reached = new int[n];
+		settledStamp = new int[n];
+		heap = new IndexedHeap(n);
+	}
+
+	/**
+	 * Find the shortest route between two Locations.
+	 * @param fromLocation ID of the Location to start at
+	 * @param toLocation ID of the Location to go to
+	 * @return the route, or null if either Location doesn't exist or there
+	 * is no route
+	 */
+	public Route routeLocations(int fromLocation, int toLocation)
+	{
+		int source = graph.pointOfLocation(fromLocation);
+		int target = graph.pointOfLocation(toLocation);
+		if(source == 0 || target == 0)
+			return(null);
+		return(route(source, target));
+	}
+
+	/**
+	 * Find the shortest route between two GraphPoints.
+	 * @param source ID of the GraphPoint to start at
+	 * @param target ID of the GraphPoint to go to
+	 * @return the route, or null if there is none
+	 */
+	public Route route(int source, int target)
+	{
+		search(source, target);
+		if(!isReached(target))
+			return(null);
+		return(routeTo(target));
+	}
+
+	/**
+	 * Find the shortest distance from source to every GraphPoint (what the
+	 * Perl frontend caches in .full files). Afterwards, distanceTo(),
+	 * fromPoint() and routeTo() give the results.
+	 * @param source ID of the GraphPoint to start at
+	 */
+	public void searchAll(int source)
+	{
+		search(source, 0);
+	}
+
+	/**
+	 * Run Dijkstra's algorithm from source until target is settled (or
+	 * until everything is, if target is 0).
+	 */
+	protected void search(int source, int target)
+	{
+		startSearch();
+		this.target = target;
+		reach(source, 0, -1, 0, estimate(source));
+		while(!heap.isEmpty()){
+			int v = heap.pop();
+			settledStamp[v] = stamp;
+			settled++;
+			if(v == target)
+				return;
+			relax(v);
+		}
+	}
+
+	/**
+	 * Get ready for a new search.
+	 */
+	protected void startSearch()
+	{
+		stamp++;
+		if(stamp == Integer.MAX_VALUE){
+			// start the stamps over, rather than wrap around into old ones
+			Arrays.fill(reached, 0);
+			Arrays.fill(settledStamp, 0);
+			stamp = 1;
+		}
+		heap.clear();
+		settled = 0;
+	}
+
+	/**
+	 * Relax every connection out of v.
+	 */
+	protected void relax(int v)
+	{
+		for(int c = graph.offset[v]; c < graph.offset[v+1]; c++){
+			int w = graph.neighbor[c];
+			if(settledStamp[w] == stamp)
+				continue;
+			long d = dist[v] + cost(c, w);
+			if(!isReached(w) || d < dist[w])
+				reach(w, d, c, v, d + estimate(w));
+		}
+	}
+
+	/**
+	 * Estimate the distance from GraphPoint w to the target. Plain
+	 * Dijkstra doesn't estimate (this is always 0); AStarPath does.
+	 */
+	protected long estimate(int w)
+	{
+		return(0);
+	}
+
+	/**
+	 * Get the cost of following connection c into GraphPoint w.
+	 */
+	protected long cost(int c, int w)
+	{
+		if(graph.passThrough[w] || w == target)
+			return(graph.weight[c]);
+		return(graph.weight[c] + NO_PASS_THROUGH_PENALTY);
+	}
+
+	/**
+	 * Record a (better) way to get to w, and put it on the heap with the
+	 * given key.
+	 */
+	protected void reach(int w, long d, int c, int v, long key)
+	{
+		dist[w] = d;
+		via[w] = c;
+		from[w] = v;
+		if(heap.contains(w))
+			heap.decreaseKey(w, key);
+		else{
+			reached[w] = stamp;
+			heap.push(w, key);
+		}
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return whether the last search reached the GraphPoint
+	 */
+	public boolean isReached(int id)
+	{
+		return(reached[id] == stamp);
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return the distance (with penalties, except for the target's) the
+	 * last search found to the GraphPoint, or INFINITY if it didn't reach it
+	 */
+	public long distanceTo(int id)
+	{
+		return(isReached(id) ? dist[id] : INFINITY);
+	}
+
+	/**
+	 * @param id a GraphPoint ID, which the last search must have reached
+	 * @return the length (sum of the weights, without penalties) of the
+	 * route the last search found to the GraphPoint; the same as the
+	 * distance of routeTo(id)
+	 */
+	public int lengthTo(int id)
+	{
+		int length = 0;
+		for(int p = id; via[p] != -1; p = from[p])
+			length += graph.weight[via[p]];
+		return(length);
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return the GraphPoint before id on the route the last search found to
+	 * it, or 0 if id is the source or wasn't reached
+	 */
+	public int fromPoint(int id)
+	{
+		return(isReached(id) && via[id] != -1 ? from[id] : 0);
+	}
+
+	/**
+	 * Get a copy of the tree of GraphPoints the last search settled, which
+	 * stays the same through later searches and can be shared between
+	 * threads. It only has every GraphPoint in it after searchAll().
+	 * @return the tree
+	 */
+	public ShortestTree tree()
+	{
+		int n = graph.numPoints;
+		int [] treeVia = new int[n + 1];
+		int [] treeFrom = new int[n + 1];
+		Arrays.fill(treeVia, ShortestTree.UNREACHED);
+		int source = 0;
+		for(int p = 1; p <= n; p++){
+			if(settledStamp[p] != stamp)
+				continue;
+			treeVia[p] = via[p];
+			treeFrom[p] = from[p];
+			if(via[p] == -1)
+				source = p;
+		}
+		return(new ShortestTree(graph, source, treeVia, treeFrom));
+	}
+
+	/**
+	 * Get the route the last search found to a GraphPoint (which it must
+	 * have reached).
+	 * @param target the GraphPoint to get the route to
+	 * @return the route
+	 */
+	public Route routeTo(int target)
+	{
+		int n = 0;
+		for(int p = target; via[p] != -1; p = from[p])
+			n++;
+		int [] conns = new int[n];
+		int p = target;
+		for(int i = n - 1; i >= 0; i--){
+			conns[i] = via[p];
+			p = from[p];
+		}
+		return(new Route(graph, p, conns));
+	}
+}
+
+/**
+ * A binary min-heap of GraphPoint IDs keyed by long distances, which knows
+ * where each ID is in the heap, so it can decrease the key of any ID in
+ * O(log n) without searching for it.
+ */
+class IndexedHeap
+{
+	// the heap itself, and where each ID is in it (-1 if it isn't)
+	private int [] heap;
+	private int [] pos;
+	private long [] key;
+	private int size = 0;
+
+	/**
+	 * Create a heap for IDs from 0 to capacity - 1.
+	 * @param capacity one more than the largest ID
+	 */
+	public IndexedHeap(int capacity)
+	{
+		heap = new int[capacity];
+		pos = new int[capacity];
+		key = new long[capacity];
+		Arrays.fill(pos, -1);
+	}
+
+	/**
+	 * @return true if the heap is empty
+	 */
+	public boolean isEmpty()
+	{
+		return(size == 0);
+	}
+
+	/**
+	 * @return number of IDs on the heap
+	 */
+	public int size()
+	{
+		return(size);
+	}
+
+	/**
+	 * Take everything off the heap.
+	 */
+	public void clear()
+	{
+		for(int i = 0; i < size; i++)
+			pos[heap[i]] = -1;
+		size = 0;
+	}
+
+	/**
+	 * @param id an ID
+	 * @return whether the ID is on the heap
+	 */
+	public boolean contains(int id)
+	{
+		return(pos[id] != -1);
+	}
+
+	/**
+	 * @return the smallest key on the heap (which must not be empty)
+	 */
+	public long topKey()
+	{
+		return(key[heap[0]]);
+	}
+
+	/**
+	 * Add an ID, which must not already be on the heap.
+	 * @param id the ID
+	 * @param k its key
+	 */
+	public void push(int id, long k)
+	{
+		key[id] = k;
+		heap[size] = id;
+		pos[id] = size;
+		up(size++);
+	}
+
+	/**
+	 * Lower the key of an ID that is on the heap.
+	 * @param id the ID
+	 * @param k its new key, no bigger than the old one
+	 */
+	public void decreaseKey(int id, long k)
+	{
+		key[id] = k;
+		up(pos[id]);
+	}
+
+	/**
+	 * Take the ID with the smallest key off the heap.
+	 * @return the ID
+	 */
+	public int pop()
+	{
+		int top = heap[0];
+		pos[top] = -1;
+		size--;
+		if(size > 0){
+			heap[0] = heap[size];
+			pos[heap[0]] = 0;
+			down(0);
+		}
+		return(top);
+	}
+
+	/**
+	 * Move the ID at heap[i] up until its parent is no bigger.
+	 */
+	private void up(int i)
+	{
+		int id = heap[i];
+		long k = key[id];
+		while(i > 0){
+			int parent = (i - 1) >> 1;
+			if(key[heap[parent]] <= k)
+				break;
+			heap[i] = heap[parent];
+			pos[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = id;
+		pos[id] = i;
+	}
+
+	/**
+	 * Move the ID at heap[i] down until its children are no smaller.
+	 */
+	private void down(int i)
+	{
+		int id = heap[i];
+		long k = key[id];
+		while(true){
+			int child = 2*i + 1;
+			if(child >= size)
+				break;
+			if(child + 1 < size && key[heap[child+1]] < key[heap[child]])
+				child++;
+			if(key[heap[child]] >= k)
+				break;
+			heap[i] = heap[child];
+			pos[heap[i]] = i;
+			i = child;
+		}
+		heap[i] = id;
+		pos[id] = i;
+	}
+}
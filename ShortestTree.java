@@ -0,0 +1,118 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * A shortest-path tree, kept after the search that found it.
+ */
+
+import java.util.Arrays;
+
+/**
+ * The shortest routes from one GraphPoint to all the others, as found by
+ * ShortestPath.searchAll() (what the Perl frontend keeps in a .full file).
+ * A ShortestPath only holds its results until its next search, and only the
+ * thread that owns it can look at them; a ShortestTree is a copy that
+ * doesn't change, so it can be handed to other threads (see RouteService).
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class ShortestTree
+{
+	/**
+	 * via[] of a GraphPoint the search didn't reach.
+	 */
+	static final int UNREACHED = -2;
+
+	/**
+	 * The graph the tree is in.
+	 */
+	final PathGraph graph;
+	/**
+	 * The GraphPoint the tree starts at.
+	 */
+	final int source;
+
+	// for each GraphPoint: the connection (index in graph.neighbor[] etc.)
+	// the route to it ends with (-1 at the source, UNREACHED if there's no
+	// route), and the GraphPoint that connection starts at
+	private int [] via;
+	private int [] from;
+	// length of the route to each GraphPoint, or -1 if there's none
+	private int [] length;
+
+	/**
+	 * Create a tree (see ShortestPath.tree()).
+	 * @param graph the graph the tree is in
+	 * @param source the GraphPoint the tree starts at
+	 * @param via for each GraphPoint, the connection the route to it ends
+	 * with, -1 at the source, or UNREACHED
+	 * @param from for each GraphPoint, the GraphPoint before it
+	 */
+	ShortestTree(PathGraph graph, int source, int [] via, int [] from)
+	{
+		this.graph = graph;
+		this.source = source;
+		this.via = via;
+		this.from = from;
+
+		// work out every length at once, each one from the one before it,
+		// rather than walking all the way back to the source for each
+		length = new int[via.length];
+		Arrays.fill(length, -1);
+		if(source != 0)
+			length[source] = 0;
+		int [] stack = new int[via.length];
+		for(int p = 1; p < via.length; p++){
+			int n = 0;
+			int q = p;
+			while(via[q] >= 0 && length[q] == -1){
+				stack[n++] = q;
+				q = from[q];
+			}
+			while(n > 0){
+				int r = stack[--n];
+				length[r] = length[from[r]] + graph.weight[via[r]];
+			}
+		}
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return whether there's a route to it
+	 */
+	public boolean isReached(int id)
+	{
+		return(via[id] != UNREACHED);
+	}
+
+	/**
+	 * @param id a GraphPoint ID
+	 * @return the length (sum of the weights, without penalties) of the
+	 * route to it, or -1 if there's none
+	 */
+	public int lengthTo(int id)
+	{
+		return(length[id]);
+	}
+
+	/**
+	 * Get the route to a GraphPoint.
+	 * @param target the GraphPoint to go to
+	 * @return the route, or null if there is none
+	 */
+	public Route routeTo(int target)
+	{
+		if(!isReached(target))
+			return(null);
+		int n = 0;
+		for(int p = target; via[p] != -1; p = from[p])
+			n++;
+		int [] conns = new int[n];
+		int p = target;
+		for(int i = n - 1; i >= 0; i--){
+			conns[i] = via[p];
+			p = from[p];
+		}
+		return(new Route(graph, p, conns));
+	}
+}
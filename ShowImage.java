@@ -1692,7 +1692,8 @@ MouseMotionListener{
 		{
 			PathOptimize.run(paths, locations, 
 				optPathFile, optLocFile,
-				binaryPoints, binaryLocations, binaryEdges);
+				binaryPoints, binaryLocations, binaryEdges,
+				PathOptimize.compactEdgeFile);
 			setStatusBarText("Data optimization completed, " +
 					"output written to: " + binaryPoints + ", " + 
 					binaryLocations + ", and " + binaryEdges);
@@ -0,0 +1,95 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Coalescing of identical computations running at the same time.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure only one thread at a time computes the value for a key: the
+ * first thread to ask for it runs the computation, and any others that ask
+ * while it's running wait for it and get the same value, instead of all
+ * computing it at once (say, the same route when a popular page links to it
+ * right after the cache is cleared). Once the computation is done, the next
+ * thread to ask runs it again; keeping the value around is up to the caller
+ * (see RouteCache).
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class SingleFlight<K, V>
+{
+	// computations running now, by key
+	private ConcurrentHashMap<K, FutureTask<V>> running =
+		new ConcurrentHashMap<K, FutureTask<V>>();
+
+	// counters
+	private AtomicLong computed = new AtomicLong();
+	private AtomicLong shared = new AtomicLong();
+
+	/**
+	 * Get the value for a key, computing it unless another thread is already
+	 * computing it.
+	 * @param key the key
+	 * @param work computes the value
+	 * @return the value
+	 * @throws RuntimeException if the computation threw an exception (the
+	 * same one, if it was a RuntimeException)
+	 */
+	public V run(K key, Callable<V> work)
+	{
+		FutureTask<V> task = new FutureTask<V>(work);
+		FutureTask<V> other = running.putIfAbsent(key, task);
+		if(other == null){
+			computed.incrementAndGet();
+			try{
+				task.run();
+			}
+			finally{
+				running.remove(key, task);
+			}
+		}
+		else{
+			shared.incrementAndGet();
+			task = other;
+		}
+
+		try{
+			return(task.get());
+		}
+		catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return number of computations run
+	 */
+	public long computed()
+	{
+		return(computed.get());
+	}
+
+	/**
+	 * @return number of times a thread got a value another thread computed,
+	 * instead of computing it itself
+	 */
+	public long shared()
+	{
+		return(shared.get());
+	}
+}
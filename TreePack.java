@@ -0,0 +1,345 @@
+// vim: tabstop=4 shiftwidth=4 textwidth=79 expandtab
+/**
+ * $Id$
+ *
+ * Precomputed shortest-path trees from every Location's GraphPoint.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The result of ShortestPath.searchAll() from every GraphPoint that has a
+ * Location, all in one file. This is what the Perl frontend keeps in a .full
+ * cache file per GraphPoint (see LoadData::writeDijkstraCache()), worked out
+ * ahead of time by PathOptimize, so a request never has to run Dijkstra's
+ * algorithm itself (LoadData::readDijkstraCache() reads it from here first).
+ * <br><br>
+ * The file is made to be memory-mapped and read in place (see open()), and
+ * each tree can be found with a single seek:
+ * <pre>
+ * int MAGIC, int VERSION, int n (number of GraphPoints), int number of trees
+ * n ints: for each GraphPoint ID, where its tree starts in the file (in
+ *     bytes), or 0 if it has none
+ * for each tree:
+ *     n ints: the GraphPoint before each one on its route from the source
+ *         (From in the .full files), or 0 for the source and anything
+ *         unreachable
+ *     n ints: the distance to each GraphPoint, with penalties (Distance in
+ *         the .full files, unsigned), or -1 (~0) if it's unreachable
+ * </pre>
+ * Distances count the penalty for every GraphPoint that can't be passed
+ * through that a route goes into, including the last one, the way
+ * ShortestPath::find() counts them; the actual length of a route is the sum
+ * of the weights along it (see route()).
+ *
+ * @author David Lindquist and Michael Kelly
+ */
+class TreePack
+{
+	static final int MAGIC = 0x53505450;	// "SPTP"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+
+	/**
+	 * Distance written for an unreachable GraphPoint.
+	 */
+	static final int UNREACHED = -1;
+
+	/**
+	 * Number of GraphPoints in each tree.
+	 */
+	final int numPoints;
+	/**
+	 * Number of trees.
+	 */
+	final int numTrees;
+
+	private ByteBuffer buf;
+
+	/**
+	 * Driver for testing TreePack: open a pack and check routes from random
+	 * sources in it against ShortestPath.
+	 * @param args the pack file
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1){
+			System.err.println("Usage: java TreePack file");
+			return;
+		}
+		TreePack pack = open(args[0]);
+		PathGraph g = PathGraph.load(ScrollablePicture.binaryPoints,
+				ScrollablePicture.binaryLocations,
+				ScrollablePicture.binaryEdges);
+		System.err.println(pack.numTrees + " trees of " + pack.numPoints
+				+ " GraphPoints.");
+
+		ShortestPath sp = new ShortestPath(g);
+		int [] locs = ShortestPath.locationIDs(g);
+		Random rand = new Random(1);
+		final int QUERIES = 10000;
+		int mismatches = 0;
+		for(int i = 0; i < QUERIES; i++){
+			int s = g.pointOfLocation(locs[rand.nextInt(locs.length)]);
+			int t = g.pointOfLocation(locs[rand.nextInt(locs.length)]);
+			Route expected = sp.route(s, t);
+			Route r = pack.route(g, s, t);
+			if(expected == null ? r != null
+					: r == null || r.distance != expected.distance)
+				mismatches++;
+		}
+		System.err.println(QUERIES + " random routes checked against "
+				+ "ShortestPath: " + mismatches + " mismatches.");
+	}
+
+	/**
+	 * Create a pack over a mapped file.
+	 */
+	private TreePack(ByteBuffer buf)
+	{
+		this.buf = buf;
+		numPoints = buf.getInt(8);
+		numTrees = buf.getInt(12);
+	}
+
+	/**
+	 * Work out the tree from every GraphPoint with a Location, and write them
+	 * to a file (see the class comment for the format).
+	 * @param graph the graph
+	 * @param threads how many threads to search with
+	 * @param fileName the file to write
+	 */
+	public static void write(PathGraph graph, int threads, String fileName)
+	{
+		int n = graph.numPoints;
+		IntList sources = new IntList(graph.locationPoint.length);
+		for(int id = 1; id <= n; id++)
+			if(graph.locationID[id] != 0)
+				sources.add(id);
+
+		int [][] from = new int[sources.size][];
+		int [][] dist = new int[sources.size][];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(threads, 1));
+		try{
+			pool.invoke(new TreeTask(graph, sources, from, dist,
+						0, sources.size));
+		}
+		finally{
+			pool.shutdown();
+		}
+
+		try{
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(
+							new FileOutputStream(new File(fileName))));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(sources.size);
+
+			// offset table
+			int s = 0;
+			for(int id = 1; id <= n; id++){
+				if(s < sources.size && sources.get(s) == id){
+					out.writeInt(HEADER_SIZE + 4 * n + s * 8 * n);
+					s++;
+				}
+				else
+					out.writeInt(0);
+			}
+
+			for(s = 0; s < sources.size; s++){
+				for(int id = 1; id <= n; id++)
+					out.writeInt(from[s][id]);
+				for(int id = 1; id <= n; id++)
+					out.writeInt(dist[s][id]);
+			}
+			out.close();
+		}
+		catch(IOException e){
+			System.err.println("Error in writing \"" + fileName + "\"!\n"
+					+ e + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Search from some of the sources, and keep their trees.
+	 * @param graph the graph
+	 * @param sources GraphPoint IDs of all the sources
+	 * @param from where to put each source's From array
+	 * @param dist where to put each source's Distance array
+	 * @param first first (index in sources of the) source to do
+	 * @param last one past the last one
+	 */
+	static void searchTrees(PathGraph graph, IntList sources, int [][] from,
+			int [][] dist, int first, int last)
+	{
+		ShortestPath sp = new ShortestPath(graph);
+		for(int s = first; s < last; s++){
+			sp.searchAll(sources.get(s));
+			from[s] = new int[graph.numPoints + 1];
+			dist[s] = new int[graph.numPoints + 1];
+			for(int id = 1; id <= graph.numPoints; id++){
+				from[s][id] = sp.fromPoint(id);
+				long d = sp.distanceTo(id);
+				dist[s][id] = (d >= 0xFFFFFFFFL ? UNREACHED : (int)d);
+			}
+		}
+	}
+
+	/**
+	 * Map a pack written by write(). Nothing is read until it's asked for,
+	 * and the pack can be shared between threads.
+	 * @param fileName the file to map
+	 * @return the pack
+	 * @throws IOException if the file can't be read, or isn't a pack
+	 */
+	public static TreePack open(String fileName) throws IOException
+	{
+		ByteBuffer buf = MappedGraph.map(fileName);
+		if(buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC
+				|| buf.getInt(4) != VERSION)
+			throw new IOException(fileName
+					+ " isn't a (version " + VERSION + ") tree pack");
+		TreePack pack = new TreePack(buf);
+		if(buf.capacity() != HEADER_SIZE + 4L * pack.numPoints
+				+ 8L * pack.numPoints * pack.numTrees)
+			throw new IOException(fileName + " is the wrong size");
+		return(pack);
+	}
+
+	/**
+	 * Find where a source's tree starts.
+	 */
+	private int treeOffset(int source)
+	{
+		if(source < 1 || source > numPoints)
+			return(0);
+		return(buf.getInt(HEADER_SIZE + 4 * (source - 1)));
+	}
+
+	/**
+	 * @param source a GraphPoint ID
+	 * @return whether there is a tree from the GraphPoint
+	 */
+	public boolean hasTree(int source)
+	{
+		return(treeOffset(source) != 0);
+	}
+
+	/**
+	 * @param source a GraphPoint ID with a tree
+	 * @param id a GraphPoint ID
+	 * @return the GraphPoint before id on the route from source, or 0 if id
+	 * is the source or can't be reached
+	 */
+	public int fromPoint(int source, int id)
+	{
+		return(buf.getInt(treeOffset(source) + 4 * (id - 1)));
+	}
+
+	/**
+	 * @param source a GraphPoint ID with a tree
+	 * @param id a GraphPoint ID
+	 * @return the distance (with penalties) from source to id, or
+	 * ShortestPath.INFINITY if id can't be reached
+	 */
+	public long distanceTo(int source, int id)
+	{
+		int d = buf.getInt(treeOffset(source) + 4 * (numPoints + id - 1));
+		if(d == UNREACHED)
+			return(ShortestPath.INFINITY);
+		return(d & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Get the route from a source to any GraphPoint out of the source's
+	 * tree. Between two GraphPoints, it follows the connection
+	 * ShortestPath would (the lightest one, or the first of those).
+	 * @param graph the graph the pack was built from
+	 * @param source a GraphPoint ID with a tree
+	 * @param target the GraphPoint to go to
+	 * @return the route, or null if the source has no tree or target can't
+	 * be reached from it
+	 */
+	public Route route(PathGraph graph, int source, int target)
+	{
+		if(!hasTree(source) || distanceTo(source, target)
+				== ShortestPath.INFINITY)
+			return(null);
+
+		IntList back = new IntList(64);
+		for(int p = target; p != source; p = fromPoint(source, p))
+			back.add(p);
+		int [] conns = new int[back.size];
+		int v = source;
+		for(int i = 0; i < conns.length; i++){
+			int w = back.get(back.size - 1 - i);
+			int best = -1;
+			for(int c = graph.offset[v]; c < graph.offset[v+1]; c++)
+				if(graph.neighbor[c] == w
+						&& (best == -1 || graph.weight[c] < graph.weight[best]))
+					best = c;
+			conns[i] = best;
+			v = w;
+		}
+		return(new Route(graph, source, conns));
+	}
+}
+
+/**
+ * Searches from a range of sources for TreePack, splitting the range until
+ * it's small enough to do with one ShortestPath.
+ */
+class TreeTask extends RecursiveAction
+{
+	final static long serialVersionUID = 1;
+
+	// sources per task, so each search's working arrays get reused a few
+	// times
+	private static final int TREES_PER_TASK = 8;
+
+	private PathGraph graph;
+	private IntList sources;
+	private int [][] from, dist;
+	private int first, last;
+
+	/**
+	 * Create a task for the sources from first (inclusive) to last
+	 * (exclusive).
+	 * @param graph the graph to search
+	 * @param sources GraphPoint IDs of all the sources
+	 * @param from where to put each source's From array
+	 * @param dist where to put each source's Distance array
+	 * @param first first (index in sources of the) source to do
+	 * @param last one past the last one
+	 */
+	public TreeTask(PathGraph graph, IntList sources, int [][] from,
+			int [][] dist, int first, int last)
+	{
+		this.graph = graph;
+		this.sources = sources;
+		this.from = from;
+		this.dist = dist;
+		this.first = first;
+		this.last = last;
+	}
+
+	protected void compute()
+	{
+		if(last - first <= TREES_PER_TASK){
+			TreePack.searchTrees(graph, sources, from, dist, first, last);
+			return;
+		}
+
+		int mid = (first + last) / 2;
+		TreeTask left = new TreeTask(graph, sources, from, dist, first, mid);
+		left.fork();
+		new TreeTask(graph, sources, from, dist, mid, last).compute();
+		left.join();
+	}
+}
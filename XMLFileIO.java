@@ -20,6 +20,13 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.Attributes;
 
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
 /**
  * Wrapper class for loading and saving paths and locations in XML format.
  * (It's all quite SAXy.)
@@ -37,6 +44,21 @@ public class XMLFileIO {
 	 */
 	public static String writeLocations(
 			String outFile, Vector<Location> locVector)
+	{
+		XMLFileEvent event = XMLFileEvent.start("writeLocations", outFile);
+		try{
+			return(writeLocationFile(outFile, locVector));
+		}
+		finally{
+			event.finish(locVector.size());
+		}
+	}
+
+	/**
+	 * Does the work of writeLocations().
+	 */
+	private static String writeLocationFile(
+			String outFile, Vector<Location> locVector)
 	{
     	File xmlOut = new File(outFile);
     	OutputStreamWriter out = null;
@@ -175,6 +197,21 @@ public class XMLFileIO {
 	 */
 	public static String writePaths(
 			String outFile, Vector<Vector<Point>> paths)
+	{
+		XMLFileEvent event = XMLFileEvent.start("writePaths", outFile);
+		try{
+			return(writePathFile(outFile, paths));
+		}
+		finally{
+			event.finish(paths.size());
+		}
+	}
+
+	/**
+	 * Does the work of writePaths().
+	 */
+	private static String writePathFile(
+			String outFile, Vector<Vector<Point>> paths)
 	{
     	File xmlOut = new File(outFile);
     	OutputStreamWriter out = null;
@@ -237,6 +274,8 @@ public class XMLFileIO {
     public static Vector<Location> loadLocations(String locationFile) {
         SAXParserFactory sax = SAXParserFactory.newInstance();
         Vector<Location> locs = new Vector<Location>();
+        XMLFileEvent event = XMLFileEvent.start("loadLocations",
+                locationFile);
         
         try {
             SAXParser parser = sax.newSAXParser();
@@ -251,6 +290,8 @@ public class XMLFileIO {
         } catch (IOException e) {
             System.err.println("IOException: " + e.getMessage());
             return locs;
+        } finally {
+            event.finish(locs.size());
         }
         if(VERBOSE)
         {
@@ -271,6 +312,7 @@ public class XMLFileIO {
     	boolean printLoadedPaths = false;
         SAXParserFactory sax = SAXParserFactory.newInstance();
         Vector<Vector<Point>> points = new Vector<Vector<Point>>();
+        XMLFileEvent event = XMLFileEvent.start("loadPaths", pathFile);
 
         try {
             SAXParser parser = sax.newSAXParser();
@@ -285,6 +327,8 @@ public class XMLFileIO {
         } catch (IOException e) {
             System.err.println("IOException: " + e.getMessage());
             return points;
+        } finally {
+            event.finish(points.size());
         }
 
         if(printLoadedPaths)
@@ -589,3 +633,56 @@ class LocationHandler extends DefaultHandler {
     }
 
  }
+
+/**
+ * A Flight Recorder event for reading or writing one of the XML files (see
+ * OptimizeStageEvent for how to record them).
+ */
+@Name("ucsdmap.XMLFile")
+@Label("XML File")
+@Category({"UCSD Map", "XMLFileIO"})
+@Description("A path or location XML file read or written")
+class XMLFileEvent extends Event {
+
+    @Label("Operation")
+    @Description("loadPaths, loadLocations, writePaths or writeLocations")
+    String operation;
+
+    @Label("File")
+    String file;
+
+    @Label("Records")
+    @Description("Paths or Locations read or written")
+    int records;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    /**
+     * Start timing a read or write.
+     * @param operation which method is doing it
+     * @param file the file
+     * @return the event, begun
+     */
+    static XMLFileEvent start(String operation, String file) {
+        XMLFileEvent e = new XMLFileEvent();
+        e.operation = operation;
+        e.file = file;
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Finish a read or write, and commit the event if it's wanted.
+     * @param records paths or Locations read or written
+     */
+    void finish(int records) {
+        end();
+        if (!shouldCommit())
+            return;
+        this.records = records;
+        this.bytes = new File(file).length();
+        commit();
+    }
+}
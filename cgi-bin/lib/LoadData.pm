@@ -26,6 +26,8 @@ use Fcntl qw(:seek);
 use constant {
 	INT => 4,	# the size of an integer, in bytes
 	BYTE => 1,	# the size of a byte, in bytes ;)
+	TREE_MAGIC => 0x53505450,	# "SPTP", at the start of the tree pack
+	TREE_VERSION => 1,
 	DEBUG => 0,	# whether to print lots of debugging info when reading
 };
 
@@ -437,7 +439,11 @@ sub writeCache{
 	$dist ||= 0;
 
 	print STDERR "WRITING TO CACHE...\n" if DEBUG;
-	open(CACHE, '>', $file) or die "Cannot open cache file $file for writing: $!\n";
+	# several requests for the same path may be writing it at once, so each
+	# one writes its own file and renames it into place; readers only ever
+	# see a whole file
+	my $tmp = "$file.$$";
+	open(CACHE, '>', $tmp) or die "Cannot open cache file $tmp for writing: $!\n";
 	# the distance of the path
 	print STDERR "distance: $dist\n" if DEBUG;
 	writeInt( *CACHE, $dist );
@@ -467,7 +473,8 @@ sub writeCache{
 		}
 	}
 	close(CACHE);
-	chmod(0644, $file);
+	chmod(0644, $tmp);
+	rename($tmp, $file) or unlink($tmp);
 }
 
 ###################################################################
@@ -553,7 +560,9 @@ sub writeDijkstraCache{
 
 	plog( "Writing Dijkstra cache for $id.\n" );
 
-	open(OUT, '>', $filename) or die "Cannot open cache file for writing: $!\n";
+	# written to a file of our own and renamed into place, like writeCache()
+	my $tmp = "$filename.$$";
+	open(OUT, '>', $tmp) or die "Cannot open cache file for writing: $!\n";
 	binmode(OUT);
 	foreach( values %$weights ){
 		print OUT pack("NNN", $_->{'PointID'}, $_->{'Distance'}, $_->{'From'})
@@ -562,12 +571,15 @@ sub writeDijkstraCache{
 		#writeInt( *OUT, ($_->{'From'} || 0) );
 	}
 	close(OUT);
-	chmod(0644, $filename);
+	chmod(0644, $tmp);
+	rename($tmp, $filename) or unlink($tmp);
 }
 
 ###################################################################
 # Try to read a cache of Dijkstra's algorithm for the given GraphPoint and
-# return the result, or undef if there's no cache.
+# return the result, or undef if there's no cache. The tree pack written by
+# PathOptimize (see readTreePack()) is tried first, so GraphPoints with
+# locations never need a cache file of their own.
 #
 # Args:
 #	- ID of the GraphPoint that serves as the center of the Dijkstra cache
@@ -577,13 +589,17 @@ sub writeDijkstraCache{
 ###################################################################
 sub readDijkstraCache{
 	my($id) = @_;
+
+	my $weights = readTreePack($id);
+	return $weights if defined($weights);
+
 	my $filename = MapGlobals::getDijkstraCacheName($id);
 
 	plog( "Dijkstra cache for $id at $filename?\n" );
 	# abort if the file doesn't exist
 	return if(! -e $filename );
 
-	my $weights = {};
+	$weights = {};
 	my $pointID;
 	my $d;
 
@@ -612,6 +628,72 @@ sub readDijkstraCache{
 
 }
 
+###################################################################
+# Read the result of Dijkstra's algorithm for the given GraphPoint out of the
+# tree pack written by PathOptimize ($MapGlobals::TREE_FILE), which holds the
+# tree from every GraphPoint with a location. The file starts with four ints
+# (magic number, version, number of GraphPoints n, number of trees), then n
+# ints giving where each GraphPoint's tree starts (0 for none). A tree is n
+# 'From' IDs followed by n distances (~0 for unreachable), in ID order.
+# See TreePack.java.
+#
+# Args:
+#	- ID of the GraphPoint that serves as the center of the Dijkstra cache
+# Returns:
+#	- a hashref of Dijkstra cache objects, the same as readDijkstraCache(),
+#	  or undef if there's no pack or no tree for the GraphPoint in it
+###################################################################
+sub readTreePack{
+	my($id) = @_;
+	my $filename = $MapGlobals::TREE_FILE;
+
+	return if(! -e $filename );
+
+	open(my $fh, '<', $filename) or die "Cannot open tree pack $filename for reading: $!\n";
+	binmode($fh);
+
+	my $buf;
+	if( read($fh, $buf, 4*INT) != 4*INT ){
+		close($fh);
+		return;
+	}
+	my($magic, $version, $n) = unpack("NNN", $buf);
+	if($magic != TREE_MAGIC || $version != TREE_VERSION || $id < 1 || $id > $n){
+		close($fh);
+		return;
+	}
+
+	# find the tree in the offset table
+	seek($fh, 4*INT + ($id - 1)*INT, SEEK_SET);
+	my $offset = readInt($fh);
+	if(!$offset){
+		close($fh);
+		return;
+	}
+
+	plog( "Reading Dijkstra cache for $id from $filename.\n" );
+	seek($fh, $offset, SEEK_SET);
+	if( read($fh, $buf, 2*$n*INT) != 2*$n*INT ){
+		close($fh);
+		return;
+	}
+	close($fh);
+	my @tree = unpack("N*", $buf);
+
+	my $weights = {};
+	my $dist;
+	for my $pid (1..$n){
+		$dist = $tree[$n + $pid - 1];
+		$weights->{$pid} = Heap::Elem::Dijkstra->new(
+			PointID => $pid,
+			Distance => ($dist == 0xFFFFFFFF) ? INFINITY : $dist,
+			From => $tree[$pid - 1],
+			Known => TRUE,
+		);
+	}
+	return $weights;
+}
+
 ###################################################################
 # Normalize a Location name string to make subsequent searching easier.
 # Normalization consists of all non-alphanumerics, and lowercasing
@@ -140,6 +140,9 @@ our $DATA_DIR		= 'data';				# path
 our $POINT_FILE		= $DATA_DIR . '/binPointData.dat';	# path
 our $LOCATION_FILE	= $DATA_DIR . '/binLocationData.dat';	# path
 our $EDGE_FILE		= $DATA_DIR . '/binEdgeData.dat';	# path
+# shortest-path trees from every location, precomputed by PathOptimize (see
+# LoadData::readTreePack()); optional
+our $TREE_FILE		= $DATA_DIR . '/binTreeData.dat';	# path
 
 # where the thumbnail base image is
 our $THUMB_FILE = 'thumbnail.gd2';	# path